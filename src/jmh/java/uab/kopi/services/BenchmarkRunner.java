@@ -0,0 +1,19 @@
+package uab.kopi.services;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the allocation profiler always on, so that the bytes allocated per operation are reported
+ * next to the times. Accepts the usual JMH command line, for example
+ * {@code java -jar target/benchmarks.jar SelectBenchmark -p rows=100000}.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        String[] withProfiler = new String[args.length + 2];
+        withProfiler[0] = "-prof";
+        withProfiler[1] = "gc";
+        System.arraycopy(args, 0, withProfiler, 2, args.length);
+        Main.main(withProfiler);
+    }
+}
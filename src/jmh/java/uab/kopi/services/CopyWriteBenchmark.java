@@ -0,0 +1,94 @@
+package uab.kopi.services;
+
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the output side: copying the sampled rows into a streaming sheet, and the whole of writing the result
+ * file, which includes the copy, compressing the temporary sheet data and zipping the workbook.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyWriteBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"5", "20"})
+    public int columns;
+
+    @Param({"0.01", "0.1", "0.5"})
+    public double ratio;
+
+    private String[] infoRow;
+    private List<Object[]> sampledRows;
+    private List<Object[]> rowsToCopy;
+    private File outputFile;
+    private ExcelProcessor processor;
+    private SXSSFWorkbook workbook;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        infoRow = SyntheticWorkbooks.createInfoRow(columns);
+        sampledRows = SyntheticWorkbooks.createRowValues((int) Math.round(rows * ratio), columns);
+        outputFile = File.createTempFile("benchmark", ".xlsx");
+        outputFile.deleteOnExit();
+        processor = new ExcelProcessor(new SamplingJob(outputFile, outputFile.getParentFile(),
+                SamplingOptions.builder().count(0).build()));
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareInvocation() {
+        // Copying clears the rows it has written, so every invocation gets its own list
+        rowsToCopy = new ArrayList<>(sampledRows);
+        workbook = new SXSSFWorkbook();
+        workbook.setCompressTempFiles(true);
+    }
+
+    @TearDown(Level.Invocation)
+    public void finishInvocation() throws Exception {
+        workbook.dispose();
+        workbook.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(outputFile.toPath());
+    }
+
+    @Benchmark
+    public SXSSFSheet copy() {
+        SXSSFSheet sheet = workbook.createSheet();
+        processor.copySelectedDataRows(rowsToCopy, sheet, new CellStyleCache(workbook));
+        return sheet;
+    }
+
+    @Benchmark
+    public long write() throws Exception {
+        processor.createNewExcelFile(new SheetSample(infoRow, rowsToCopy), outputFile);
+        return outputFile.length();
+    }
+}
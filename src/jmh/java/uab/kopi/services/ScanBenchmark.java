@@ -0,0 +1,77 @@
+package uab.kopi.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures finding the info row and the end of the data while streaming an .xlsx sheet and an .xls sheet. The scans
+ * include opening the workbook, as the processor has to do the same.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class ScanBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"5", "20"})
+    public int columns;
+
+    private File xlsx;
+    private File xls;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        xlsx = SyntheticWorkbooks.createXlsx(rows, columns);
+        xls = SyntheticWorkbooks.createXls(rows, columns);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(xlsx.toPath());
+        Files.deleteIfExists(xls.toPath());
+    }
+
+    @Benchmark
+    public int streamedXlsx(Blackhole blackhole) throws Exception {
+        try (StreamedWorkbook workbook = XlsxStreamReader.XlsxWorkbook.open(xlsx, false)) {
+            return scanFirstSheet(workbook, blackhole);
+        }
+    }
+
+    @Benchmark
+    public int streamedXls(Blackhole blackhole) throws Exception {
+        try (StreamedWorkbook workbook = XlsStreamReader.XlsWorkbook.open(xls)) {
+            return scanFirstSheet(workbook, blackhole);
+        }
+    }
+
+    private static int scanFirstSheet(StreamedWorkbook workbook, Blackhole blackhole) throws Exception {
+        DataBoundsTracker tracker = new DataBoundsTracker();
+        workbook.sheet(0, CopyMode.TEXT).read((rowIdx, cells) -> {
+            blackhole.consume(tracker.accept(rowIdx, cells.size(), !cells.isEmpty()));
+            return !tracker.isFinished();
+        });
+        return tracker.getLastDataIdx();
+    }
+}
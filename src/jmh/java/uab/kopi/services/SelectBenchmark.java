@@ -0,0 +1,71 @@
+package uab.kopi.services;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Measures picking the sample rows: by index, as within every stratum, and with the single pass samplers used while
+ * streaming. The samplers are fed a shared row, so only the cost of the selection itself is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SelectBenchmark {
+
+    private static final int FIRST_DATA_IDX = 3;
+    private static final Function<String[], String[]> READER = Function.identity();
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"0.01", "0.1", "0.5"})
+    public double ratio;
+
+    private final String[] row = new String[0];
+    private final Random random = new Random(42L);
+    private int numRowsToTake;
+
+    @Setup
+    public void setUp() {
+        numRowsToTake = (int) Math.round(rows * ratio);
+    }
+
+    @Benchmark
+    public int[] byIndex() {
+        return ExcelProcessor.selectRandomRows(FIRST_DATA_IDX, FIRST_DATA_IDX + rows - 1, numRowsToTake, random);
+    }
+
+    @Benchmark
+    public List<SampledRow<String[]>> reservoir() {
+        return feed(new ReservoirSampler<>(numRowsToTake, random));
+    }
+
+    @Benchmark
+    public List<SampledRow<String[]>> proportional() {
+        return feed(new ProportionalSampler<>(ratio, random));
+    }
+
+    private List<SampledRow<String[]>> feed(RowSampler<String[]> sampler) {
+        for (int i = 0; i < rows; i++) {
+            sampler.offer(FIRST_DATA_IDX + i, row, READER);
+        }
+        return sampler.finish(numRowsToTake);
+    }
+}
@@ -0,0 +1,158 @@
+package uab.kopi.services;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * Measures the cold start of the startup distribution, with and without its class-data sharing archive: the time
+ * until the window has been shown and closed again, and the time until {@code App batch} has processed a first file.
+ * Every run starts a new JVM, which is why this is not a JMH benchmark. The times are taken from starting the process
+ * until it exits, so they include starting and stopping the JVM.
+ * <p>
+ * Build the distribution with {@code mvn -Pstartup package} and run, with the JDK that built it,
+ * {@code java -cp target/benchmarks.jar uab.kopi.services.StartupBenchmark target/dist 10}. The window is only
+ * measured where a display is available.
+ */
+public class StartupBenchmark {
+
+    private static final String ARCHIVE = "generuoklis.jsa";
+
+    public static void main(String[] args) throws Exception {
+        File dist = new File(args.length > 0 ? args[0] : "target/dist").getAbsoluteFile();
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        File[] jars = dist.listFiles((folder, name) -> name.endsWith(".jar"));
+        if (jars == null || jars.length != 1) {
+            System.err.println("No distribution in " + dist + ", build it with: mvn -Pstartup package");
+            System.exit(2);
+        }
+
+        Path work = Files.createTempDirectory("startup-benchmark");
+        Path input = Files.createDirectory(work.resolve("input"));
+        Path output = work.resolve("output");
+        Files.copy(SyntheticWorkbooks.createXlsx(1000, 6).toPath(), input.resolve("duomenys.xlsx"),
+                StandardCopyOption.REPLACE_EXISTING);
+        try {
+            for (boolean shared : new boolean[]{false, true}) {
+                if (shared && !new File(dist, ARCHIVE).isFile()) {
+                    System.out.println("No " + ARCHIVE + " in " + dist + ", skipping the runs with the archive");
+                    continue;
+                }
+                List<String> java = javaCommand(jars[0], work, shared);
+
+                List<String> window = new ArrayList<>(java);
+                window.add(1, "-Dgeneruoklis.closeWhenShown=true");
+                report("first window", shared, measure(window, dist, runs, null));
+
+                List<String> batch = new ArrayList<>(java);
+                batch.addAll(Arrays.asList("batch", "--input", input.toString(), "--output", output.toString(),
+                        "--count", "100", "--seed", "1"));
+                report("first processed file", shared, measure(batch, dist, runs, output));
+            }
+        } finally {
+            deleteFolder(work);
+        }
+    }
+
+    /**
+     * @param jar    The JAR of the distribution.
+     * @param work   The folder receiving the logs of the runs.
+     * @param shared Whether the class-data sharing archive is used.
+     * @return The command starting the application, without its arguments.
+     */
+    private static List<String> javaCommand(File jar, Path work, boolean shared) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        if (shared) {
+            command.add("-XX:SharedArchiveFile=" + ARCHIVE);
+            // Fail rather than quietly measuring a run without the archive
+            command.add("-Xshare:on");
+        }
+        command.add("-Dgeneruoklis.logFolder=" + work.resolve("logs"));
+        command.add("-jar");
+        command.add(jar.getName());
+        return command;
+    }
+
+    /**
+     * Starts the command again and again, timing each run until the process exits.
+     *
+     * @param command The command.
+     * @param folder  The folder the command is started in.
+     * @param runs    The number of runs.
+     * @param output  A folder deleted before every run, or null.
+     * @return The times in milliseconds, or null if a run failed.
+     * @throws Exception If a process could not be started.
+     */
+    private static double[] measure(List<String> command, File folder, int runs, Path output) throws Exception {
+        double[] times = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            if (output != null) {
+                deleteFolder(output);
+            }
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).directory(folder).redirectErrorStream(true).start();
+            String lastLine = "";
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String read;
+                while ((read = reader.readLine()) != null) {
+                    if (!read.isEmpty() && !Character.isWhitespace(read.charAt(0))) {
+                        // Skips the frames of a stack trace, keeping the exception
+                        lastLine = read;
+                    }
+                }
+            }
+            int exitCode = process.waitFor();
+            long end = System.nanoTime();
+            if (exitCode != 0) {
+                System.out.println("A run failed with exit code " + exitCode + ": " + lastLine);
+                return null;
+            }
+            times[i] = (end - start) / 1e6;
+        }
+        return times;
+    }
+
+    /**
+     * @param what   What was measured.
+     * @param shared Whether the class-data sharing archive was used.
+     * @param times  The times in milliseconds, or null if the runs failed.
+     */
+    private static void report(String what, boolean shared, double[] times) {
+        String label = String.format(Locale.ROOT, "%-22s %-16s", what, shared ? "with archive" : "without archive");
+        if (times == null) {
+            System.out.println(label + " not measured");
+            return;
+        }
+        Arrays.sort(times);
+        System.out.println(String.format(Locale.ROOT, "%s median %7.0f ms, min %7.0f ms, max %7.0f ms (%d runs)",
+                label, times[times.length / 2], times[0], times[times.length - 1], times.length));
+    }
+
+    /**
+     * @param folder The folder to delete with everything in it, if it exists.
+     * @throws IOException If the folder could not be deleted.
+     */
+    private static void deleteFolder(Path folder) throws IOException {
+        if (!Files.exists(folder)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
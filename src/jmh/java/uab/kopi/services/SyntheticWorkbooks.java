@@ -0,0 +1,134 @@
+package uab.kopi.services;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the workbooks and rows the benchmarks run on: the info row followed by the data rows, with text, whole
+ * number and decimal cells taking turns across the columns.
+ */
+final class SyntheticWorkbooks {
+
+    /**
+     * The most rows an .xls sheet can hold.
+     */
+    static final int MAX_XLS_ROWS = 65536;
+
+    private static final long SEED = 42L;
+
+    private SyntheticWorkbooks() {
+    }
+
+    /**
+     * Writes an .xlsx file through a streaming workbook.
+     *
+     * @param rows    The number of data rows.
+     * @param columns The number of columns.
+     * @return The temporary file, deleted when the JVM exits.
+     * @throws IOException If the file could not be written.
+     */
+    static File createXlsx(int rows, int columns) throws IOException {
+        SXSSFWorkbook workbook = new SXSSFWorkbook();
+        try {
+            return write(workbook, rows, columns, ".xlsx");
+        } finally {
+            workbook.dispose();
+        }
+    }
+
+    /**
+     * Writes an .xls file, capping the data rows at what the format allows.
+     *
+     * @param rows    The number of data rows.
+     * @param columns The number of columns.
+     * @return The temporary file, deleted when the JVM exits.
+     * @throws IOException If the file could not be written.
+     */
+    static File createXls(int rows, int columns) throws IOException {
+        return write(new HSSFWorkbook(), Math.min(rows, MAX_XLS_ROWS - 1), columns, ".xls");
+    }
+
+    /**
+     * Generates data rows as the processor holds them before they are copied.
+     *
+     * @param rows    The number of data rows.
+     * @param columns The number of columns.
+     * @return The row values.
+     */
+    static List<Object[]> createRowValues(int rows, int columns) {
+        Random random = new Random(SEED);
+        List<Object[]> dataRows = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            Object[] values = new Object[columns];
+            for (int j = 0; j < columns; j++) {
+                values[j] = cellText(random, j);
+            }
+            dataRows.add(values);
+        }
+        return dataRows;
+    }
+
+    /**
+     * Generates an info row naming each column.
+     *
+     * @param columns The number of columns.
+     * @return The column names.
+     */
+    static String[] createInfoRow(int columns) {
+        String[] infoRow = new String[columns];
+        for (int j = 0; j < columns; j++) {
+            infoRow[j] = "Stulpelis " + (j + 1);
+        }
+        return infoRow;
+    }
+
+    private static File write(Workbook workbook, int rows, int columns, String suffix) throws IOException {
+        Random random = new Random(SEED);
+        Sheet sheet = workbook.createSheet("Duomenys");
+        Row infoRow = sheet.createRow(0);
+        String[] names = createInfoRow(columns);
+        for (int j = 0; j < columns; j++) {
+            infoRow.createCell(j).setCellValue(names[j]);
+        }
+        for (int i = 0; i < rows; i++) {
+            Row row = sheet.createRow(i + 1);
+            for (int j = 0; j < columns; j++) {
+                switch (j % 3) {
+                    case 0:
+                        row.createCell(j).setCellValue(cellText(random, j));
+                        break;
+                    case 1:
+                        row.createCell(j).setCellValue(random.nextInt(1_000_000));
+                        break;
+                    default:
+                        row.createCell(j).setCellValue(random.nextDouble() * 1000);
+                }
+            }
+        }
+
+        File file = File.createTempFile("benchmark", suffix);
+        file.deleteOnExit();
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file))) {
+            workbook.write(outputStream);
+        } finally {
+            workbook.close();
+        }
+        return file;
+    }
+
+    private static String cellText(Random random, int column) {
+        return "Reikšmė " + column + "-" + random.nextInt(100_000);
+    }
+}
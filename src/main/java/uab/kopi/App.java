@@ -1,11 +1,26 @@
 package uab.kopi;
 
+import java.util.Arrays;
+
 /**
- * Used to launch the application from JAR
+ * Used to launch the application from JAR. Starting it with {@code batch} as the first argument runs the headless
+ * {@link BatchApp}, with {@code watch} the {@link WatchApp} daemon and with {@code serve} the {@link ServeApp} HTTP
+ * service, instead of the graphical interface. With {@code train} it makes the {@link StartupTraining} run,
+ * from which the class-data sharing archive of the startup distribution is recorded.
  */
 public class App {
 
     public static void main(String[] args) {
-        Main.main(args);
+        if (args.length > 0 && args[0].equals("batch")) {
+            BatchApp.main(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args.length > 0 && args[0].equals("watch")) {
+            WatchApp.main(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args.length > 0 && args[0].equals("serve")) {
+            ServeApp.main(Arrays.copyOfRange(args, 1, args.length));
+        } else if (args.length > 0 && args[0].equals("train")) {
+            StartupTraining.main(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            Main.main(args);
+        }
     }
 }
@@ -0,0 +1,199 @@
+package uab.kopi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uab.kopi.services.ExcelProcessor;
+import uab.kopi.services.ProcessingException;
+import uab.kopi.services.SamplingJob;
+import uab.kopi.services.SamplingOptions;
+import uab.kopi.services.SamplingResult;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless entry point that samples every Excel and CSV file of an input directory without the graphical interface.
+ * Files are processed in parallel on a worker pool sized to the available cores. The results of each file are saved
+ * in their own folder inside the output directory, named after the source file. Errors are written to the logs instead
+ * of being shown in dialogs.
+ * <p>
+ * Usage: {@code App batch --input <dir> --output <dir> (--count <n> | --percent <p>) [--seed <s>] [--threads <n>]
+ * [--copy-mode text|typed] [--strata <column> [--allocation proportional|fixed]] [--sheets first|all]
+ * [--index next-to-file|<dir>] [--output-format xlsx|csv] [--csv-charset <name>] [--csv-delimiter <char>|tab]
+ * [--mapping text|compact] [--shard-rows <n> [--shard-mode sheets|files]] [--samples <n> [--overlap yes|no]]
+ * [--filter <condition>]... [--weight <column>] [--shared-strings memory|disk]}
+ * <p>
+ * Each {@code --filter}, such as {@code --filter "Suma > 10000"}, keeps only the rows meeting the condition, as
+ * described in {@link uab.kopi.services.RowFilter}. With {@code --weight} the rows are selected with probability
+ * proportional to the values of the column, as in monetary-unit sampling. With {@code --shared-strings disk} the
+ * shared strings of .xlsx files are kept in a temporary file instead of memory while the file is read.
+ * <p>
+ * The process exits with 0 if every file was processed, 1 if any file failed and 2 if the arguments are invalid.
+ */
+public class BatchApp {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchApp.class);
+    private static final int EXIT_FAILED_FILES = 1;
+    private static final int EXIT_USAGE = 2;
+    private static final String USAGE = "Usage: App batch --input <dir> --output <dir> [--threads <n>] "
+            + SamplingArguments.USAGE;
+
+    private File inputFolder;
+    private File outputFolder;
+    private SamplingOptions options;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) {
+        BatchApp app = new BatchApp();
+        try {
+            app.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(EXIT_USAGE);
+        }
+        System.exit(app.run());
+    }
+
+    /**
+     * Reads the command line options.
+     *
+     * @param args The command line arguments.
+     * @throws IllegalArgumentException If an option is missing or invalid.
+     */
+    private void parseArguments(String[] args) {
+        SamplingArguments sampling = new SamplingArguments();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--input":
+                        inputFolder = new File(value);
+                        break;
+                    case "--output":
+                        outputFolder = new File(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    default:
+                        if (!sampling.accept(option, value)) {
+                            throw new IllegalArgumentException("Unknown option " + option);
+                        }
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+            }
+        }
+
+        if (inputFolder == null || !inputFolder.isDirectory()) {
+            throw new IllegalArgumentException("The input directory is missing or does not exist");
+        }
+        if (outputFolder == null) {
+            throw new IllegalArgumentException("The output directory is missing");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive");
+        }
+        options = sampling.build();
+    }
+
+    /**
+     * Processes every Excel file of the input directory and reports the throughput.
+     *
+     * @return The exit code of the process.
+     */
+    private int run() {
+        List<File> files = listExcelFiles();
+        logger.info("Batch processing {} files from {} on {} threads", files.size(), inputFolder.getAbsolutePath(), threads);
+
+        long start = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, Math.max(files.size(), 1)));
+        List<Future<SamplingResult>> results = new ArrayList<>(files.size());
+        for (File file : files) {
+            results.add(workers.submit(() -> processOne(file, outputFolder, options)));
+        }
+        workers.shutdown();
+
+        int failed = 0;
+        long rows = 0;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                rows += results.get(i).get().getDataRowCount();
+            } catch (ExecutionException e) {
+                failed++;
+                logger.error("Failed to process {}: {}", files.get(i).getName(), e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                workers.shutdownNow();
+                logger.error("Batch processing was interrupted");
+                return EXIT_FAILED_FILES;
+            }
+        }
+
+        double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+        String summary = String.format(Locale.ROOT,
+                "Processed %d files (%d failed) and %d data rows in %.2f s: %.2f files/s, %.0f rows/s",
+                files.size(), failed, rows, seconds, files.size() / seconds, rows / seconds);
+        logger.info(summary);
+        System.out.println(summary);
+        return failed == 0 ? 0 : EXIT_FAILED_FILES;
+    }
+
+    /**
+     * Processes a single file into its own folder in the output directory.
+     *
+     * @param file         The Excel or CSV file to process.
+     * @param outputFolder The directory holding the folders of the results.
+     * @param options      How the file is sampled.
+     * @return The outcome of the processing.
+     * @throws ProcessingException If the file could not be processed.
+     */
+    static SamplingResult processOne(File file, File outputFolder, SamplingOptions options) throws ProcessingException {
+        // Keep the extension in the folder name, so that report.xls and report.xlsx do not overwrite each other
+        File folder = new File(outputFolder, file.getName().replace('.', '_'));
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            logger.error("Could not create the output folder {}", folder.getAbsolutePath());
+            throw new ProcessingException("Nepavyko sukurti aplanko " + folder.getAbsolutePath());
+        }
+        return new ExcelProcessor(new SamplingJob(file, folder, options)).process();
+    }
+
+    /**
+     * Tells whether a file is one this application samples, by its name. The lock files Excel creates for open
+     * workbooks are skipped.
+     *
+     * @param file The file.
+     * @return True for Excel and CSV files.
+     */
+    static boolean isSampledFile(File file) {
+        String lowerName = file.getName().toLowerCase(Locale.ROOT);
+        return !ExcelProcessor.isLockFile(file) && (lowerName.endsWith(".xlsx") || lowerName.endsWith(".xls")
+                || lowerName.endsWith(".csv") || lowerName.endsWith(".tsv"));
+    }
+
+    /**
+     * Lists the Excel and CSV files of the input directory.
+     *
+     * @return The files to process, sorted by name.
+     */
+    private List<File> listExcelFiles() {
+        File[] files = inputFolder.listFiles(BatchApp::isSampledFile);
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+}
@@ -1,6 +1,7 @@
 package uab.kopi;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -9,11 +10,20 @@ import javafx.scene.layout.*;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
-import uab.kopi.services.ExcelProcessor;
+import uab.kopi.services.CopyMode;
+import uab.kopi.services.FileScan;
+import uab.kopi.services.OutputFormat;
+import uab.kopi.services.ProcessingException;
+import uab.kopi.services.SamplingJob;
+import uab.kopi.services.SamplingOptions;
+import uab.kopi.services.SamplingResult;
+import uab.kopi.services.StratumAllocation;
 
 import java.io.File;
+import java.util.stream.Collectors;
 
 import static uab.kopi.services.Alerter.displayError;
+import static uab.kopi.services.Alerter.displayResult;
 
 /**
  * The main class for the data processing application. It provides a graphical user interface for randomly selecting data
@@ -22,20 +32,41 @@ import static uab.kopi.services.Alerter.displayError;
  */
 public class Main extends Application {
 
+    /**
+     * The system property which, set to true, closes the application as soon as the window is shown. The training run
+     * of the startup distribution and the startup benchmark set it.
+     */
+    static final String CLOSE_WHEN_SHOWN = "generuoklis.closeWhenShown";
+
     private File selectedFile;
     private File selectedFolder;
     private Stage primaryStage;
     private Label importedFileLabel;
+    private Label fileInfoLabel;
     private Label selectedFolderLabel;
     private ToggleGroup choiceGroup;
     private TextField valueTextField;
+    private TextField seedTextField;
+    private CheckBox keepTypesCheckBox;
+    private TextField stratumTextField;
+    private CheckBox fixedAllocationCheckBox;
+    private CheckBox allSheetsCheckBox;
+    private CheckBox scanIndexCheckBox;
+    private CheckBox csvOutputCheckBox;
+    private Button processButton;
+    private Button cancelButton;
+    private ProgressBar progressBar;
+    private Label statusLabel;
+    private ProcessingTask currentTask;
+    private ScanTask scanTask;
 
     public static void main(String[] args) {
         launch(args);
     }
 
     /**
-     * Initializes and displays the primary stage of the JavaFX application.
+     * Initializes and displays the primary stage of the JavaFX application. The classes processing a file needs are
+     * only loaded once a file is chosen, from the class-data sharing archive if the application was started with one.
      *
      * @param stage The primary stage of the application.
      */
@@ -46,6 +77,10 @@ public class Main extends Application {
         Scene scene = createMainScene();
         primaryStage.setScene(scene);
         primaryStage.show();
+        if (Boolean.getBoolean(CLOSE_WHEN_SHOWN)) {
+            // Runs after the events of showing the window, and the benchmark times the run until the process exits
+            Platform.runLater(Platform::exit);
+        }
     }
 
     /**
@@ -62,24 +97,48 @@ public class Main extends Application {
         Label logoLabel = createLogoLabel();
         Button importButton = createImportButton();
         importedFileLabel = new Label("Importuotas failas: Nepasirinkta");
+        fileInfoLabel = new Label();
         HBox choiceBox = createChoiceBox();
         valueTextField = createValueTextField();
+        seedTextField = createSeedTextField();
+        keepTypesCheckBox = new CheckBox("Išlaikyti skaičių ir datų tipus");
+        stratumTextField = createStratumTextField();
+        fixedAllocationCheckBox = new CheckBox("Po tiek pat eilučių iš kiekvieno sluoksnio");
+        allSheetsCheckBox = new CheckBox("Apdoroti visus lapus");
+        scanIndexCheckBox = new CheckBox("Išsaugoti failo indeksą pakartotinei atrankai");
+        csvOutputCheckBox = new CheckBox("Išsaugoti atrinktas eilutes CSV formatu");
         Button selectDestinationButton = createSelectDestinationButton();
         selectedFolderLabel = new Label("Išsaugojimo vieta: Nepasirinkta");
-        Button processButton = createProcessButton();
+        processButton = createProcessButton();
+        cancelButton = createCancelButton();
+        HBox actionBox = new HBox(10, processButton, cancelButton);
+        actionBox.setAlignment(Pos.CENTER);
+        progressBar = new ProgressBar(0);
+        progressBar.setPrefWidth(250);
+        statusLabel = new Label();
 
         root.getChildren().addAll(
                 logoLabel,
                 importButton,
                 importedFileLabel,
+                fileInfoLabel,
                 choiceBox,
                 valueTextField,
+                seedTextField,
+                keepTypesCheckBox,
+                stratumTextField,
+                fixedAllocationCheckBox,
+                allSheetsCheckBox,
+                scanIndexCheckBox,
+                csvOutputCheckBox,
                 selectDestinationButton,
                 selectedFolderLabel,
-                processButton
+                actionBox,
+                progressBar,
+                statusLabel
         );
 
-        Scene scene = new Scene(root, 400, 500);
+        Scene scene = new Scene(root, 400, 880);
         scene.getRoot().setStyle("-fx-font-family: 'serif'");
         return scene;
     }
@@ -96,7 +155,8 @@ public class Main extends Application {
     }
 
     /**
-     * Creates a button for importing Excel files and sets its action to open a FileChooser dialog.
+     * Creates a button for importing Excel files and sets its action to open a FileChooser dialog. The chosen file
+     * starts being scanned in the background right away.
      *
      * @return The button for importing Excel files.
      */
@@ -106,16 +166,54 @@ public class Main extends Application {
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Pasirinkti Excel failą");
             fileChooser.getExtensionFilters().add(
-                    new FileChooser.ExtensionFilter("Excel Files", "*.xls", "*.xlsx")
+                    new FileChooser.ExtensionFilter("Excel and CSV Files", "*.xls", "*.xlsx", "*.csv", "*.tsv")
             );
             selectedFile = fileChooser.showOpenDialog(primaryStage);
             if (selectedFile != null) {
                 importedFileLabel.setText("Importuotas failas: " + selectedFile.getName());
+                startScan(selectedFile);
             }
         });
         return importButton;
     }
 
+    /**
+     * Starts scanning the chosen file on a background thread, throwing away the scan of the file chosen before. The
+     * number of data rows is shown once the scan ends. A failed scan is not reported, as the processing scans the
+     * file again and reports the error then.
+     *
+     * @param file The chosen file.
+     */
+    private void startScan(File file) {
+        if (scanTask != null) {
+            scanTask.cancel();
+        }
+        ScanTask task = new ScanTask(file);
+        fileInfoLabel.textProperty().bind(task.messageProperty());
+
+        // The handlers run on the JavaFX Application Thread, and only the scan of the current file is shown
+        task.setOnSucceeded(e -> {
+            if (task == scanTask) {
+                fileInfoLabel.textProperty().unbind();
+                FileScan scan = task.getValue();
+                fileInfoLabel.setText(scan.hasInfoRow()
+                        ? "Duomenų eilučių: " + scan.getDataRowCount() + ", stulpelių: " + scan.getInfoRow().size()
+                        : "Faile nerasta informacinės eilutės");
+            }
+        });
+        task.setOnFailed(e -> {
+            if (task == scanTask) {
+                fileInfoLabel.textProperty().unbind();
+                fileInfoLabel.setText("");
+            }
+        });
+
+        scanTask = task;
+        Thread worker = new Thread(task, "scanning");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
     /**
      * Creates a horizontal box containing radio buttons for choosing the processing option: percentage or quantity.
      *
@@ -144,6 +242,31 @@ public class Main extends Application {
         return valueTextField;
     }
 
+    /**
+     * Creates a text field for entering an optional seed, so that the same random selection can be generated again.
+     *
+     * @return The text field for entering the seed.
+     */
+    private TextField createSeedTextField() {
+        TextField seedTextField = new TextField();
+        seedTextField.setPromptText("Sėkla (nebūtina)...");
+        seedTextField.setMaxWidth(200); // Limit width
+        return seedTextField;
+    }
+
+    /**
+     * Creates a text field for entering the name of an optional column, whose values split the rows into strata that
+     * are sampled separately.
+     *
+     * @return The text field for entering the stratum column.
+     */
+    private TextField createStratumTextField() {
+        TextField stratumTextField = new TextField();
+        stratumTextField.setPromptText("Sluoksniavimo stulpelis (nebūtina)...");
+        stratumTextField.setMaxWidth(200); // Limit width
+        return stratumTextField;
+    }
+
     /**
      * Creates a button for selecting the destination folder and sets its action to open a DirectoryChooser dialog.
      *
@@ -188,13 +311,18 @@ public class Main extends Application {
             if (selectedFile == null || selectedFolder == null || selectedChoice == null) {
                 displayError("Pasirinkite failą, išsaugojimo vietą ir būtinai pasirinkite vieną iš pasirinkimo punktų.");
             } else {
+                Long seed = parseSeed();
+                if (seed == null && !seedTextField.getText().isBlank()) {
+                    displayError("Netinkama sėklos reikšmė. Sėkla turi būti sveikasis skaičius.");
+                    return;
+                }
                 String value = valueTextField.getText();
                 if (selectedChoice.equals("Procentai")) {
                     try {
                         double proportionValue = Double.parseDouble(value);
                         if (proportionValue >= 0 && proportionValue <= 100) {
                             // Initiate data processing with the selected options
-                            ExcelProcessor.processFile(selectedFile, selectedFolder, proportionValue, true);
+                            startProcessing(proportionValue, true, seed);
                         } else {
                             displayError("Procentai turi būti nuo 0 iki 100.");
                         }
@@ -206,7 +334,7 @@ public class Main extends Application {
                         int amountValue = Integer.parseInt(value);
                         if (amountValue >= 0) {
                             // Initiate data processing with the selected options
-                            ExcelProcessor.processFile(selectedFile, selectedFolder, amountValue, false);
+                            startProcessing(amountValue, false, seed);
                         } else {
                             displayError("Kiekis turi būti neneigiamas sveikasis skaičius.");
                         }
@@ -219,5 +347,120 @@ public class Main extends Application {
 
         return processButton;
     }
-}
 
+    /**
+     * Creates a button for cancelling the processing that is running. It is enabled only while processing runs.
+     *
+     * @return The button for cancelling the processing.
+     */
+    private Button createCancelButton() {
+        Button cancelButton = new Button("Atšaukti");
+        cancelButton.setDisable(true);
+        cancelButton.setOnAction(e -> {
+            if (currentTask != null) {
+                currentTask.cancel();
+            }
+        });
+        return cancelButton;
+    }
+
+    /**
+     * Starts processing the selected file on a background thread. The progress bar and the status label follow the
+     * task, and the outcome is shown once the task ends.
+     *
+     * @param number    The number of rows or percentage of rows to be selected.
+     * @param isPercent Indicates whether 'number' is a percentage.
+     * @param seed      The seed for the random selection, or null to pick a new one.
+     */
+    private void startProcessing(double number, boolean isPercent, Long seed) {
+        SamplingOptions.Builder options = SamplingOptions.builder()
+                .seed(seed)
+                .copyMode(keepTypesCheckBox.isSelected() ? CopyMode.TYPED : CopyMode.TEXT)
+                .allSheets(allSheetsCheckBox.isSelected())
+                .outputFormat(csvOutputCheckBox.isSelected() ? OutputFormat.CSV : OutputFormat.XLSX);
+        String stratumColumn = stratumTextField.getText().trim();
+        if (!stratumColumn.isEmpty()) {
+            options.stratify(stratumColumn, fixedAllocationCheckBox.isSelected()
+                    ? StratumAllocation.FIXED
+                    : StratumAllocation.PROPORTIONAL);
+        }
+        if (scanIndexCheckBox.isSelected()) {
+            // Kept next to the file, so that it is found whichever folder the results go to
+            options.scanIndex(null);
+        }
+        if (isPercent) {
+            options.percent(number);
+        } else {
+            options.count((int) number);
+        }
+        // The scan of the chosen file, finished or not, spares the processing from reading the file twice
+        ScanTask scan = scanTask != null && scanTask.getFile().equals(selectedFile) ? scanTask : null;
+        ProcessingTask task = new ProcessingTask(new SamplingJob(selectedFile, selectedFolder, options.build()), scan);
+        progressBar.progressProperty().bind(task.progressProperty());
+        statusLabel.textProperty().bind(task.messageProperty());
+        processButton.setDisable(true);
+        cancelButton.setDisable(false);
+
+        // The handlers run on the JavaFX Application Thread
+        task.setOnSucceeded(e -> {
+            finishProcessing();
+            showResult(task.getValue());
+        });
+        task.setOnFailed(e -> {
+            finishProcessing();
+            Throwable error = task.getException();
+            displayError(error instanceof ProcessingException ? error.getMessage() : "Nežinoma klaida.");
+        });
+        task.setOnCancelled(e -> {
+            finishProcessing();
+            progressBar.setProgress(0);
+            statusLabel.setText("Atšaukta");
+        });
+
+        currentTask = task;
+        Thread worker = new Thread(task, "processing");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Detaches the progress controls from the finished task and enables the buttons again.
+     */
+    private void finishProcessing() {
+        progressBar.progressProperty().unbind();
+        statusLabel.textProperty().unbind();
+        processButton.setDisable(false);
+        cancelButton.setDisable(true);
+        currentTask = null;
+    }
+
+    /**
+     * Tells the user where the results were saved.
+     *
+     * @param result The outcome of the processing.
+     */
+    private void showResult(SamplingResult result) {
+        String outputNames = result.getOutputFiles().stream().map(File::getName).collect(Collectors.joining(", "));
+        displayResult("Duomenys sėkmingai apdoroti ir išsaugoti.\n\nAtrinktos eilutės išsaugotos: " + outputNames +
+                ".\n\nDuomenų apdorojimo paaiškinimas išsaugotas faile " + result.getTextFile().getName() +
+                ".\n\nFailai išsaugoti: " + result.getTextFile().getParent() +
+                "\n\nAtsitiktinės atrankos sėkla: " + result.getSeed());
+    }
+
+    /**
+     * Parses the seed entered by the user.
+     *
+     * @return The seed, or null if the field is empty or does not hold a whole number.
+     */
+    private Long parseSeed() {
+        String value = seedTextField.getText().trim();
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+}
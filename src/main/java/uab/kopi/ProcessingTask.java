@@ -0,0 +1,131 @@
+package uab.kopi;
+
+import javafx.concurrent.Task;
+import uab.kopi.services.ExcelProcessor;
+import uab.kopi.services.FileScan;
+import uab.kopi.services.ProcessingPhase;
+import uab.kopi.services.ProgressListener;
+import uab.kopi.services.SamplingJob;
+import uab.kopi.services.SamplingResult;
+
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the processing of a file in the background, so that the window stays responsive. The current phase and the
+ * number of rows handled per second are published as the task message, and the progress advances with each phase.
+ * Cancelling the task stops the processing at the next row check and removes any files it has already written.
+ * <p>
+ * If the file is still being scanned in the background, the task waits for the scan and gives it to the job, so the
+ * file is not read twice. A scan that fails or is cancelled is left out, and the job scans the file itself.
+ */
+public class ProcessingTask extends Task<SamplingResult> {
+
+    private static final int PHASE_COUNT = ProcessingPhase.values().length;
+
+    private final SamplingJob job;
+    private final Future<FileScan> scan;
+
+    /**
+     * @param job The job to run.
+     */
+    public ProcessingTask(SamplingJob job) {
+        this(job, null);
+    }
+
+    /**
+     * @param job  The job to run.
+     * @param scan The scan of the job's file running in the background, or null.
+     */
+    public ProcessingTask(SamplingJob job, Future<FileScan> scan) {
+        this.job = job;
+        this.scan = scan;
+    }
+
+    @Override
+    protected SamplingResult call() throws Exception {
+        return new ExcelProcessor(awaitScan()).process(new ProgressListener() {
+
+            private ProcessingPhase phase;
+            private long phaseStart;
+
+            @Override
+            public void onPhase(ProcessingPhase phase) {
+                this.phase = phase;
+                this.phaseStart = System.nanoTime();
+                updateProgress(phase.ordinal(), PHASE_COUNT);
+                updateMessage(describe(phase));
+            }
+
+            @Override
+            public void onRows(long rows) {
+                double seconds = Math.max((System.nanoTime() - phaseStart) / 1e9, 1e-9);
+                updateMessage(String.format(Locale.ROOT, "%s: %d eil. (%.0f eil./s)", describe(phase), rows, rows / seconds));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return ProcessingTask.this.isCancelled();
+            }
+        });
+    }
+
+    /**
+     * Waits for the background scan of the file to finish, checking for cancellation in between.
+     *
+     * @return The job, given the scan if it succeeded.
+     * @throws InterruptedException  If the thread is interrupted while waiting.
+     * @throws CancellationException If the task is cancelled while waiting.
+     */
+    private SamplingJob awaitScan() throws InterruptedException {
+        if (scan == null) {
+            return job;
+        }
+        updateMessage("Baigiamas skaityti failas");
+        while (true) {
+            try {
+                FileScan result = scan.get(100, TimeUnit.MILLISECONDS);
+                return new SamplingJob(job.getFile(), job.getOutputFolder(), job.getOptions(), result);
+            } catch (TimeoutException e) {
+                if (isCancelled()) {
+                    throw new CancellationException();
+                }
+            } catch (ExecutionException | CancellationException e) {
+                // The job scans the file itself and reports what went wrong
+                return job;
+            }
+        }
+    }
+
+    @Override
+    protected void succeeded() {
+        updateProgress(PHASE_COUNT, PHASE_COUNT);
+        updateMessage("Baigta");
+    }
+
+    /**
+     * Describes a processing phase to the user.
+     *
+     * @param phase The processing phase.
+     * @return The description of the phase.
+     */
+    private static String describe(ProcessingPhase phase) {
+        switch (phase) {
+            case OPEN:
+                return "Atidaromas failas";
+            case SCAN:
+                return "Skaitomos eilutės";
+            case SELECT:
+                return "Atrenkamos eilutės";
+            case COPY:
+                return "Kopijuojamos eilutės";
+            case WRITE:
+            default:
+                return "Rašomi failai";
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package uab.kopi;
+
+import uab.kopi.services.CopyMode;
+import uab.kopi.services.CsvFormat;
+import uab.kopi.services.MappingFormat;
+import uab.kopi.services.OutputFormat;
+import uab.kopi.services.SamplingOptions;
+import uab.kopi.services.ShardMode;
+import uab.kopi.services.StratumAllocation;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Reads the command line options describing how files are sampled, shared by the headless entry points. Each entry
+ * point passes on the options it does not know itself.
+ */
+class SamplingArguments {
+
+    static final String USAGE = "(--count <n> | --percent <p>) [--seed <s>] [--copy-mode text|typed] "
+            + "[--strata <column> [--allocation proportional|fixed]] [--sheets first|all] [--index next-to-file|<dir>] "
+            + "[--output-format xlsx|csv] [--csv-charset <name>] [--csv-delimiter <char>|tab] [--mapping text|compact] "
+            + "[--shard-rows <n> [--shard-mode sheets|files]] [--samples <n> [--overlap yes|no]] "
+            + "[--filter <condition>]... [--weight <column>] [--shared-strings memory|disk]";
+
+    private final SamplingOptions.Builder builder = SamplingOptions.builder();
+    private boolean hasNumber;
+    private String stratumColumn;
+    private StratumAllocation allocation = StratumAllocation.PROPORTIONAL;
+    private Charset csvCharset = CsvFormat.DEFAULT.getCharset();
+    private Character csvDelimiter;
+    private int shardRows = SamplingOptions.MAX_SHEET_ROWS;
+    private ShardMode shardMode = ShardMode.SHEETS;
+    private int sampleCount = 1;
+    private boolean overlapping = true;
+
+    /**
+     * Reads an option if it is one of the sampling options.
+     *
+     * @param option The name of the option.
+     * @param value  The value of the option.
+     * @return False if the option is not a sampling option.
+     * @throws IllegalArgumentException If the value is invalid.
+     * @throws NumberFormatException   If a number is expected but the value is not one.
+     */
+    boolean accept(String option, String value) {
+        switch (option) {
+            case "--count":
+                builder.count(Integer.parseInt(value));
+                hasNumber = true;
+                return true;
+            case "--percent":
+                builder.percent(Double.parseDouble(value));
+                hasNumber = true;
+                return true;
+            case "--seed":
+                builder.seed(Long.parseLong(value));
+                return true;
+            case "--copy-mode":
+                builder.copyMode(parseCopyMode(value));
+                return true;
+            case "--strata":
+                stratumColumn = value;
+                return true;
+            case "--allocation":
+                allocation = parseAllocation(value);
+                return true;
+            case "--sheets":
+                builder.allSheets(parseAllSheets(value));
+                return true;
+            case "--index":
+                builder.scanIndex("next-to-file".equals(value) ? null : new File(value));
+                return true;
+            case "--output-format":
+                builder.outputFormat(parseOutputFormat(value));
+                return true;
+            case "--csv-charset":
+                csvCharset = parseCharset(value);
+                return true;
+            case "--csv-delimiter":
+                csvDelimiter = parseDelimiter(value);
+                return true;
+            case "--mapping":
+                builder.mappingFormat(parseMappingFormat(value));
+                return true;
+            case "--shard-rows":
+                shardRows = Integer.parseInt(value);
+                return true;
+            case "--shard-mode":
+                shardMode = parseShardMode(value);
+                return true;
+            case "--samples":
+                sampleCount = Integer.parseInt(value);
+                return true;
+            case "--overlap":
+                overlapping = parseOverlap(value);
+                return true;
+            case "--filter":
+                builder.filter(value);
+                return true;
+            case "--weight":
+                builder.weight(value);
+                return true;
+            case "--shared-strings":
+                builder.sharedStringsOnDisk(parseSharedStringsOnDisk(value));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return The options read so far.
+     * @throws IllegalArgumentException If neither the count nor the percent was given, or the options are invalid.
+     */
+    SamplingOptions build() {
+        if (!hasNumber) {
+            throw new IllegalArgumentException("Either --count or --percent must be given");
+        }
+        return builder.stratify(stratumColumn, allocation)
+                .csvFormat(new CsvFormat(csvCharset, csvDelimiter))
+                .shard(shardRows, shardMode)
+                .samples(sampleCount, overlapping)
+                .build();
+    }
+
+    /**
+     * Reads the copy mode option.
+     *
+     * @param value The value of the option, either text or typed.
+     * @return The copy mode.
+     * @throws IllegalArgumentException If the value is not a known copy mode.
+     */
+    private static CopyMode parseCopyMode(String value) {
+        try {
+            return CopyMode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid copy mode: " + value);
+        }
+    }
+
+    /**
+     * Reads the stratum allocation option.
+     *
+     * @param value The value of the option, either proportional or fixed.
+     * @return The stratum allocation.
+     * @throws IllegalArgumentException If the value is not a known allocation.
+     */
+    private static StratumAllocation parseAllocation(String value) {
+        try {
+            return StratumAllocation.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid allocation: " + value);
+        }
+    }
+
+    /**
+     * Reads the sheets option.
+     *
+     * @param value The value of the option, either first or all.
+     * @return Whether every sheet is sampled.
+     * @throws IllegalArgumentException If the value is not a known sheets option.
+     */
+    private static boolean parseAllSheets(String value) {
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "first":
+                return false;
+            case "all":
+                return true;
+            default:
+                throw new IllegalArgumentException("Invalid sheets option: " + value);
+        }
+    }
+
+    /**
+     * Reads the output format option.
+     *
+     * @param value The value of the option, either xlsx or csv.
+     * @return The output format.
+     * @throws IllegalArgumentException If the value is not a known output format.
+     */
+    private static OutputFormat parseOutputFormat(String value) {
+        try {
+            return OutputFormat.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid output format: " + value);
+        }
+    }
+
+    /**
+     * Reads the mapping format option.
+     *
+     * @param value The value of the option, either text or compact.
+     * @return The mapping format.
+     * @throws IllegalArgumentException If the value is not a known mapping format.
+     */
+    private static MappingFormat parseMappingFormat(String value) {
+        try {
+            return MappingFormat.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid mapping format: " + value);
+        }
+    }
+
+    /**
+     * Reads the shard mode option.
+     *
+     * @param value The value of the option, either sheets or files.
+     * @return The shard mode.
+     * @throws IllegalArgumentException If the value is not a known shard mode.
+     */
+    private static ShardMode parseShardMode(String value) {
+        try {
+            return ShardMode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid shard mode: " + value);
+        }
+    }
+
+    /**
+     * Reads the overlap option.
+     *
+     * @param value The value of the option, either yes or no.
+     * @return Whether a row can be selected into several samples.
+     * @throws IllegalArgumentException If the value is neither yes nor no.
+     */
+    private static boolean parseOverlap(String value) {
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "yes":
+                return true;
+            case "no":
+                return false;
+            default:
+                throw new IllegalArgumentException("Invalid overlap option: " + value);
+        }
+    }
+
+    /**
+     * Reads the shared strings option.
+     *
+     * @param value The value of the option, either memory or disk.
+     * @return Whether the shared strings are kept in a temporary file.
+     * @throws IllegalArgumentException If the value is not a known shared strings option.
+     */
+    private static boolean parseSharedStringsOnDisk(String value) {
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "memory":
+                return false;
+            case "disk":
+                return true;
+            default:
+                throw new IllegalArgumentException("Invalid shared strings option: " + value);
+        }
+    }
+
+    /**
+     * Reads the CSV character set option.
+     *
+     * @param value The name of the character set, such as UTF-8 or windows-1257.
+     * @return The character set.
+     * @throws IllegalArgumentException If the character set is not known.
+     */
+    private static Charset parseCharset(String value) {
+        try {
+            return Charset.forName(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid character set: " + value);
+        }
+    }
+
+    /**
+     * Reads the CSV delimiter option.
+     *
+     * @param value A single character, or tab.
+     * @return The delimiter.
+     * @throws IllegalArgumentException If the value is neither a single character nor tab.
+     */
+    private static char parseDelimiter(String value) {
+        if ("tab".equalsIgnoreCase(value)) {
+            return '\t';
+        }
+        if (value.length() != 1) {
+            throw new IllegalArgumentException("Invalid delimiter: " + value);
+        }
+        return value.charAt(0);
+    }
+
+}
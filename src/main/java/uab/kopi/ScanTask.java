@@ -0,0 +1,54 @@
+package uab.kopi;
+
+import javafx.concurrent.Task;
+import uab.kopi.services.CsvFormat;
+import uab.kopi.services.FileScan;
+import uab.kopi.services.ProcessingPhase;
+import uab.kopi.services.ProgressListener;
+
+import java.io.File;
+
+/**
+ * Scans a chosen file in the background while the user sets the options, so that the processing started afterwards
+ * only selects and writes the rows. The number of rows read so far is published as the task message. The task is
+ * cancelled as soon as another file is chosen.
+ */
+public class ScanTask extends Task<FileScan> {
+
+    private final File file;
+
+    /**
+     * @param file The file to scan.
+     */
+    public ScanTask(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return The file being scanned.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    protected FileScan call() throws Exception {
+        return FileScan.scan(file, CsvFormat.DEFAULT, new ProgressListener() {
+
+            @Override
+            public void onPhase(ProcessingPhase phase) {
+                updateMessage("Skaitomas failas...");
+            }
+
+            @Override
+            public void onRows(long rows) {
+                updateMessage("Skaitomas failas: " + rows + " eil.");
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return ScanTask.this.isCancelled();
+            }
+        });
+    }
+}
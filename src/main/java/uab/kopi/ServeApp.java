@@ -0,0 +1,422 @@
+package uab.kopi;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uab.kopi.services.ExcelProcessor;
+import uab.kopi.services.ProcessingException;
+import uab.kopi.services.SamplingJob;
+import uab.kopi.services.SamplingOptions;
+import uab.kopi.services.SamplingResult;
+import uab.kopi.services.TempFolders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Headless entry point that serves sampling over HTTP on the server built into the JDK, so that other tools can sample
+ * files without the graphical interface and without any outside service.
+ * <p>
+ * A file is sampled by sending it as the body of {@code POST /sample}. The sampling options are given as query
+ * parameters named like the command line options of {@link BatchApp} without the leading dashes, for example
+ * {@code /sample?percent=10&seed=42&name=report.xlsx}. The {@code name} parameter gives the file name, which tells
+ * CSV and TSV files apart from workbooks. The response is a ZIP archive with the new files and the text explaining the
+ * processing, and carries the row counts and the seed in its headers.
+ * <p>
+ * The upload is streamed to a temporary file and the archive is streamed from the written files, so the heap use of a
+ * request does not grow with the size of the file. Requests are handled on a fixed pool of threads. At most the given
+ * number of jobs run at the same time; further requests are answered with 503 before their upload is read. Uploads
+ * larger than the size limit are answered with 413.
+ * <p>
+ * Usage: {@code App serve [--port <n>] [--bind <address>] [--threads <n>] [--max-jobs <n>] [--max-upload-mb <n>]
+ * [--work-dir <dir>]}
+ * <p>
+ * The server listens on the loopback address unless told otherwise. The process exits with 1 if the server cannot be
+ * started and 2 if the arguments are invalid; otherwise it runs until it is signalled.
+ */
+public class ServeApp {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServeApp.class);
+    private static final int EXIT_SERVER_FAILED = 1;
+    private static final int EXIT_USAGE = 2;
+    private static final String USAGE = "Usage: App serve [--port <n>] [--bind <address>] [--threads <n>] "
+            + "[--max-jobs <n>] [--max-upload-mb <n>] [--work-dir <dir>]";
+    private static final String SAMPLE_PATH = "/sample";
+    private static final String DEFAULT_FILE_NAME = "duomenys.xlsx";
+    private static final String ARCHIVE_NAME = "rezultatas.zip";
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int STOP_DELAY_SECONDS = 5;
+
+    private String bindAddress = "127.0.0.1";
+    private int port = 8080;
+    private int threads = Runtime.getRuntime().availableProcessors() * 2;
+    private int maxJobs = Runtime.getRuntime().availableProcessors();
+    private long maxUploadBytes = 256L * 1024 * 1024;
+    private Path workFolder = Paths.get(System.getProperty("java.io.tmpdir"));
+
+    private Semaphore jobPermits;
+
+    public static void main(String[] args) {
+        ServeApp app = new ServeApp();
+        try {
+            app.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(EXIT_USAGE);
+        }
+        if (!app.start()) {
+            System.exit(EXIT_SERVER_FAILED);
+        }
+    }
+
+    /**
+     * Reads the command line options.
+     *
+     * @param args The command line arguments.
+     * @throws IllegalArgumentException If an option is missing or invalid.
+     */
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--port":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--bind":
+                        bindAddress = value;
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--max-jobs":
+                        maxJobs = Integer.parseInt(value);
+                        break;
+                    case "--max-upload-mb":
+                        maxUploadBytes = Long.parseLong(value) * 1024 * 1024;
+                        break;
+                    case "--work-dir":
+                        workFolder = Paths.get(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+            }
+        }
+
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("The port must be from 0 to 65535");
+        }
+        if (threads < 1 || maxJobs < 1) {
+            throw new IllegalArgumentException("The number of threads and jobs must be positive");
+        }
+        if (maxUploadBytes < 1) {
+            throw new IllegalArgumentException("The upload size limit must be positive");
+        }
+        if (!Files.isDirectory(workFolder)) {
+            throw new IllegalArgumentException("The work directory does not exist");
+        }
+    }
+
+    /**
+     * Starts the server and stops it again when the process is signalled.
+     *
+     * @return False if the server could not be started.
+     */
+    private boolean start() {
+        HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        } catch (IOException e) {
+            logger.error("Could not listen on {}:{}", bindAddress, port, e);
+            return false;
+        }
+        jobPermits = new Semaphore(maxJobs);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, namedThreads());
+        server.createContext(SAMPLE_PATH, this::handleSample);
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Serving sampling at http://{}:{}{} with {} threads and at most {} jobs at a time",
+                bindAddress, server.getAddress().getPort(), SAMPLE_PATH, threads, maxJobs);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.info("Stopping the server");
+            server.stop(STOP_DELAY_SECONDS);
+            executor.shutdown();
+            try {
+                executor.awaitTermination(STOP_DELAY_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "serve-shutdown"));
+        return true;
+    }
+
+    /**
+     * Samples the uploaded file of a request and sends back the results.
+     *
+     * @param exchange The request and its response.
+     * @throws IOException If the connection fails.
+     */
+    private void handleSample(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, "Failą reikia siųsti POST užklausa.");
+                return;
+            }
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength != null && parseLength(contentLength) > maxUploadBytes) {
+                sendText(exchange, 413, "Failas per didelis. Didžiausias leidžiamas dydis: "
+                        + maxUploadBytes / (1024 * 1024) + " MB.");
+                return;
+            }
+
+            SamplingOptions options;
+            String fileName;
+            try {
+                List<String[]> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+                options = readOptions(parameters);
+                fileName = readFileName(parameters);
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, e.getMessage());
+                return;
+            }
+
+            if (!jobPermits.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "10");
+                sendText(exchange, 503, "Serveris užimtas, bandykite vėliau.");
+                return;
+            }
+            Path jobFolder = null;
+            try {
+                jobFolder = Files.createTempDirectory(workFolder, "sample-");
+                runJob(exchange, jobFolder, fileName, options);
+            } finally {
+                jobPermits.release();
+                if (jobFolder != null) {
+                    TempFolders.delete(jobFolder);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to handle a request from {}", exchange.getRemoteAddress(), e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Stores the upload of a request, samples it and streams back the results.
+     *
+     * @param exchange  The request and its response.
+     * @param jobFolder The temporary folder of the job, holding the upload and the results.
+     * @param fileName  The name of the uploaded file.
+     * @param options   How the file is sampled.
+     * @throws IOException If the connection fails.
+     */
+    private void runJob(HttpExchange exchange, Path jobFolder, String fileName, SamplingOptions options)
+            throws IOException {
+        File upload = jobFolder.resolve(fileName).toFile();
+        if (!receiveUpload(exchange.getRequestBody(), upload)) {
+            sendText(exchange, 413, "Failas per didelis. Didžiausias leidžiamas dydis: "
+                    + maxUploadBytes / (1024 * 1024) + " MB.");
+            return;
+        }
+        File outputFolder = Files.createDirectory(jobFolder.resolve("rezultatai")).toFile();
+        logger.info("Sampling {} ({} bytes) uploaded by {}", fileName, upload.length(), exchange.getRemoteAddress());
+
+        SamplingResult result;
+        try {
+            result = new ExcelProcessor(new SamplingJob(upload, outputFolder, options)).process();
+        } catch (ProcessingException e) {
+            sendText(exchange, 422, e.getMessage());
+            return;
+        }
+
+        List<File> files = new ArrayList<>(result.getOutputFiles());
+        files.addAll(result.getTextFiles());
+        exchange.getResponseHeaders().set("Content-Type", "application/zip");
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + ARCHIVE_NAME + "\"");
+        exchange.getResponseHeaders().set("X-Data-Rows", String.valueOf(result.getDataRowCount()));
+        exchange.getResponseHeaders().set("X-Sampled-Rows", String.valueOf(result.getSampledRowCount()));
+        exchange.getResponseHeaders().set("X-Seed", String.valueOf(result.getSeed()));
+        // A length of zero sends the archive in chunks as it is written
+        exchange.sendResponseHeaders(200, 0);
+        try (ZipOutputStream zip = new ZipOutputStream(exchange.getResponseBody())) {
+            // The workbooks are compressed already, so spend little time on them
+            zip.setLevel(Deflater.BEST_SPEED);
+            for (File file : files) {
+                // Several samples are saved in folders of their own, which the archive keeps
+                String entryName = outputFolder.toPath().relativize(file.toPath()).toString().replace('\\', '/');
+                zip.putNextEntry(new ZipEntry(entryName));
+                Files.copy(file.toPath(), zip);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Copies the body of a request to a file, stopping as soon as it passes the size limit.
+     *
+     * @param body   The body of the request.
+     * @param upload The file receiving it.
+     * @return False if the body is larger than the limit.
+     * @throws IOException If the body cannot be read or the file written.
+     */
+    private boolean receiveUpload(InputStream body, File upload) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        try (OutputStream out = Files.newOutputStream(upload.toPath())) {
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                total += read;
+                if (total > maxUploadBytes) {
+                    return false;
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the sampling options of a request.
+     *
+     * @param parameters The query parameters of the request.
+     * @return The sampling options.
+     * @throws IllegalArgumentException If an option is unknown or invalid.
+     */
+    private static SamplingOptions readOptions(List<String[]> parameters) {
+        SamplingArguments sampling = new SamplingArguments();
+        for (String[] parameter : parameters) {
+            String name = parameter[0];
+            String value = parameter[1];
+            if (name.equals("name")) {
+                continue;
+            }
+            if (name.equals("index")) {
+                // The upload is deleted after the job, and clients must not choose where the server writes
+                throw new IllegalArgumentException("The index option is not available over HTTP");
+            }
+            try {
+                if (!sampling.accept("--" + name, value)) {
+                    throw new IllegalArgumentException("Unknown option " + name);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for " + name + ": " + value);
+            }
+        }
+        return sampling.build();
+    }
+
+    /**
+     * Reads the name of the uploaded file, keeping only its last part so it cannot point outside the job folder.
+     *
+     * @param parameters The query parameters of the request.
+     * @return The file name.
+     * @throws IllegalArgumentException If the name is not that of an Excel or CSV file.
+     */
+    private static String readFileName(List<String[]> parameters) {
+        String name = DEFAULT_FILE_NAME;
+        for (String[] parameter : parameters) {
+            if (parameter[0].equals("name")) {
+                String value = parameter[1];
+                name = value.substring(Math.max(value.lastIndexOf('/'), value.lastIndexOf('\\')) + 1);
+            }
+        }
+        if (!BatchApp.isSampledFile(new File(name))) {
+            throw new IllegalArgumentException("The name must be that of an Excel or CSV file: " + name);
+        }
+        return name;
+    }
+
+    /**
+     * Splits a query string into its parameters.
+     *
+     * @param rawQuery The encoded query string, or null.
+     * @return The decoded names and values of the parameters, in order.
+     */
+    private static List<String[]> parseQuery(String rawQuery) {
+        List<String[]> parameters = new ArrayList<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            parameters.add(new String[]{URLDecoder.decode(name, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8)});
+        }
+        return parameters;
+    }
+
+    /**
+     * @param value The value of a Content-Length header.
+     * @return The length, or -1 if the value is not a number.
+     */
+    private static long parseLength(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends a short plain text response.
+     *
+     * @param exchange The request and its response.
+     * @param status   The status code.
+     * @param message  The text of the response.
+     * @throws IOException If the connection fails.
+     */
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @return A factory of numbered request threads.
+     */
+    private static ThreadFactory namedThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, "serve-" + count.incrementAndGet());
+    }
+}
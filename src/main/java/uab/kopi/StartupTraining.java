@@ -0,0 +1,33 @@
+package uab.kopi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uab.kopi.services.Warmup;
+
+/**
+ * The training run of the startup distribution. Started by {@code mvn -Pstartup package} with
+ * {@code -XX:ArchiveClassesAtExit}, it loads the classes a usual session needs, so that the JVM records them in the
+ * class-data sharing archive shipped next to the JAR. It samples small files of every format through the
+ * {@link Warmup} and then, if a display is available, shows the window and closes it right away.
+ * <p>
+ * The archive only works with the JVM that recorded it, and with the same JAR and libraries at the same paths.
+ */
+public class StartupTraining {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartupTraining.class);
+
+    public static void main(String[] args) {
+        long start = System.nanoTime();
+        Warmup.run();
+        System.setProperty(Main.CLOSE_WHEN_SHOWN, "true");
+        try {
+            Main.main(args);
+        } catch (RuntimeException e) {
+            // Without a display the archive holds the processing classes only
+            logger.warn("Could not show the window in the training run: {}", e.getMessage());
+        }
+        logger.info("The training run took {} ms", (System.nanoTime() - start) / 1_000_000);
+        // The archive is written as the JVM exits, which the threads JavaFX leaves behind could otherwise prevent
+        System.exit(0);
+    }
+}
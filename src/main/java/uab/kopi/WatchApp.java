@@ -0,0 +1,491 @@
+package uab.kopi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uab.kopi.services.ExcelProcessor;
+import uab.kopi.services.ProcessingException;
+import uab.kopi.services.SamplingOptions;
+import uab.kopi.services.SamplingResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Headless entry point that keeps running and samples every Excel and CSV file dropped into an input directory. Files
+ * already in the directory when it starts are left alone. The results of each file are saved in their own folder
+ * inside the output directory, as in {@link BatchApp}, and a file changed again later is sampled again.
+ * <p>
+ * A file is only sampled once it has been quiet for the settle time and its size and modification time have stopped
+ * changing, so files still being copied in are not read half written. The lock files Excel creates for open workbooks
+ * are skipped. Settled files go on a bounded queue served by a fixed pool of workers. When the queue is full, settled
+ * files stay in the directory and are queued once there is room, so a burst of files never runs the process out of
+ * memory and no file is lost. The queue depth and the wait, processing and end-to-end latencies are written to the
+ * heartbeat log at a fixed interval.
+ * <p>
+ * On SIGINT or SIGTERM the directory stops being watched, the queued files are finished within the shutdown timeout,
+ * and whatever is still running after it is interrupted.
+ * <p>
+ * Usage: {@code App watch --input <dir> --output <dir> [--workers <n>] [--queue <n>] [--settle-ms <n>]
+ * [--metrics-seconds <n>] [--shutdown-seconds <n>]} followed by the sampling options of {@link BatchApp}.
+ * <p>
+ * The process exits with 1 if the input directory cannot be watched and 2 if the arguments are invalid; otherwise it
+ * runs until it is signalled.
+ */
+public class WatchApp {
+
+    private static final Logger logger = LoggerFactory.getLogger(WatchApp.class);
+    private static final int EXIT_WATCH_FAILED = 1;
+    private static final int EXIT_USAGE = 2;
+    private static final long MIN_POLL_MILLIS = 50;
+    // How long the interrupted workers are given to stop after the shutdown timeout
+    private static final long INTERRUPT_GRACE_SECONDS = 5;
+    private static final String USAGE = "Usage: App watch --input <dir> --output <dir> [--workers <n>] [--queue <n>] "
+            + "[--settle-ms <n>] [--metrics-seconds <n>] [--shutdown-seconds <n>] " + SamplingArguments.USAGE;
+
+    private File inputFolder;
+    private File outputFolder;
+    private SamplingOptions options;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = 100;
+    private long settleMillis = 2000;
+    private long metricsSeconds = 60;
+    private long shutdownSeconds = 60;
+
+    private final WatchMetrics metrics = new WatchMetrics();
+    // Files seen changing but not yet queued, touched by the watching thread only
+    private final Map<Path, PendingFile> pending = new LinkedHashMap<>();
+    private final AtomicInteger settling = new AtomicInteger();
+    // Files queued or being processed, which are not queued again until they are done
+    private final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean running = true;
+    private WatchService watchService;
+    private ThreadPoolExecutor pool;
+
+    public static void main(String[] args) {
+        WatchApp app = new WatchApp();
+        try {
+            app.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(EXIT_USAGE);
+        }
+        int exitCode = app.run();
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * Reads the command line options.
+     *
+     * @param args The command line arguments.
+     * @throws IllegalArgumentException If an option is missing or invalid.
+     */
+    private void parseArguments(String[] args) {
+        SamplingArguments sampling = new SamplingArguments();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--input":
+                        inputFolder = new File(value);
+                        break;
+                    case "--output":
+                        outputFolder = new File(value);
+                        break;
+                    case "--workers":
+                        workers = Integer.parseInt(value);
+                        break;
+                    case "--queue":
+                        queueCapacity = Integer.parseInt(value);
+                        break;
+                    case "--settle-ms":
+                        settleMillis = Long.parseLong(value);
+                        break;
+                    case "--metrics-seconds":
+                        metricsSeconds = Long.parseLong(value);
+                        break;
+                    case "--shutdown-seconds":
+                        shutdownSeconds = Long.parseLong(value);
+                        break;
+                    default:
+                        if (!sampling.accept(option, value)) {
+                            throw new IllegalArgumentException("Unknown option " + option);
+                        }
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number for " + option + ": " + value);
+            }
+        }
+
+        if (inputFolder == null || !inputFolder.isDirectory()) {
+            throw new IllegalArgumentException("The input directory is missing or does not exist");
+        }
+        if (outputFolder == null) {
+            throw new IllegalArgumentException("The output directory is missing");
+        }
+        if (workers < 1) {
+            throw new IllegalArgumentException("The number of workers must be positive");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("The queue size must be positive");
+        }
+        if (settleMillis < 0 || metricsSeconds < 1 || shutdownSeconds < 0) {
+            throw new IllegalArgumentException("The settle time and shutdown timeout cannot be negative, "
+                    + "and the metrics interval must be positive");
+        }
+        options = sampling.build();
+    }
+
+    /**
+     * Watches the input directory until the process is signalled to stop.
+     *
+     * @return The exit code of the process.
+     */
+    private int run() {
+        Path inputPath = inputFolder.toPath().toAbsolutePath();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            inputPath.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException e) {
+            logger.error("Could not watch the directory {}", inputPath, e);
+            return EXIT_WATCH_FAILED;
+        }
+
+        pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), namedThreads("watch-worker"));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(namedThreads("watch-metrics"));
+        reporter.scheduleAtFixedRate(this::reportMetrics, metricsSeconds, metricsSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "watch-shutdown"));
+        logger.info("Watching {} with {} workers and a queue of {} files, writing to {}", inputPath, workers,
+                queueCapacity, outputFolder.getAbsolutePath());
+
+        int exitCode = 0;
+        try {
+            watch(inputPath);
+        } catch (ClosedWatchServiceException e) {
+            // Closed by the shutdown hook
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            logger.error(e.getMessage());
+            exitCode = EXIT_WATCH_FAILED;
+        } finally {
+            running = false;
+            closeWatchService();
+            drain();
+            reporter.shutdownNow();
+            reportMetrics();
+            logger.info("Stopped watching {}", inputPath);
+            stopped.countDown();
+        }
+        return exitCode;
+    }
+
+    /**
+     * Collects the changes in the input directory and queues the files that have settled, until stopped.
+     *
+     * @param inputPath The input directory.
+     * @throws InterruptedException  If the watching thread is interrupted.
+     * @throws IllegalStateException If the directory can no longer be watched.
+     */
+    private void watch(Path inputPath) throws InterruptedException {
+        // Wake up often enough to notice files settling even when nothing else changes
+        long pollMillis = Math.max(settleMillis / 4, MIN_POLL_MILLIS);
+        while (running) {
+            WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+            if (key != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        // Some events were lost, so look at every file again
+                        logger.warn("Missed changes in {}, rescanning the directory", inputPath);
+                        rescan(inputPath);
+                        continue;
+                    }
+                    Path path = inputPath.resolve((Path) event.context());
+                    if (event.kind() == ENTRY_DELETE) {
+                        pending.remove(path);
+                    } else {
+                        noteChange(path);
+                    }
+                }
+                if (!key.reset()) {
+                    throw new IllegalStateException("The directory " + inputPath + " can no longer be watched");
+                }
+            }
+            queueSettledFiles();
+            settling.set(pending.size());
+        }
+    }
+
+    /**
+     * Notes a change in every file of the input directory.
+     *
+     * @param inputPath The input directory.
+     */
+    private void rescan(Path inputPath) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(inputPath)) {
+            for (Path path : files) {
+                noteChange(path);
+            }
+        } catch (IOException e) {
+            logger.error("Could not list the directory {}", inputPath, e);
+        }
+    }
+
+    /**
+     * Starts or restarts the settle time of a changed file.
+     *
+     * @param path The changed file.
+     */
+    private void noteChange(Path path) {
+        File file = path.toFile();
+        if (ExcelProcessor.isLockFile(file)) {
+            logger.debug("Skipping the Excel lock file {}", path);
+            return;
+        }
+        if (!BatchApp.isSampledFile(file)) {
+            return;
+        }
+        long now = System.nanoTime();
+        PendingFile pendingFile = pending.computeIfAbsent(path, p -> new PendingFile(now));
+        pendingFile.lastChange = now;
+        pendingFile.readAttributes(path);
+    }
+
+    /**
+     * Queues the files that have been quiet for the settle time, as long as the queue has room. A file whose size or
+     * modification time still changed, or that cannot be opened yet, starts its settle time over.
+     */
+    private void queueSettledFiles() {
+        long now = System.nanoTime();
+        long settleNanos = TimeUnit.MILLISECONDS.toNanos(settleMillis);
+        Iterator<Map.Entry<Path, PendingFile>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, PendingFile> entry = entries.next();
+            Path path = entry.getKey();
+            PendingFile pendingFile = entry.getValue();
+            if (now - pendingFile.lastChange < settleNanos || inFlight.contains(path)) {
+                // Still being written, or the previous version is not done yet
+                continue;
+            }
+            if (!Files.isRegularFile(path)) {
+                entries.remove();
+                continue;
+            }
+            if (pendingFile.readAttributes(path) || !isReadable(path)) {
+                pendingFile.lastChange = now;
+                continue;
+            }
+
+            inFlight.add(path);
+            try {
+                pool.execute(new WatchJob(path, pendingFile.firstChange));
+            } catch (RejectedExecutionException e) {
+                // The queue is full; leave the file until the workers catch up
+                inFlight.remove(path);
+                metrics.onDeferred();
+                logger.debug("The queue is full, {} waits for room", path);
+                return;
+            }
+            entries.remove();
+            metrics.onQueued(pool.getQueue().size());
+            logger.info("Queued {}", path);
+        }
+    }
+
+    /**
+     * Tells whether a file can be opened for reading. Excel on Windows keeps a workbook it is saving locked against
+     * other readers.
+     *
+     * @param path The file.
+     * @return False if the file cannot be opened.
+     */
+    private static boolean isReadable(Path path) {
+        try {
+            FileChannel.open(path, StandardOpenOption.READ).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops watching and waits for the queued files to be finished. Run by the shutdown hook.
+     */
+    private void stop() {
+        if (!running) {
+            return;
+        }
+        logger.info("Stopping, finishing the queued files");
+        running = false;
+        closeWatchService();
+        try {
+            // The watching thread drains the pool; give it a little longer than the pool is given
+            stopped.await(shutdownSeconds + 2 * INTERRUPT_GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Lets the workers finish the queued files within the shutdown timeout, and interrupts them after it. The
+     * interrupted workers get a short grace period to stop.
+     */
+    private void drain() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(shutdownSeconds, TimeUnit.SECONDS)) {
+                logger.warn("{} queued files were not processed before the shutdown timeout",
+                        pool.shutdownNow().size());
+                pool.awaitTermination(INTERRUPT_GRACE_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (!pending.isEmpty()) {
+            logger.info("{} files had not settled and were not queued", pending.size());
+        }
+    }
+
+    private void closeWatchService() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the watch service", e);
+        }
+    }
+
+    private void reportMetrics() {
+        metrics.report(pool.getQueue().size(), queueCapacity, pool.getActiveCount(), settling.get());
+    }
+
+    /**
+     * @param prefix The start of the thread names.
+     * @return A factory of numbered threads, which do not keep the process alive on their own.
+     */
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A file that has changed and is waiting to settle.
+     */
+    private static class PendingFile {
+
+        private final long firstChange;
+        private long lastChange;
+        private long size = -1;
+        private long modified = -1;
+
+        PendingFile(long firstChange) {
+            this.firstChange = firstChange;
+            this.lastChange = firstChange;
+        }
+
+        /**
+         * Reads the size and modification time of the file.
+         *
+         * @param path The file.
+         * @return True if either differs from the last reading.
+         */
+        boolean readAttributes(Path path) {
+            long newSize;
+            long newModified;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                newSize = attributes.size();
+                newModified = attributes.lastModifiedTime().toMillis();
+            } catch (IOException e) {
+                newSize = -1;
+                newModified = -1;
+            }
+            boolean changed = newSize != size || newModified != modified;
+            size = newSize;
+            modified = newModified;
+            return changed;
+        }
+    }
+
+    /**
+     * Samples one settled file on a worker.
+     */
+    private class WatchJob implements Runnable {
+
+        private final Path path;
+        private final long firstChange;
+        private final long queuedAt = System.nanoTime();
+
+        /**
+         * @param path        The file to sample.
+         * @param firstChange When the first change of the file was seen.
+         */
+        WatchJob(Path path, long firstChange) {
+            this.path = path;
+            this.firstChange = firstChange;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            metrics.onStarted(start - queuedAt);
+            boolean success = false;
+            try {
+                SamplingResult result = BatchApp.processOne(path.toFile(), outputFolder, options);
+                success = true;
+                logger.info("Sampled {} of {} data rows from {}", result.getSampledRowCount(),
+                        result.getDataRowCount(), path);
+            } catch (ProcessingException e) {
+                logger.error("Failed to process {}: {}", path, e.getMessage());
+            } catch (RuntimeException e) {
+                logger.error("Failed to process {}", path, e);
+            } finally {
+                long end = System.nanoTime();
+                metrics.onFinished(success, end - start, end - firstChange);
+                inFlight.remove(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package uab.kopi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the files handled by the watch mode and measures how long they wait and take. Each report covers the files
+ * finished since the previous one, so a growing backlog shows up as a rising wait while the totals keep counting. The
+ * reports are written as structured lines to the heartbeat log, next to the lines of the jobs themselves.
+ */
+class WatchMetrics {
+
+    private static final Logger heartbeat = LoggerFactory.getLogger("heartbeat");
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final Latency wait = new Latency();
+    private final Latency processing = new Latency();
+    private final Latency endToEnd = new Latency();
+    private int peakQueueDepth;
+
+    /**
+     * Notes a file put on the queue.
+     *
+     * @param queueDepth The number of files waiting on the queue, including this one.
+     */
+    synchronized void onQueued(int queueDepth) {
+        queued.incrementAndGet();
+        peakQueueDepth = Math.max(peakQueueDepth, queueDepth);
+    }
+
+    /**
+     * Notes that a settled file was left waiting in the folder because the queue was full. A file is counted again
+     * each time it finds the queue full.
+     */
+    void onDeferred() {
+        deferred.incrementAndGet();
+    }
+
+    /**
+     * Notes a file taken off the queue by a worker.
+     *
+     * @param waitNanos How long the file waited on the queue.
+     */
+    void onStarted(long waitNanos) {
+        wait.add(waitNanos);
+    }
+
+    /**
+     * Notes a file whose processing has ended.
+     *
+     * @param success         Whether the file was processed.
+     * @param processingNanos How long the processing took.
+     * @param endToEndNanos   How long it took from the first change seen in the file to the end of the processing.
+     */
+    void onFinished(boolean success, long processingNanos, long endToEndNanos) {
+        (success ? processed : failed).incrementAndGet();
+        processing.add(processingNanos);
+        endToEnd.add(endToEndNanos);
+    }
+
+    /**
+     * Writes a report of the current state and of the files finished since the previous report.
+     *
+     * @param queueDepth    The number of files waiting on the queue.
+     * @param queueCapacity The most files the queue holds.
+     * @param running       The number of files being processed.
+     * @param settling      The number of files still being written, or not yet quiet for long enough.
+     */
+    void report(int queueDepth, int queueCapacity, int running, int settling) {
+        int peak;
+        synchronized (this) {
+            peak = Math.max(peakQueueDepth, queueDepth);
+            peakQueueDepth = queueDepth;
+        }
+        String line = String.format(Locale.ROOT,
+                "watch queueDepth=%d queueCapacity=%d peakQueueDepth=%d running=%d settling=%d queued=%d processed=%d "
+                        + "failed=%d deferred=%d %s %s %s",
+                queueDepth, queueCapacity, peak, running, settling, queued.get(), processed.get(), failed.get(),
+                deferred.get(), wait.drain("wait"), processing.drain("processing"), endToEnd.drain("endToEnd"));
+        heartbeat.info(line);
+    }
+
+    /**
+     * The count, mean and highest value of a duration over one report interval.
+     */
+    private static class Latency {
+
+        private long count;
+        private long total;
+        private long max;
+
+        /**
+         * @param nanos A measured duration.
+         */
+        synchronized void add(long nanos) {
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        /**
+         * Describes the durations measured since the last call and starts over.
+         *
+         * @param key The name of the duration in the report.
+         * @return The key=value pairs of the report.
+         */
+        synchronized String drain(String key) {
+            String text = String.format(Locale.ROOT, "%sCount=%d %sAvgMs=%.3f %sMaxMs=%.3f", key, count, key,
+                    count == 0 ? 0.0 : total / (double) count / NANOS_PER_MILLI, key, max / NANOS_PER_MILLI);
+            count = 0;
+            total = 0;
+            max = 0;
+            return text;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package uab.kopi.services;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the number formats of source cells to styles of the new workbook, creating one style per distinct format
+ * instead of one per cell. The number of styles is bounded below the 250 custom number formats an .xlsx workbook
+ * accepts by default: once the bound is reached, further numbers get the general format and dates a single shared
+ * date format.
+ */
+class CellStyleCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CellStyleCache.class);
+    private static final int MAX_STYLES = Integer.getInteger("generuoklis.maxStyles", 200);
+    // A built-in format, so it never takes one of the limited custom format slots
+    private static final short FALLBACK_DATE_FORMAT = (short) BuiltinFormats.getBuiltinFormat("m/d/yy h:mm");
+    private static final String GENERAL_FORMAT = BuiltinFormats.getBuiltinFormat(0);
+
+    private final Workbook workbook;
+    private final Map<String, CellStyle> styles = new HashMap<>();
+    private CellStyle fallbackDateStyle;
+    private boolean limitReached;
+
+    /**
+     * @param workbook The workbook the styles are created in.
+     */
+    CellStyleCache(Workbook workbook) {
+        this.workbook = workbook;
+    }
+
+    /**
+     * Finds the style showing values in the given number format.
+     *
+     * @param format The number format, or null for the general format.
+     * @param isDate Whether the format shows a date.
+     * @return The style, or null if the default style already fits.
+     */
+    CellStyle get(String format, boolean isDate) {
+        if (format == null || format.equals(GENERAL_FORMAT)) {
+            return null;
+        }
+        CellStyle style = styles.get(format);
+        if (style != null) {
+            return style;
+        }
+        if (styles.size() < MAX_STYLES && !limitReached) {
+            try {
+                style = createStyle(format);
+                styles.put(format, style);
+                return style;
+            } catch (IllegalStateException e) {
+                // The workbook holds no more number formats
+                logger.warn("The new workbook cannot hold more number formats: {}", e.getMessage());
+            }
+        }
+        if (!limitReached) {
+            logger.warn("Reached {} cell styles, further number formats are not copied", styles.size());
+            limitReached = true;
+        }
+        return isDate ? fallbackDateStyle() : null;
+    }
+
+    /**
+     * @return The style used for dates whose own format cannot be kept.
+     */
+    private CellStyle fallbackDateStyle() {
+        if (fallbackDateStyle == null) {
+            fallbackDateStyle = workbook.createCellStyle();
+            fallbackDateStyle.setDataFormat(FALLBACK_DATE_FORMAT);
+        }
+        return fallbackDateStyle;
+    }
+
+    /**
+     * @param format The number format.
+     * @return A new style of the workbook with the given number format.
+     * @throws IllegalStateException If the workbook cannot hold another number format.
+     */
+    private CellStyle createStyle(String format) {
+        short formatIdx = workbook.createDataFormat().getFormat(format);
+        CellStyle style = workbook.createCellStyle();
+        style.setDataFormat(formatIdx);
+        return style;
+    }
+}
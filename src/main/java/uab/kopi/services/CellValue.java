@@ -0,0 +1,99 @@
+package uab.kopi.services;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DateUtil;
+
+/**
+ * A number, date or boolean cell value kept with its type, so it can be written to the new file as the same kind of
+ * cell. Text values are kept as plain strings next to these in the same row.
+ */
+final class CellValue {
+
+    private static final CellValue TRUE = new CellValue(true, 0, null, false);
+    private static final CellValue FALSE = new CellValue(true, 0, null, false);
+
+    private final boolean isBoolean;
+    private final double number;
+    private final String format;
+    private final boolean isDate;
+
+    private CellValue(boolean isBoolean, double number, String format, boolean isDate) {
+        this.isBoolean = isBoolean;
+        this.number = number;
+        this.format = format;
+        this.isDate = isDate;
+    }
+
+    /**
+     * @param number The numeric value of the cell, which for dates is the Excel serial date.
+     * @param format The number format of the source cell, or null for the general format.
+     * @param isDate Whether the number format shows a date.
+     * @return The numeric cell value.
+     */
+    static CellValue number(double number, String format, boolean isDate) {
+        return new CellValue(false, number, format, isDate);
+    }
+
+    /**
+     * @param value The boolean value of the cell.
+     * @return The boolean cell value.
+     */
+    static CellValue bool(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    /**
+     * @return Whether the value is a number or a date, rather than a boolean.
+     */
+    boolean isNumber() {
+        return !isBoolean;
+    }
+
+    /**
+     * @return The numeric value, which for dates is the Excel serial date.
+     */
+    double getNumber() {
+        return number;
+    }
+
+    /**
+     * @return Whether the number format of the source cell shows a date.
+     */
+    boolean isDate() {
+        return isDate;
+    }
+
+    /**
+     * Writes the value to a cell of the new file, styling numbers through the given cache so that the number format
+     * of the source cell is kept.
+     *
+     * @param cell   The target cell.
+     * @param styles The styles of the target workbook.
+     */
+    void writeTo(Cell cell, CellStyleCache styles) {
+        if (isBoolean) {
+            cell.setCellValue(this == TRUE);
+            return;
+        }
+        cell.setCellValue(number);
+        CellStyle style = styles.get(format, isDate);
+        if (style != null) {
+            cell.setCellStyle(style);
+        }
+    }
+
+    /**
+     * @return The value as it is written in text mode.
+     */
+    @Override
+    public String toString() {
+        if (isBoolean) {
+            return String.valueOf(this == TRUE);
+        }
+        if (isDate && DateUtil.isValidExcelDate(number)) {
+            return ExcelProcessor.formatDate(DateUtil.getJavaDate(number));
+        }
+        return String.valueOf(number);
+    }
+}
@@ -0,0 +1,11 @@
+package uab.kopi.services;
+
+/**
+ * How cell values are copied from the source sheet to the new file.
+ */
+public enum CopyMode {
+    /** Every value is written as text, the way it reads in the source sheet. */
+    TEXT,
+    /** Numbers, dates, booleans and cached formula results keep their type and number format. */
+    TYPED
+}
@@ -0,0 +1,64 @@
+package uab.kopi.services;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * How delimited text files are read and written: the character set and the character separating the values. Values
+ * holding the delimiter, quotes or line breaks are quoted with double quotes, as in RFC 4180.
+ * <p>
+ * The delimiter, quote and line break characters must take a single byte of the character set, the same byte as in
+ * ASCII, which holds for UTF-8 and the single byte character sets such as windows-1257. This lets the files be split
+ * into values without decoding them first.
+ */
+public final class CsvFormat {
+
+    /** UTF-8 text, with the delimiter worked out from the first line of the file, or a comma for new files. */
+    public static final CsvFormat DEFAULT = new CsvFormat(StandardCharsets.UTF_8, null);
+
+    private static final String SPECIAL_CHARACTERS = ",;\t|\"\r\n";
+
+    private final Charset charset;
+    private final Character delimiter;
+
+    /**
+     * @param charset   The character set of the files.
+     * @param delimiter The character separating the values, or null to work it out from the first line of the file.
+     * @throws IllegalArgumentException If the character set does not keep the special characters as single ASCII
+     *                                  bytes, or the delimiter is a quote or a line break.
+     */
+    public CsvFormat(Charset charset, Character delimiter) {
+        this.charset = Objects.requireNonNull(charset);
+        this.delimiter = delimiter;
+        if (!Arrays.equals(SPECIAL_CHARACTERS.getBytes(charset), SPECIAL_CHARACTERS.getBytes(StandardCharsets.US_ASCII))) {
+            throw new IllegalArgumentException("The character set " + charset + " is not ASCII compatible");
+        }
+        if (delimiter != null && (delimiter == '"' || delimiter == '\r' || delimiter == '\n' || delimiter > 0x7F)) {
+            throw new IllegalArgumentException("The delimiter must be an ASCII character other than a quote or a line break");
+        }
+    }
+
+    /**
+     * @return The character set of the files.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return The character separating the values, or null to work it out from the first line of the file.
+     */
+    public Character getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * @param delimiter The character separating the values.
+     * @return A format with the same character set and the given delimiter.
+     */
+    public CsvFormat withDelimiter(char delimiter) {
+        return new CsvFormat(charset, delimiter);
+    }
+}
@@ -0,0 +1,319 @@
+package uab.kopi.services;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads a delimited text file, such as a CSV or TSV export, as a sheet whose rows are the records of the file. The file
+ * is read through a {@link FileChannel} in large blocks and split into values at the byte level, and only the values
+ * themselves are decoded, so a file far larger than the heap streams at close to the speed of the disk. Every value is
+ * passed as a string.
+ * <p>
+ * Records end with a line break, CRLF, LF or CR. A value starting with a double quote runs to the next lone quote, may
+ * hold delimiters and line breaks, and has its doubled quotes read as one. A UTF-8 byte order mark is skipped.
+ */
+class CsvSheet implements SheetSource {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int DETECTION_SIZE = 1 << 16;
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final char[] DELIMITER_CANDIDATES = {',', ';', '\t', '|'};
+
+    private final File file;
+    private final Charset charset;
+    private final byte delimiter;
+
+    /**
+     * @param file   The delimited text file.
+     * @param format How the file is read. Without a delimiter, it is worked out from the first line of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    CsvSheet(File file, CsvFormat format) throws IOException {
+        this.file = file;
+        this.charset = format.getCharset();
+        this.delimiter = (byte) (format.getDelimiter() != null ? format.getDelimiter() : detectDelimiter(file));
+    }
+
+    /**
+     * Tells whether a file is read as delimited text rather than as a workbook, by its extension.
+     *
+     * @param file The file.
+     * @return True for .csv and .tsv files.
+     */
+    static boolean isDelimitedText(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        return name.endsWith(".csv") || name.endsWith(".tsv");
+    }
+
+    /**
+     * @return The character separating the values of the file.
+     */
+    char getDelimiter() {
+        return (char) delimiter;
+    }
+
+    @Override
+    public void read(RowListener listener) throws Exception {
+        try (Parser parser = new Parser()) {
+            List<Object> cells = new ArrayList<>();
+            while (parser.next(cells)) {
+                if (!listener.onRow(parser.rowIdx - 1, cells)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public RowPositions readNotingPositions(RowListener listener) throws Exception {
+        RowPositions.Recorder recorder = new RowPositions.Recorder();
+        try (Parser parser = new Parser()) {
+            List<Object> cells = new ArrayList<>();
+            while (true) {
+                int rowIdx = parser.rowIdx;
+                long offset = parser.offset();
+                if (!parser.next(cells)) {
+                    break;
+                }
+                recorder.onRecord(rowIdx, offset);
+                if (!listener.onRow(rowIdx, cells)) {
+                    break;
+                }
+            }
+        }
+        return recorder.finish();
+    }
+
+    @Override
+    public void readRows(int[] sortedRows, RowPositions positions, RowListener listener) throws Exception {
+        try (Parser parser = new Parser()) {
+            List<Object> cells = new ArrayList<>();
+            for (int wanted : sortedRows) {
+                if (wanted < parser.rowIdx) {
+                    // Already passed on with an earlier part
+                    continue;
+                }
+                int step = positions != null ? positions.stepOf(wanted) : -1;
+                if (step >= 0 && positions.rowIdxAt(step) > parser.rowIdx) {
+                    parser.seek(positions.offsetAt(step), positions.rowIdxAt(step));
+                }
+                while (parser.rowIdx <= wanted) {
+                    int rowIdx = parser.rowIdx;
+                    if (!parser.next(cells) || !listener.onRow(rowIdx, cells)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Works out the delimiter of a file from its first non-empty line: the most frequent of the comma, semicolon, tab
+     * and vertical bar outside quotes. A file without any of them is taken to be tab separated if its name ends with
+     * .tsv, and comma separated otherwise.
+     *
+     * @param file The delimited text file.
+     * @return The delimiter.
+     * @throws IOException If the file cannot be read.
+     */
+    static char detectDelimiter(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(DETECTION_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // Fill the buffer, or read the whole file if it is smaller
+            }
+        }
+        int[] counts = new int[DELIMITER_CANDIDATES.length];
+        boolean quoted = false;
+        boolean lineHasContent = false;
+        int start = buffer.position() >= UTF8_BOM.length
+                && Arrays.equals(buffer.array(), 0, UTF8_BOM.length, UTF8_BOM, 0, UTF8_BOM.length) ? UTF8_BOM.length : 0;
+        for (int i = start; i < buffer.position(); i++) {
+            byte b = buffer.get(i);
+            if (b == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (b == '\n' || b == '\r')) {
+                if (lineHasContent) {
+                    break;
+                }
+            } else if (!quoted) {
+                lineHasContent = true;
+                for (int c = 0; c < DELIMITER_CANDIDATES.length; c++) {
+                    if (b == DELIMITER_CANDIDATES[c]) {
+                        counts[c]++;
+                    }
+                }
+            }
+        }
+        int best = 0;
+        for (int c = 1; c < counts.length; c++) {
+            if (counts[c] > counts[best]) {
+                best = c;
+            }
+        }
+        if (counts[best] > 0) {
+            return DELIMITER_CANDIDATES[best];
+        }
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".tsv") ? '\t' : ',';
+    }
+
+    /**
+     * Splits the file into records, reading it block by block.
+     */
+    private class Parser implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final byte[] bytes = buffer.array();
+        private byte[] value = new byte[256];
+        private int valueLength;
+        private int position;
+        private int limit;
+        private long bufferStart;
+        private int rowIdx;
+
+        Parser() throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        /**
+         * @return The offset in the file of the next record.
+         */
+        long offset() {
+            return bufferStart + position;
+        }
+
+        /**
+         * Continues reading at a record whose position is known.
+         *
+         * @param offset The offset in the file where the record starts.
+         * @param index  Index of the record.
+         * @throws IOException If the file cannot be read.
+         */
+        void seek(long offset, int index) throws IOException {
+            channel.position(offset);
+            bufferStart = offset;
+            position = 0;
+            limit = 0;
+            rowIdx = index;
+        }
+
+        /**
+         * Reads the next record.
+         *
+         * @param cells The list receiving the values of the record.
+         * @return False if the file has no more records.
+         * @throws IOException If the file cannot be read.
+         */
+        boolean next(List<Object> cells) throws IOException {
+            cells.clear();
+            if (position == limit && !fill()) {
+                return false;
+            }
+            if (offset() == 0 && charset.equals(StandardCharsets.UTF_8)) {
+                skipByteOrderMark();
+            }
+            valueLength = 0;
+            boolean quoted = false;
+            boolean wasQuoted = false;
+            while (position < limit || fill()) {
+                byte b = bytes[position++];
+                if (quoted) {
+                    if (b != '"') {
+                        append(b);
+                    } else if ((position < limit || fill()) && bytes[position] == '"') {
+                        append(b);
+                        position++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (b == delimiter) {
+                    endValue(cells);
+                    wasQuoted = false;
+                } else if (b == '\n' || b == '\r') {
+                    if (b == '\r' && (position < limit || fill()) && bytes[position] == '\n') {
+                        position++;
+                    }
+                    break;
+                } else if (b == '"' && valueLength == 0 && !wasQuoted) {
+                    quoted = true;
+                    wasQuoted = true;
+                } else {
+                    append(b);
+                }
+            }
+            endValue(cells);
+            rowIdx++;
+            return true;
+        }
+
+        /**
+         * Skips the UTF-8 byte order mark at the start of the file, if there is one.
+         *
+         * @throws IOException If the file cannot be read.
+         */
+        private void skipByteOrderMark() throws IOException {
+            if (limit - position < UTF8_BOM.length) {
+                // A block holds the whole mark unless the file is shorter
+                return;
+            }
+            if (Arrays.equals(bytes, position, position + UTF8_BOM.length, UTF8_BOM, 0, UTF8_BOM.length)) {
+                position += UTF8_BOM.length;
+            }
+        }
+
+        /**
+         * Reads the next block of the file.
+         *
+         * @return False at the end of the file.
+         * @throws IOException If the file cannot be read.
+         */
+        private boolean fill() throws IOException {
+            bufferStart += limit;
+            position = 0;
+            limit = 0;
+            buffer.clear();
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while (read == 0);
+            limit = buffer.position();
+            return limit > 0;
+        }
+
+        /**
+         * @param b The next byte of the current value.
+         */
+        private void append(byte b) {
+            if (valueLength == value.length) {
+                value = Arrays.copyOf(value, valueLength * 2);
+            }
+            value[valueLength++] = b;
+        }
+
+        /**
+         * Decodes the current value and adds it to the record.
+         *
+         * @param cells The values of the record.
+         */
+        private void endValue(List<Object> cells) {
+            cells.add(valueLength == 0 ? "" : new String(value, 0, valueLength, charset));
+            valueLength = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
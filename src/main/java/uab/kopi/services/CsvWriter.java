@@ -0,0 +1,88 @@
+package uab.kopi.services;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes rows as delimited text through a {@link FileChannel} with a large buffer. Values holding the delimiter,
+ * quotes or line breaks are quoted as in RFC 4180, records end with CRLF, and characters the character set cannot
+ * hold are replaced.
+ */
+class CsvWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Writer writer;
+    private final char delimiter;
+    private final StringBuilder record = new StringBuilder();
+
+    /**
+     * @param file      The file to write, replaced if it exists.
+     * @param format    The character set of the file.
+     * @param delimiter The character separating the values.
+     * @throws IOException If the file cannot be created.
+     */
+    CsvWriter(File file, CsvFormat format, char delimiter) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.writer = Channels.newWriter(channel, format.getCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE), BUFFER_SIZE);
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Writes a record.
+     *
+     * @param values The values of the record, as strings or {@link CellValue}s, which are written as text.
+     * @throws IOException If writing fails.
+     */
+    void writeRow(Object[] values) throws IOException {
+        record.setLength(0);
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                record.append(delimiter);
+            }
+            appendValue(String.valueOf(values[i]));
+        }
+        record.append("\r\n");
+        writer.write(record.toString());
+    }
+
+    /**
+     * Appends a value to the current record, quoting it if needed.
+     *
+     * @param value The value.
+     */
+    private void appendValue(String value) {
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            char c = value.charAt(i);
+            needsQuotes = c == delimiter || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!needsQuotes) {
+            record.append(value);
+            return;
+        }
+        record.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                record.append('"');
+            }
+            record.append(c);
+        }
+        record.append('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
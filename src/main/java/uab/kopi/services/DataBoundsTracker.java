@@ -0,0 +1,85 @@
+package uab.kopi.services;
+
+/**
+ * Finds the info row and the last data row of a sheet while its rows stream past: the info row is the first row with a
+ * non-empty cell, and the data ends at the first missing row, or at the first row that is shorter than the one before
+ * it or has only empty cells. A row is as long as its last cell holding a value, as neither the .xlsx nor the .xls
+ * reader passes on cells that only carry formatting.
+ */
+class DataBoundsTracker {
+
+    private int infoRowIdx = -1;
+    private int infoRowLength;
+    private int lastDataIdx = -1;
+    private int lastDataLength;
+    private boolean finished;
+
+    /**
+     * Feeds the next row of the sheet to the tracker. Rows must be given in ascending order.
+     *
+     * @param rowIdx      The zero based index of the row.
+     * @param lastCellNum The index of the last cell in the row plus one.
+     * @param hasContent  Whether the row has at least one non-empty cell.
+     * @return True if the row is a data row, false otherwise.
+     */
+    boolean accept(int rowIdx, int lastCellNum, boolean hasContent) {
+        if (finished) {
+            return false;
+        }
+        if (infoRowIdx < 0) {
+            if (hasContent) {
+                infoRowIdx = rowIdx;
+                infoRowLength = lastCellNum;
+                // The row right after the info row always counts as the first data row
+                lastDataIdx = rowIdx + 1;
+            }
+            return false;
+        }
+        if (rowIdx == infoRowIdx + 1) {
+            lastDataLength = lastCellNum;
+            return true;
+        }
+        if (rowIdx != lastDataIdx + 1 || lastCellNum < lastDataLength || !hasContent) {
+            finished = true; // Data ends here
+            return false;
+        }
+        lastDataIdx = rowIdx;
+        lastDataLength = lastCellNum;
+        return true;
+    }
+
+    /**
+     * @return True once the end of the data has been reached and no further rows can be data rows.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return Index of the info row, or -1 if not found.
+     */
+    int getInfoRowIdx() {
+        return infoRowIdx;
+    }
+
+    /**
+     * @return The number of cells in the info row.
+     */
+    int getInfoRowLength() {
+        return infoRowLength;
+    }
+
+    /**
+     * @return Index of the first data row, or -1 if the info row was not found.
+     */
+    int getFirstDataIdx() {
+        return infoRowIdx < 0 ? -1 : infoRowIdx + 1;
+    }
+
+    /**
+     * @return Index of the last data row, or -1 if the info row was not found.
+     */
+    int getLastDataIdx() {
+        return lastDataIdx;
+    }
+}
@@ -1,16 +1,24 @@
 package uab.kopi.services;
 
+import org.apache.poi.poifs.filesystem.FileMagic;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Random;
+import java.math.BigDecimal;
+import java.nio.file.InvalidPathException;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 /**
  * This class processes Excel files, extracts data, and saves it to a new Excel workbook and a text file.
@@ -18,100 +26,1341 @@ import java.util.Random;
 public class ExcelProcessor {
 
     private static final Logger logger = LoggerFactory.getLogger(ExcelProcessor.class);
-    private static final String EXCEL_FILE_NAME = "rezultatas.xlsx";
-    private static final String TEXT_FILE_NAME = "paaiskinimas.txt";
-    private static StringBuilder builder;
+    public static final String EXCEL_FILE_NAME = "rezultatas.xlsx";
+    public static final String CSV_FILE_NAME = "rezultatas.csv";
+    public static final String MANIFEST_FILE_NAME = "rezultatas_dalys.csv";
+    public static final String TEXT_FILE_NAME = "paaiskinimas.txt";
+    public static final String SAMPLE_FOLDER_PREFIX = "imtis_";
+    private static final String SHEET_NAME = "Parinkti duomenys";
+    private static final int PROGRESS_INTERVAL = 1024;
+    // Shared by all threads, unlike SimpleDateFormat
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-    private static int infoRowLength;
+    private final SamplingJob job;
+    private final SamplingOptions options;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final ProcessingMetrics metrics;
+
+    // State of the run. Every job gets its own processor, so jobs running at the same time never share it
+    private final Explanation explanation = new Explanation();
+    private ProgressListener listener = ProgressListener.NONE;
+    private ScanIndex scanIndex;
+    private char csvDelimiter;
+    private final List<File> outputFiles = new ArrayList<>();
+    private int infoRowLength;
+    private int dataRowCount;
+    private long rowsRead;
+
+    /**
+     * Creates a processor for the given job. Each processor runs its job once, and any number of processors can run
+     * at the same time on different threads.
+     *
+     * @param job The job to run.
+     */
+    public ExcelProcessor(SamplingJob job) {
+        this.job = job;
+        this.options = job.getOptions();
+        this.metrics = new ProcessingMetrics(job.getFile().getAbsolutePath());
+    }
+
+    /**
+     * Creates a processor sampling one sheet of the parent's job. It keeps its own explanation and row counts, so the
+     * sheets of a workbook can be sampled at the same time, and its measurements are not reported.
+     *
+     * @param parent   The processor running the job.
+     * @param listener The listener receiving the progress of the sheet.
+     */
+    private ExcelProcessor(ExcelProcessor parent, ProgressListener listener) {
+        this.job = parent.job;
+        this.options = parent.options;
+        this.metrics = new ProcessingMetrics(job.getFile().getAbsolutePath());
+        this.listener = listener;
+        this.scanIndex = parent.scanIndex;
+        this.csvDelimiter = parent.csvDelimiter;
+        this.started.set(true);
+    }
+
+    /**
+     * Processes the Excel file of the job, extracts data based on its options, and saves results without any user
+     * interaction. Errors are logged and reported through the thrown exception.
+     *
+     * @return The outcome of the processing.
+     * @throws ProcessingException If the file could not be processed. The message is meant for the user.
+     */
+    public SamplingResult process() throws ProcessingException {
+        return process(ProgressListener.NONE);
+    }
 
     /**
-     * Processes the given Excel file, extracts data based on the provided criteria, and saves results.
+     * Processes the Excel file of the job like {@link #process()}, reporting the progress to the given listener.
      *
-     * @param file      The Excel file to process.
-     * @param folder    The folder where new files will be saved.
-     * @param number    The number of rows or percentage of rows to be selected.
-     * @param isPercent Indicates whether 'number' is a percentage.
+     * @param listener The listener receiving the progress, which can also cancel the processing.
+     * @return The outcome of the processing.
+     * @throws ProcessingException   If the file could not be processed. The message is meant for the user.
+     * @throws CancellationException If the listener cancelled the processing.
+     * @throws IllegalStateException If the processor has already run its job.
      */
-    public static void processFile(File file, File folder, double number, boolean isPercent) {
-        builder = new StringBuilder();
+    public SamplingResult process(ProgressListener listener) throws ProcessingException {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("The processor has already run its job");
+        }
+        this.listener = listener;
+        File file = job.getFile();
+        File folder = job.getOutputFolder();
+        long start = System.nanoTime();
+        String status = "failed";
+        int sampledRowCount = 0;
         try {
             logger.info("Starting to process the file at: {}", file.getAbsolutePath());
+            startPhase(ProcessingPhase.OPEN);
 
-            String filename = file.getName();
-            builder.append("Atrenkami duomenys iš failo: ").append(file.getName()).append("\n");
+            checkNotLockFile(file);
+            explanation.append("Atrenkami duomenys iš failo: ").append(file.getName()).append("\n");
 
-            if (filename.startsWith("~$")) {
-                // Handle files temporarily created by the Excel framework
-                // Not in use currently
+            long usedSeed = options.getSeed() != null ? options.getSeed() : new Random().nextLong();
+            Random random = new Random(usedSeed);
+            logger.info("Random selection seed is: {}", usedSeed);
+            explanation.append("Atsitiktinės atrankos sėkla: ").append(usedSeed).append("\n");
+            List<Random> randoms = createSampleRandoms(random);
+            if (!options.getFilters().isEmpty()) {
+                logger.info("Sampling only the rows meeting {}", options.getFilters());
+                explanation.append("Atrenkama tik iš duomenų eilučių, atitinkančių visas sąlygas: ");
+                for (int i = 0; i < options.getFilters().size(); i++) {
+                    explanation.append(i > 0 ? "; " : "").append(options.getFilters().get(i));
+                }
+                explanation.append("\n");
+            }
+            if (options.getWeightColumn() != null) {
+                logger.info("Selecting rows with probability proportional to {}", options.getWeightColumn());
+                explanation.append("Svertinė atranka: eilutės atrenkamos su tikimybe, proporcinga stulpelio „")
+                        .append(options.getWeightColumn()).append("“ reikšmei (algoritmas A-ExpJ).\n");
+            }
+            if (options.getCopyMode() == CopyMode.TYPED) {
+                explanation.append("Skaičiai, datos ir loginės reikšmės nukopijuoti išlaikant jų tipą ir formatą.\n");
             }
 
-            Workbook workbook = WorkbookFactory.create(file);
-            Sheet sheet = workbook.getSheetAt(0);
+            boolean delimitedText = CsvSheet.isDelimitedText(file);
+            if (!delimitedText) {
+                checkWorkbookFormat(file);
+            }
+            if (options.getStratumColumn() == null) {
+                scanIndex = openScanIndex(file);
+            }
+            Map<String, SheetSample> samples;
+            try {
+                if (delimitedText) {
+                    samples = Collections.singletonMap(SHEET_NAME, sampleDelimitedText(file, randoms));
+                } else if (options.isAllSheets()) {
+                    samples = sampleAllSheets(file, randoms);
+                } else {
+                    samples = Collections.singletonMap(SHEET_NAME, sampleFirstSheet(file, randoms));
+                }
+            } finally {
+                if (scanIndex != null) {
+                    // Sheets found empty are indexed too, even though the job fails
+                    scanIndex.save();
+                }
+            }
+            for (SheetSample sample : samples.values()) {
+                for (int i = 0; i < sample.getSampleCount(); i++) {
+                    sampledRowCount += sample.forSample(i).getDataRows().size();
+                }
+            }
 
-            int infoRowIdx = findInfoRow(sheet);
-            int firstDataIdx = infoRowIdx + 1;
+            List<File> textFiles;
+            if (options.getSampleCount() > 1) {
+                textFiles = writeSamples(samples, folder);
+            } else {
+                writeOutput(samples, folder);
+                metrics.finish();
+                metrics.appendSummary(explanation, dataRowCount);
 
-            int lastDataIdx = lastDataIdx(sheet, firstDataIdx);
-            int rowCount = lastDataIdx - firstDataIdx + 1;
+                // Try to create a new text file explaining the processing
+                File textFile = new File(folder, TEXT_FILE_NAME);
+                writeTextFile(explanation, textFile, 0);
+                textFiles = Collections.singletonList(textFile);
+            }
 
-            logGeneralInformation(infoRowIdx, firstDataIdx, lastDataIdx, rowCount);
-            int numRowsToTake = calculateNumRowsToTake(number, isPercent, rowCount);
-            logger.info("{} data rows will be taken randomly", numRowsToTake);
+            status = "done";
+            return new SamplingResult(outputFiles, textFiles, dataRowCount, sampledRowCount, usedSeed,
+                    Duration.ofNanos(System.nanoTime() - start));
+        } catch (ProcessingException e) {
+            throw e;
+        } catch (CancellationException e) {
+            logger.info("Processing of {} was cancelled", file.getName());
+            status = "cancelled";
+            for (File outputFile : outputFiles) {
+                deleteOutput(outputFile);
+            }
+            deleteOutput(new File(folder, TEXT_FILE_NAME));
+            throw e;
+        } catch (Exception e) {
+            logger.error("An unknown error occurred", e);
+            throw new ProcessingException("Nežinoma klaida.", e);
+        } finally {
+            metrics.finish();
+            metrics.log(status, dataRowCount, sampledRowCount);
+        }
+    }
 
-            if (rowCount < 0 || numRowsToTake < 0 || infoRowIdx < 0) {
-                handleIndexError(rowCount, numRowsToTake);
-                return;
+    /**
+     * Writes the files with the selected rows, in the format set by the options.
+     *
+     * @param samples The rows to be saved by sheet name, in sheet order.
+     * @param folder  The folder for the new files.
+     * @throws ProcessingException If the files could not be written.
+     */
+    private void writeOutput(Map<String, SheetSample> samples, File folder) throws ProcessingException {
+        if (options.getOutputFormat() == OutputFormat.CSV) {
+            // Try creating new delimited text files with the processed data
+            try {
+                createNewCsvFiles(samples, folder);
+                logger.info("The new CSV files were successfully saved: {}", outputFiles);
+            } catch (IOException | InvalidPathException e) {
+                // A sheet name may not be usable in a file name on every file system
+                logger.error("An error occurred when writing to the CSV file", e);
+                throw new ProcessingException("Klaida bandant sukurti CSV failą.", e);
+            }
+        } else {
+            // Try creating a new Excel file with the processed data
+            try {
+                createNewExcelFiles(samples, folder);
+                logger.info("The new excel files were successfully saved: {}", outputFiles);
+            } catch (IOException | InvalidPathException e) {
+                logger.error("An error occurred when writing to the Excel file", e);
+                throw new ProcessingException("Klaida bandant sukurti Excel'io failą.", e);
             }
+        }
+    }
 
-            List<Integer> selectedRows = selectRandomRows(firstDataIdx, lastDataIdx, numRowsToTake);
+    /**
+     * Writes the text file explaining the processing.
+     *
+     * @param text     The explanation.
+     * @param textFile The file to be written.
+     * @param sample   The index of the sample the file explains, from 0.
+     * @throws ProcessingException If the file could not be written.
+     */
+    private void writeTextFile(Explanation text, File textFile, int sample) throws ProcessingException {
+        try {
+            checkCancelled();
+            createNewTextFile(text, textFile, sample);
+            logger.info("The new text file was successfully saved at: {}", textFile.getAbsolutePath());
+        } catch (IOException e) {
+            logger.error("An error occurred when writing to the text file", e);
+            throw new ProcessingException("Klaida bandant išrašyti tekstinį failą.", e);
+        }
+    }
 
-            Workbook newWorkbook = new XSSFWorkbook();
-            Sheet newSheet = newWorkbook.createSheet("Parinkti duomenys");
-            copyInfoRow(sheet.getRow(infoRowIdx), newSheet.createRow(0));
+    /**
+     * Writes every sample to a folder of its own, {@value #SAMPLE_FOLDER_PREFIX}1, {@value #SAMPLE_FOLDER_PREFIX}2
+     * and so on, holding the same files as the output of a single sample. The samples are copied and written at the
+     * same time, each by its own processor. The explanation is shared by the samples, with the seed and the row mapping
+     * of every sample in its own file. If writing any sample fails, the files of all of them are deleted.
+     *
+     * @param samples The rows of every sample by sheet name, in sheet order.
+     * @param folder  The folder for the folders of the samples.
+     * @return The text files explaining the samples, in sample order.
+     * @throws ProcessingException If the files could not be written.
+     */
+    private List<File> writeSamples(Map<String, SheetSample> samples, File folder) throws Exception {
+        int sampleCount = options.getSampleCount();
+        int digits = String.valueOf(sampleCount).length();
+        List<File> folders = new ArrayList<>(sampleCount);
+        List<File> textFiles = new ArrayList<>(sampleCount);
+        List<ExcelProcessor> processors = new ArrayList<>(sampleCount);
+        ProgressListener sampleListener = sheetListener();
+        for (int i = 0; i < sampleCount; i++) {
+            File sampleFolder = new File(folder, String.format(Locale.ROOT, "%s%0" + digits + "d",
+                    SAMPLE_FOLDER_PREFIX, i + 1));
+            folders.add(sampleFolder);
+            textFiles.add(new File(sampleFolder, TEXT_FILE_NAME));
+            processors.add(new ExcelProcessor(this, sampleListener));
+        }
+        logger.info("Writing {} samples in parallel", sampleCount);
 
-            copySelectedDataRows(sheet, newSheet, selectedRows);
+        startPhase(ProcessingPhase.COPY);
+        boolean written = false;
+        try {
+            runAll(sampleCount, true, i -> {
+                File sampleFolder = folders.get(i);
+                if (!sampleFolder.isDirectory() && !sampleFolder.mkdirs()) {
+                    logger.error("Could not create the sample folder {}", sampleFolder.getAbsolutePath());
+                    throw new ProcessingException("Nepavyko sukurti aplanko " + sampleFolder.getAbsolutePath());
+                }
+                Map<String, SheetSample> sampleRows = new LinkedHashMap<>();
+                samples.forEach((name, sample) -> sampleRows.put(name, sample.forSample(i)));
+                processors.get(i).writeOutput(sampleRows, sampleFolder);
+            });
+            for (ExcelProcessor processor : processors) {
+                outputFiles.addAll(processor.outputFiles);
+            }
+            metrics.finish();
+            Explanation summary = new Explanation();
+            metrics.appendSummary(summary, dataRowCount);
+            for (int i = 0; i < sampleCount; i++) {
+                Explanation text = new Explanation().append(explanation).append(processors.get(i).explanation)
+                        .append(summary);
+                writeTextFile(text, textFiles.get(i), i);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                for (ExcelProcessor processor : processors) {
+                    processor.outputFiles.forEach(ExcelProcessor::deleteOutput);
+                }
+                textFiles.forEach(ExcelProcessor::deleteOutput);
+            }
+        }
+        return textFiles;
+    }
 
-            // Try creating a new Excel file with the processed data
-            try {
-                createNewExcelFile(newWorkbook, folder);
-                logger.info("The new excel file was successfully saved. Its name is: {}", EXCEL_FILE_NAME);
-            } catch (IOException e) {
-                logger.error("An error occurred when writing to the Excel file", e);
-                Alerter.displayError("Klaida bandant sukurti Excel'io failą.");
-                return;
-            } catch (Exception e) {
-                handleUnknownError(e);
-                return;
+    /**
+     * Tells whether a file is one of the lock files Excel creates next to the workbooks it has open. They hold the name
+     * of the user editing the workbook rather than any data.
+     *
+     * @param file The file.
+     * @return True if the name of the file starts with ~$.
+     */
+    public static boolean isLockFile(File file) {
+        return file.getName().startsWith("~$");
+    }
+
+    /**
+     * Scans the first sheet of the file of the job without sampling it, keeping what the scan finds out in memory. The
+     * sheet is read the same way as when it is sampled, so a job given the scan gets the same bounds.
+     *
+     * @param listener The listener receiving the progress, which can also cancel the scan.
+     * @return What the scan found out.
+     * @throws ProcessingException   If the file could not be scanned. The message is meant for the user.
+     * @throws CancellationException If the listener cancelled the scan.
+     * @throws IllegalStateException If the processor has already run its job.
+     */
+    FileScan scan(ProgressListener listener) throws ProcessingException {
+        if (!started.compareAndSet(false, true)) {
+            throw new IllegalStateException("The processor has already run its job");
+        }
+        this.listener = listener;
+        File file = job.getFile();
+        try {
+            scanIndex = ScanIndex.inMemory(file, options.getCsvFormat());
+            logger.info("Scanning the file at {} ahead of sampling it", file.getAbsolutePath());
+            startPhase(ProcessingPhase.OPEN);
+            checkNotLockFile(file);
+            boolean delimitedText = CsvSheet.isDelimitedText(file);
+            if (delimitedText) {
+                scanStreamedSheet(new CsvSheet(file, options.getCsvFormat()), 0);
+            } else {
+                checkWorkbookFormat(file);
+                try (StreamedWorkbook workbook = openStreamedWorkbook(file)) {
+                    if (!workbook.getSheetNames().isEmpty()) {
+                        scanStreamedSheet(workbook.sheet(0, CopyMode.TEXT), 0);
+                    }
+                }
             }
+            FileScan scan = new FileScan(file, scanIndex);
+            logger.info("Scanned {}: {} data rows", file.getName(), scan.getDataRowCount());
+            return scan;
+        } catch (ProcessingException | CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("An error occurred when scanning the file", e);
+            throw new ProcessingException("Nežinoma klaida.", e);
+        }
+    }
 
-            // Try to create a new text file explaining the processing
-            try {
-                createNewTextFile(folder);
-                logger.info("The new text file was successfully saved. Its name is: {}", TEXT_FILE_NAME);
-            } catch (IOException e) {
-                logger.error("An error occurred when writing to the text file", e);
-                Alerter.displayError("Klaida bandant išrašyti tekstinį failą.");
-                return;
-            } catch (Exception e) {
-                handleUnknownError(e);
+    /**
+     * Streams a sheet to find its info row and data bounds, noting where the rows start, and adds them to the scan
+     * index. The rows are told apart like in {@link #sampleStreamedSheet(SheetSource, int, List)}.
+     *
+     * @param source   The source streaming the rows of the sheet.
+     * @param sheetIdx The index of the sheet, in workbook order.
+     * @throws Exception If the sheet cannot be read.
+     */
+    private void scanStreamedSheet(SheetSource source, int sheetIdx) throws Exception {
+        startPhase(ProcessingPhase.SCAN);
+        DataBoundsTracker tracker = new DataBoundsTracker();
+        List<Object> infoRow = new ArrayList<>();
+        RowPositions positions = source.readNotingPositions((rowIdx, cells) -> {
+            countRow();
+            if (!tracker.accept(rowIdx, cells.size(), hasContent(cells)) && rowIdx == tracker.getInfoRowIdx()) {
+                infoRow.addAll(cells);
+                infoRowLength = tracker.getInfoRowLength();
+            }
+            return !tracker.isFinished();
+        });
+        indexSheet(sheetIdx, tracker.getInfoRowIdx(), tracker.getFirstDataIdx(), tracker.getLastDataIdx(),
+                toRowValues(infoRow), positions);
+    }
+
+    /**
+     * Refuses the lock files Excel creates next to an open workbook.
+     *
+     * @param file The file to process.
+     * @throws ProcessingException If the file is an Excel lock file.
+     */
+    private static void checkNotLockFile(File file) throws ProcessingException {
+        if (isLockFile(file)) {
+            logger.warn("Refusing to process the Excel lock file {}", file.getAbsolutePath());
+            throw new ProcessingException("Failas " + file.getName()
+                    + " yra laikinas Excel'io failas, sukurtas atidarius darbaknygę, todėl jis neapdorojamas.");
+        }
+    }
+
+    /**
+     * Refuses the files that are neither .xlsx nor .xls workbooks, the only workbooks that can be streamed.
+     *
+     * @param file The file to process, which is not delimited text.
+     * @throws ProcessingException If the file is not an .xlsx or .xls workbook.
+     * @throws IOException         If the file cannot be read.
+     */
+    private static void checkWorkbookFormat(File file) throws ProcessingException, IOException {
+        FileMagic magic = FileMagic.valueOf(file);
+        if (magic != FileMagic.OOXML && magic != FileMagic.OLE2) {
+            logger.warn("Refusing to process {}, which is in the unsupported format {}", file.getAbsolutePath(), magic);
+            throw new ProcessingException("Failas " + file.getName() + " nėra nei Excel'io darbaknygė (.xlsx ar .xls), "
+                    + "nei CSV ar TSV failas, todėl jis neapdorojamas.");
+        }
+    }
+
+    /**
+     * Opens the scan index of the file, kept on disk if the options ask for one, and holding what the scan made ahead
+     * of the job found out if the job was given one. The index only saves time, so the file is scanned as usual if
+     * the index cannot be opened.
+     *
+     * @param file The Excel file to process.
+     * @return The scan index, or null if none is kept or it cannot be opened.
+     */
+    private ScanIndex openScanIndex(File file) {
+        ScanIndex scanned = job.getScan() != null ? job.getScan().indexFor(file, options.getCsvFormat()) : null;
+        if (!options.isScanIndex()) {
+            return scanned;
+        }
+        try {
+            ScanIndex index = ScanIndex.open(file, options.getIndexFolder(), options.getCsvFormat());
+            if (scanned != null) {
+                index.addMissing(scanned);
+            }
+            return index;
+        } catch (IOException e) {
+            logger.warn("Could not open the scan index of {}", file.getAbsolutePath(), e);
+            return scanned;
+        }
+    }
+
+    /**
+     * Randomly selects rows of a delimited text file, read as a single sheet.
+     *
+     * @param file    The delimited text file to process.
+     * @param randoms The sources of randomness of the samples.
+     * @return The selected rows.
+     * @throws ProcessingException If the rows could not be selected.
+     */
+    private SheetSample sampleDelimitedText(File file, List<Random> randoms) throws Exception {
+        CsvSheet sheet = new CsvSheet(file, options.getCsvFormat());
+        csvDelimiter = sheet.getDelimiter();
+        logger.info("Reading delimited text in {} separated by {}", options.getCsvFormat().getCharset(),
+                describeDelimiter(csvDelimiter));
+        explanation.append("Failas skaitomas kaip tekstas (").append(options.getCsvFormat().getCharset())
+                .append("), reikšmių skirtukas: ").append(describeDelimiter(csvDelimiter)).append("\n");
+        return sampleSheet(sheet, 0, randoms);
+    }
+
+    /**
+     * @param delimiter The character separating the values of delimited text.
+     * @return The delimiter as shown to the user.
+     */
+    private static String describeDelimiter(char delimiter) {
+        return delimiter == '\t' ? "tabuliacija" : "„" + delimiter + "“";
+    }
+
+    /**
+     * Randomly selects rows of the first sheet of the file.
+     *
+     * @param file    The Excel file to process.
+     * @param randoms The sources of randomness of the samples.
+     * @return The selected rows.
+     * @throws ProcessingException If the rows could not be selected.
+     */
+    private SheetSample sampleFirstSheet(File file, List<Random> randoms) throws Exception {
+        try (StreamedWorkbook workbook = openStreamedWorkbook(file)) {
+            return sampleSheet(workbook.sheet(0, options.getCopyMode()), 0, randoms);
+        }
+    }
+
+    /**
+     * Opens a workbook for streaming, with the event model of its format.
+     *
+     * @param file The .xlsx or .xls file.
+     * @return The opened workbook, which must be closed.
+     * @throws Exception If the file cannot be opened.
+     */
+    private StreamedWorkbook openStreamedWorkbook(File file) throws Exception {
+        return FileMagic.valueOf(file) == FileMagic.OOXML
+                ? XlsxStreamReader.XlsxWorkbook.open(file, options.isSharedStringsOnDisk())
+                : XlsStreamReader.XlsWorkbook.open(file);
+    }
+
+    /**
+     * Randomly selects rows of every sheet of the file. The file is opened once, and the sheets are streamed at the
+     * same time on the common fork-join pool. Sheets without an info row are skipped.
+     *
+     * @param file    The Excel file to process.
+     * @param randoms The sources of randomness of the samples.
+     * @return The selected rows by sheet name, in workbook order.
+     * @throws ProcessingException If the rows could not be selected.
+     */
+    private Map<String, SheetSample> sampleAllSheets(File file, List<Random> randoms) throws Exception {
+        try (StreamedWorkbook workbook = openStreamedWorkbook(file)) {
+            return sampleSheets(workbook.getSheetNames(), randoms, (processor, index, sheetRandoms) ->
+                    processor.sampleSheet(workbook.sheet(index, options.getCopyMode()), index, sheetRandoms));
+        }
+    }
+
+    /**
+     * Samples one sheet of a workbook with its own processor.
+     */
+    private interface SheetTask {
+
+        /**
+         * @param processor The processor of the sheet.
+         * @param index     The index of the sheet, in workbook order.
+         * @param randoms   The sources of randomness of the samples of the sheet.
+         * @return The selected rows.
+         * @throws Exception If the rows could not be selected.
+         */
+        SheetSample sample(ExcelProcessor processor, int index, List<Random> randoms) throws Exception;
+    }
+
+    /**
+     * A piece of work done for every sheet or output part.
+     */
+    private interface IndexedTask {
+
+        /**
+         * @param index The index of the sheet or part.
+         * @throws Exception If the work fails.
+         */
+        void run(int index) throws Exception;
+    }
+
+    /**
+     * Runs a task for every index, either one after another or at the same time on the common pool. The first failure
+     * is rethrown as it is.
+     *
+     * @param count    The number of indexes.
+     * @param parallel Whether the indexes can be handled at the same time.
+     * @param task     The task run for every index.
+     * @throws Exception If the task fails for any index.
+     */
+    private static void runAll(int count, boolean parallel, IndexedTask task) throws Exception {
+        IntStream indexes = IntStream.range(0, count);
+        try {
+            (parallel ? indexes.parallel() : indexes).forEach(i -> {
+                try {
+                    task.run(i);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+        } catch (CompletionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    /**
+     * Samples the given sheets, each with its own processor and its own generators seeded in sheet order, so the
+     * selection does not depend on the thread scheduling. The explanation of every sheet is appended in sheet order.
+     *
+     * @param sheetNames The names of the sheets, in workbook order.
+     * @param randoms    The generators of the samples of the job, which seed the generators of the sheets.
+     * @param task       Samples one sheet.
+     * @return The selected rows by sheet name, in workbook order.
+     * @throws ProcessingException If the rows of a sheet could not be selected, or no sheet has data.
+     */
+    private Map<String, SheetSample> sampleSheets(List<String> sheetNames, List<Random> randoms, SheetTask task)
+            throws Exception {
+        logger.info("Sampling {} sheets in parallel", sheetNames.size());
+        explanation.append("Apdorojami visi failo lapai: ").append(sheetNames.size()).append("\n");
+        startPhase(ProcessingPhase.SCAN);
+
+        List<List<Random>> sheetRandoms = new ArrayList<>(sheetNames.size());
+        List<ExcelProcessor> processors = new ArrayList<>(sheetNames.size());
+        ProgressListener sheetListener = sheetListener();
+        for (int i = 0; i < sheetNames.size(); i++) {
+            List<Random> randomsOfSheet = new ArrayList<>(randoms.size());
+            for (Random random : randoms) {
+                randomsOfSheet.add(new Random(random.nextLong()));
+            }
+            sheetRandoms.add(randomsOfSheet);
+            processors.add(new ExcelProcessor(this, sheetListener));
+        }
+
+        SheetSample[] samples = new SheetSample[sheetNames.size()];
+        runAll(samples.length, true, i -> samples[i] = processors.get(i).sampleSheet(task, i, sheetRandoms.get(i)));
+
+        Map<String, SheetSample> sampled = new LinkedHashMap<>();
+        for (int i = 0; i < samples.length; i++) {
+            explanation.append("\n");
+            if (samples[i] == null) {
+                explanation.append("Lapas „").append(sheetNames.get(i)).append("“ praleistas, nes jame nėra duomenų.\n");
+                continue;
+            }
+            explanation.append("Lapas „").append(sheetNames.get(i)).append("“:\n");
+            explanation.append(processors.get(i).explanation);
+            dataRowCount += processors.get(i).dataRowCount;
+            sampled.put(sheetNames.get(i), samples[i]);
+        }
+        if (sampled.isEmpty()) {
+            logger.error("None of the {} sheets has an info row", sheetNames.size());
+            throw new ProcessingException("Nė viename failo lape nerasta duomenų.");
+        }
+        startPhase(ProcessingPhase.SELECT);
+        return sampled;
+    }
+
+    /**
+     * Runs the sampling task of one sheet with this processor.
+     *
+     * @param task    Samples one sheet.
+     * @param index   The index of the sheet, in workbook order.
+     * @param randoms The sources of randomness of the samples of the sheet.
+     * @return The selected rows, or null if the sheet has no info row.
+     * @throws Exception If the rows could not be selected.
+     */
+    private SheetSample sampleSheet(SheetTask task, int index, List<Random> randoms) throws Exception {
+        try {
+            return task.sample(this, index, randoms);
+        } catch (EmptySheetException e) {
+            logger.info("Skipping sheet {}, which has no info row", index);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the listener of the processors of sheets or output parts, which adds up the rows handled by all of them
+     * and follows the cancellation of the job. Cancelling also covers the interruption of the thread running the job,
+     * as the sheets and parts may run on other threads.
+     *
+     * @return The listener of the processors.
+     */
+    private ProgressListener sheetListener() {
+        Thread processingThread = Thread.currentThread();
+        AtomicLong rows = new AtomicLong();
+        return new ProgressListener() {
+            @Override
+            public void onRows(long sheetRows) {
+                listener.onRows(rows.addAndGet(PROGRESS_INTERVAL));
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return listener.isCancelled() || processingThread.isInterrupted();
+            }
+        };
+    }
+
+    /**
+     * Randomly selects rows of a streamed sheet, within every stratum if the rows are stratified.
+     *
+     * @param source   The source streaming the rows of the sheet.
+     * @param sheetIdx The index of the sheet, in workbook order.
+     * @param randoms  The sources of randomness of the samples. Stratified sampling draws a single sample.
+     * @return The selected rows.
+     * @throws ProcessingException If the rows could not be selected.
+     */
+    private SheetSample sampleSheet(SheetSource source, int sheetIdx, List<Random> randoms)
+            throws Exception {
+        if (options.getStratumColumn() != null) {
+            return sampleStratifiedStreamedSheet(source, randoms.get(0));
+        }
+        // Filtered and weighted rows are read as they stream past, so the scan cannot be skipped
+        ScanIndex.SheetEntry entry = scanIndex != null && options.getFilters().isEmpty()
+                && options.getWeightColumn() == null
+                ? scanIndex.get(sheetIdx)
+                : null;
+        return entry != null
+                ? sampleIndexedStreamedSheet(source, entry, randoms)
+                : sampleStreamedSheet(source, sheetIdx, randoms);
+    }
+
+    /**
+     * Reads the weight of a data row, logging a weight that is not a number, as the row cannot be selected.
+     *
+     * @param rowIdx The index of the row in the sheet.
+     * @param value  The value of the weight cell.
+     * @return The weight, or NaN if the cell is blank or holds no number.
+     */
+    private double readWeight(int rowIdx, Object value) {
+        double weight = WeightedReservoirSampler.weightOf(value);
+        if (Double.isNaN(weight) && !value.toString().trim().isEmpty()) {
+            logger.debug("Skipping row {}, as its weight \"{}\" is not a number", rowIdx + 1, value);
+        }
+        return weight;
+    }
+
+    /**
+     * @param column Index of the weight column, or -1 if it was not found in the info row.
+     * @throws ProcessingException If the column was not found.
+     */
+    private void checkWeightColumn(int column) throws ProcessingException {
+        if (column < 0) {
+            logger.error("The info row has no column named {} to weigh the rows by", options.getWeightColumn());
+            throw new ProcessingException("Informacinėje eilutėje nėra stulpelio „" + options.getWeightColumn()
+                    + "“, kurio reikšmės naudojamos kaip eilučių svoriai.");
+        }
+    }
+
+    /**
+     * Appends the weights and keys of the rows selected by weighted sampling to the explanation.
+     *
+     * @param samples The selected rows of every sample, each a {@link WeightedReservoirSampler.WeightedRow}.
+     */
+    private void appendRowWeights(List<? extends List<? extends SampledRow<?>>> samples) {
+        List<int[]> rows = new ArrayList<>(samples.size());
+        List<double[]> weights = new ArrayList<>(samples.size());
+        List<double[]> logKeys = new ArrayList<>(samples.size());
+        for (List<? extends SampledRow<?>> sample : samples) {
+            int[] sampleRows = new int[sample.size()];
+            double[] sampleWeights = new double[sample.size()];
+            double[] sampleLogKeys = new double[sample.size()];
+            for (int i = 0; i < sampleRows.length; i++) {
+                WeightedReservoirSampler.WeightedRow<?> row = (WeightedReservoirSampler.WeightedRow<?>) sample.get(i);
+                sampleRows[i] = row.getRowIdx();
+                sampleWeights[i] = row.getWeight();
+                sampleLogKeys[i] = row.getLogKey();
+            }
+            rows.add(sampleRows);
+            weights.add(sampleWeights);
+            logKeys.add(sampleLogKeys);
+        }
+        explanation.appendRowWeights(rows, weights, logKeys);
+    }
+
+    /**
+     * Binds the filters of the job to the columns of a sheet.
+     *
+     * @param infoRow Values of the info row.
+     * @return The matcher of the sheet.
+     * @throws ProcessingException If a filtered column is not in the info row.
+     */
+    private RowMatcher bindFilters(Object[] infoRow) throws ProcessingException {
+        RowMatcher matcher = RowMatcher.bind(options.getFilters(), infoRow);
+        checkFilterColumns(matcher);
+        return matcher;
+    }
+
+    /**
+     * @param matcher The filters bound to the columns of a sheet, or null if the sheet was not filtered.
+     * @throws ProcessingException If a filtered column is not in the info row.
+     */
+    private static void checkFilterColumns(RowMatcher matcher) throws ProcessingException {
+        RowFilter unbound = matcher != null ? matcher.getUnboundFilter() : null;
+        if (unbound != null) {
+            logger.error("The info row has no column named {} to filter by", unbound.getColumn());
+            throw new ProcessingException("Informacinėje eilutėje nėra stulpelio „" + unbound.getColumn()
+                    + "“, pagal kurį reikia filtruoti eilutes.");
+        }
+    }
+
+    /**
+     * Streams a sheet once, finding the info row and the end of the data while sampling the data rows
+     * on the fly. Only the sampled rows are kept in memory. Every sample is drawn in the same pass, and a row kept by
+     * several samples is converted once.
+     *
+     * @param source   The source streaming the rows of the sheet.
+     * @param sheetIdx The index of the sheet, in workbook order.
+     * @param randoms  The sources of randomness of the samples.
+     * @return The selected rows.
+     * @throws ProcessingException If the rows could not be selected.
+     */
+    private SheetSample sampleStreamedSheet(SheetSource source, int sheetIdx, List<Random> randoms)
+            throws Exception {
+        logger.info("Streaming the sheet and sampling the data rows in a single pass");
+        DataBoundsTracker tracker = new DataBoundsTracker();
+        List<RowSampler<Object[]>> samplers = createSamplers(randoms);
+        // Every sampler is offered the rows meeting the filters, and counts them
+        RowSampler<Object[]> sampler = samplers.get(0);
+        SharedRowReader reader = new SharedRowReader();
+        List<Object> infoRow = new ArrayList<>();
+        boolean[] seenData = new boolean[1];
+        SheetSource.RowListener rowListener = (rowIdx, cells) -> {
+            if (rowsRead == 0) {
+                startPhase(ProcessingPhase.SCAN);
+            }
+            countRow();
+            if (tracker.accept(rowIdx, cells.size(), hasContent(cells))) {
+                if (!seenData[0] && rowIdx > tracker.getFirstDataIdx()) {
+                    // The row right after the info row is missing from the file but still counts as data
+                    reader.offer(samplers, tracker.getFirstDataIdx(), Collections.emptyList());
+                }
+                seenData[0] = true;
+                reader.offer(samplers, rowIdx, cells);
+            } else if (rowIdx == tracker.getInfoRowIdx()) {
+                infoRow.addAll(cells);
+                infoRowLength = tracker.getInfoRowLength();
+                metrics.startStage(ProcessingMetrics.Stage.DATA_END);
+                // Without the columns no row can be checked or weighed
+                return reader.bind(toRowValues(infoRow)) && !tracker.isFinished();
+            }
+            return !tracker.isFinished();
+        };
+        RowPositions positions = null;
+        if (scanIndex != null) {
+            positions = source.readNotingPositions(rowListener);
+        } else {
+            source.read(rowListener);
+        }
+        if (tracker.getInfoRowIdx() >= 0) {
+            checkFilterColumns(reader.matcher);
+            if (options.getWeightColumn() != null) {
+                checkWeightColumn(reader.weightColumn);
+            }
+        }
+        if (!seenData[0] && tracker.getInfoRowIdx() >= 0) {
+            // The sheet ends with the info row, and the missing row after it still counts as data
+            reader.offer(samplers, tracker.getFirstDataIdx(), Collections.emptyList());
+        }
+        indexSheet(sheetIdx, tracker.getInfoRowIdx(), tracker.getFirstDataIdx(), tracker.getLastDataIdx(),
+                toRowValues(infoRow), positions);
+
+        int numRowsToTake = countRowsToTake(tracker.getInfoRowIdx(), tracker.getFirstDataIdx(),
+                tracker.getLastDataIdx(), sampler.getRowCount(), sampler);
+
+        startPhase(ProcessingPhase.SELECT);
+        List<int[]> selectedRows = new ArrayList<>(randoms.size());
+        List<List<Object[]>> samples = new ArrayList<>(randoms.size());
+        List<List<SampledRow<Object[]>>> finished = finishSamplers(samplers, numRowsToTake);
+        for (List<SampledRow<Object[]>> sample : finished) {
+            int[] sampleRows = new int[sample.size()];
+            List<Object[]> dataRows = new ArrayList<>(sample.size());
+            for (int i = 0; i < sampleRows.length; i++) {
+                sampleRows[i] = sample.get(i).getRowIdx();
+                dataRows.add(sample.get(i).getValues());
+            }
+            selectedRows.add(sampleRows);
+            samples.add(dataRows);
+        }
+        explanation.appendRowMappings(selectedRows, rowsPerPart());
+        if (options.getWeightColumn() != null) {
+            appendRowWeights(finished);
+        }
+        return SheetSample.ofSamples(toRowValues(infoRow), samples);
+    }
+
+    /**
+     * Samples a streamed sheet whose bounds are known from the scan index. The same rows are selected as by
+     * {@link #sampleStreamedSheet(SheetSource, int, List)}, as the samplers are offered the same row
+     * indexes in the same order, but only the info row and the selected rows are read from the file.
+     *
+     * @param source  The source streaming the rows of the sheet.
+     * @param entry   What an earlier scan found out about the sheet.
+     * @param randoms The sources of randomness of the samples.
+     * @return The selected rows.
+     * @throws ProcessingException If the rows could not be selected.
+     */
+    private SheetSample sampleIndexedStreamedSheet(SheetSource source, ScanIndex.SheetEntry entry,
+                                                   List<Random> randoms) throws Exception {
+        logger.info("Sampling the sheet with the bounds from the scan index");
+        startPhase(ProcessingPhase.SCAN);
+        appendIndexUse();
+        infoRowLength = entry.getColumnCount();
+        int numRowsToTake = countRowsToTake(entry.getInfoRowIdx(), entry.getFirstDataIdx(), entry.getLastDataIdx(),
+                entry.getLastDataIdx() - entry.getFirstDataIdx() + 1, null);
+
+        startPhase(ProcessingPhase.SELECT);
+        List<RowSampler<Integer>> samplers = createSamplers(randoms);
+        for (int rowIdx = entry.getFirstDataIdx(); rowIdx <= entry.getLastDataIdx(); rowIdx++) {
+            for (RowSampler<Integer> sampler : samplers) {
+                sampler.offer(rowIdx, rowIdx, Function.identity());
+            }
+        }
+        List<int[]> selectedRows = new ArrayList<>(randoms.size());
+        int selectedCount = 0;
+        for (List<SampledRow<Integer>> sample : finishSamplers(samplers, numRowsToTake)) {
+            int[] sampleRows = new int[sample.size()];
+            for (int i = 0; i < sampleRows.length; i++) {
+                sampleRows[i] = sample.get(i).getRowIdx();
+            }
+            selectedRows.add(sampleRows);
+            selectedCount += sampleRows.length;
+        }
+        explanation.appendRowMappings(selectedRows, rowsPerPart());
+
+        // The rows of all the samples are read together, in a single pass
+        int[] rowsToRead = new int[selectedCount + 1];
+        int position = 0;
+        for (int[] sampleRows : selectedRows) {
+            System.arraycopy(sampleRows, 0, rowsToRead, position, sampleRows.length);
+            position += sampleRows.length;
+        }
+        rowsToRead[selectedCount] = entry.getInfoRowIdx();
+        Object[][] values = readStreamedRows(source, entry.getPositions(), rowsToRead);
+        List<List<Object[]>> samples = new ArrayList<>(selectedRows.size());
+        position = 0;
+        for (int[] sampleRows : selectedRows) {
+            samples.add(new ArrayList<>(Arrays.asList(values).subList(position, position + sampleRows.length)));
+            position += sampleRows.length;
+        }
+        return SheetSample.ofSamples(values[selectedCount], samples);
+    }
+
+    /**
+     * Reads the given rows of a streamed sheet in a single pass, stopping after the last of them.
+     *
+     * @param source    The source streaming the rows of the sheet.
+     * @param positions Where the rows start in the sheet XML, or null to read from the start.
+     * @param rows      The indexes of the rows to read. A row listed more than once is read once.
+     * @return The values of the rows, in the given order. Rows missing from the sheet are empty.
+     * @throws Exception If the sheet cannot be read.
+     */
+    private Object[][] readStreamedRows(SheetSource source, RowPositions positions, int[] rows)
+            throws Exception {
+        int[] sortedRows = Arrays.stream(rows).distinct().sorted().toArray();
+        Object[][] sortedValues = new Object[sortedRows.length][];
+        if (sortedRows.length > 0) {
+            int lastRow = sortedRows[sortedRows.length - 1];
+            source.readRows(sortedRows, positions, (rowIdx, cells) -> {
+                countRow();
+                int position = Arrays.binarySearch(sortedRows, rowIdx);
+                if (position >= 0) {
+                    sortedValues[position] = toRowValues(cells);
+                }
+                return rowIdx < lastRow;
+            });
+        }
+
+        Object[][] values = new Object[rows.length][];
+        for (int i = 0; i < rows.length; i++) {
+            Object[] rowValues = sortedValues[Arrays.binarySearch(sortedRows, rows[i])];
+            values[i] = rowValues != null ? rowValues : toRowValues(Collections.emptyList());
+        }
+        return values;
+    }
+
+    /**
+     * Adds what the scan found out about a sheet to the scan index, if one is kept.
+     *
+     * @param sheetIdx     The index of the sheet, in workbook order.
+     * @param infoRowIdx   Index of the info row, or -1 if the sheet has none.
+     * @param firstDataIdx Index of the first data row.
+     * @param lastDataIdx  Index of the last data row.
+     * @param infoRow      Values of the info row.
+     * @param positions    Where the rows start in the sheet XML, or null if unknown.
+     */
+    private void indexSheet(int sheetIdx, int infoRowIdx, int firstDataIdx, int lastDataIdx, Object[] infoRow,
+                            RowPositions positions) {
+        if (scanIndex == null) {
+            return;
+        }
+        String[] infoRowText = new String[infoRow.length];
+        for (int i = 0; i < infoRow.length; i++) {
+            infoRowText[i] = String.valueOf(infoRow[i]);
+        }
+        scanIndex.put(sheetIdx, new ScanIndex.SheetEntry(infoRowIdx, firstDataIdx, lastDataIdx, infoRowLength,
+                infoRowText, positions));
+    }
+
+    /**
+     * Notes in the explanation that the sheet was not scanned, as its bounds were taken from the scan index or from
+     * the scan made when the file was chosen.
+     */
+    private void appendIndexUse() {
+        if (scanIndex.isInMemory()) {
+            logger.info("The info row and the data bounds were taken from the scan made when the file was chosen");
+            explanation.append("Informacinė eilutė ir duomenų ribos nustatytos iš anksto, vos pasirinkus failą, ")
+                    .append("todėl failas nebuvo skaitomas iš naujo.\n");
+            return;
+        }
+        logger.info("The info row and the data bounds were taken from the scan index");
+        explanation.append("Informacinė eilutė ir duomenų ribos paimtos iš failo indekso, ")
+                .append("todėl failas nebuvo skaitomas iš naujo.\n");
+    }
+
+    /**
+     * Streams a sheet twice: first to group the data row indexes into strata, then to read the rows
+     * selected within every stratum. Only the indexes and the selected rows are kept in memory.
+     *
+     * @param source The source streaming the rows of the sheet.
+     * @param random The source of randomness.
+     * @return The selected rows.
+     * @throws ProcessingException If the rows could not be selected.
+     */
+    private SheetSample sampleStratifiedStreamedSheet(SheetSource source, Random random)
+            throws Exception {
+        logger.info("Streaming the sheet to group the data rows by {}", options.getStratumColumn());
+        DataBoundsTracker tracker = new DataBoundsTracker();
+        StratifiedSelection selection = new StratifiedSelection();
+        List<Object> infoRow = new ArrayList<>();
+        int[] column = {-1};
+        RowMatcher[] matcher = new RowMatcher[1];
+        boolean[] seenData = new boolean[1];
+        source.read((rowIdx, cells) -> {
+            if (rowsRead == 0) {
+                startPhase(ProcessingPhase.SCAN);
+            }
+            countRow();
+            if (tracker.accept(rowIdx, cells.size(), hasContent(cells))) {
+                if (!seenData[0] && rowIdx > tracker.getFirstDataIdx()
+                        && (matcher[0] == null || matcher[0].matches(Collections.emptyList()))) {
+                    // The row right after the info row is missing from the file but still counts as data
+                    selection.add(tracker.getFirstDataIdx(), "");
+                }
+                seenData[0] = true;
+                if (matcher[0] == null || matcher[0].matches(cells)) {
+                    selection.add(rowIdx, column[0] < cells.size() ? String.valueOf(cells.get(column[0])) : "");
+                }
+            } else if (rowIdx == tracker.getInfoRowIdx()) {
+                infoRow.addAll(cells);
+                infoRowLength = tracker.getInfoRowLength();
+                metrics.startStage(ProcessingMetrics.Stage.DATA_END);
+                column[0] = findStratumColumn(toRowValues(infoRow));
+                if (!options.getFilters().isEmpty()) {
+                    matcher[0] = RowMatcher.bind(options.getFilters(), toRowValues(infoRow));
+                }
+                // Without the columns there is nothing to group by or to filter with
+                return column[0] >= 0 && (matcher[0] == null || matcher[0].getUnboundFilter() == null);
+            }
+            return !tracker.isFinished();
+        });
+        if (column[0] >= 0) {
+            checkFilterColumns(matcher[0]);
+        }
+
+        int[] selectedRows = selectStrata(selection, column[0], tracker.getInfoRowIdx(), tracker.getFirstDataIdx(),
+                tracker.getLastDataIdx(), random);
+
+        // Read the selected rows in a second pass
+        Object[][] values = readStreamedRows(source, null, selectedRows);
+        return new SheetSample(toRowValues(infoRow), new ArrayList<>(Arrays.asList(values)));
+    }
+
+    /**
+     * Finds the column grouping the rows into strata by its name in the info row.
+     *
+     * @param infoRow Values of the info row.
+     * @return Index of the column, or -1 if no column has the name.
+     */
+    private int findStratumColumn(Object[] infoRow) {
+        return findColumn(infoRow, options.getStratumColumn());
+    }
+
+    /**
+     * Finds a column by its name in the info row. Surrounding spaces and the case of the letters are ignored if no
+     * name matches exactly.
+     *
+     * @param infoRow Values of the info row.
+     * @param column  The name of the column.
+     * @return Index of the column, or -1 if no column has the name.
+     */
+    static int findColumn(Object[] infoRow, String column) {
+        String name = column.trim();
+        for (int i = 0; i < infoRow.length; i++) {
+            if (String.valueOf(infoRow[i]).equals(name)) {
+                return i;
+            }
+        }
+        for (int i = 0; i < infoRow.length; i++) {
+            if (String.valueOf(infoRow[i]).trim().equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Logs the data bounds, shares the rows to take between the strata and selects them.
+     *
+     * @param selection    The data rows grouped into strata.
+     * @param column       Index of the column grouping the rows, or -1 if it was not found.
+     * @param infoRowIdx   Index of the info row.
+     * @param firstDataIdx Index of the first data row.
+     * @param lastDataIdx  Index of the last data row.
+     * @param random       The source of randomness.
+     * @return The selected row indexes, in the order they are written to the new file.
+     * @throws ProcessingException If the indexes are invalid or the column does not exist.
+     */
+    private int[] selectStrata(StratifiedSelection selection, int column, int infoRowIdx, int firstDataIdx,
+                               int lastDataIdx, Random random) throws ProcessingException {
+        int rowCount = lastDataIdx - firstDataIdx + 1;
+        dataRowCount = Math.max(rowCount, 0);
+        logGeneralInformation(infoRowIdx, firstDataIdx, lastDataIdx, rowCount);
+        if (rowCount < 0 || infoRowIdx < 0) {
+            throw indexError(infoRowIdx, rowCount, 0);
+        }
+        if (column < 0) {
+            logger.error("The info row has no column named {}", options.getStratumColumn());
+            throw new ProcessingException("Informacinėje eilutėje nėra stulpelio „" + options.getStratumColumn()
+                    + "“, pagal kurį reikia sluoksniuoti duomenis.");
+        }
+
+        if (!options.getFilters().isEmpty()) {
+            appendFilterMatch(selection.getRowCount(), rowCount);
+        }
+
+        startPhase(ProcessingPhase.SELECT);
+        int numRowsToTake = selection.allocate(options.getNumber(), options.isPercent(), options.getAllocation());
+        logger.info("{} data rows will be taken randomly from {} strata", numRowsToTake, selection.getStrata().size());
+        appendStrata(selection, numRowsToTake);
+        int[] selectedRows = selection.select(random);
+        explanation.appendRowMapping(selectedRows, rowsPerPart());
+        return selectedRows;
+    }
+
+    /**
+     * Appends how the rows were shared between the strata to the explanation.
+     *
+     * @param selection     The data rows grouped into strata.
+     * @param numRowsToTake The total number of rows selected.
+     */
+    private void appendStrata(StratifiedSelection selection, int numRowsToTake) {
+        explanation.append("Sluoksninė atranka pagal stulpelį „").append(options.getStratumColumn()).append("“.\n");
+        if (options.isPercent()) {
+            explanation.append("Nustatyta atsitiktinės atrankos būdu atrinkti ").append(options.getNumber())
+                    .append("% kiekvieno sluoksnio eilučių.\n");
+        } else if (options.getAllocation() == StratumAllocation.FIXED) {
+            explanation.append("Nustatyta atsitiktinės atrankos būdu atrinkti po ").append((int) options.getNumber())
+                    .append(" kiekvieno sluoksnio eilutes.\n");
+        } else {
+            explanation.append("Nustatyta atsitiktinės atrankos būdu atrinkti ").append((int) options.getNumber())
+                    .append(" duomenų eilutes, paskirstant jas sluoksniams proporcingai jų dydžiui.\n");
+        }
+        explanation.append("Sluoksniai (atrinkta iš viso eilučių sluoksnyje):\n");
+        for (StratifiedSelection.Stratum stratum : selection.getStrata()) {
+            explanation.append("  ").append(stratum.getKey().isEmpty() ? "(tuščia)" : stratum.getKey()).append(": ")
+                    .append(stratum.getAllocated()).append(" iš ").append(stratum.getSize()).append("\n");
+        }
+        explanation.append("Bendras atriktų eilučių skaičius: ").append(numRowsToTake).append("\n");
+    }
+
+    /**
+     * Creates the sources of randomness of the samples. A single sample, and samples that must not overlap, use the
+     * generator of the job. Overlapping samples each get a generator of their own, seeded from the generator of the
+     * job, so that each of them selects the same rows as a job run alone with its seed.
+     *
+     * @param random The generator of the job.
+     * @return The generators of the samples.
+     */
+    private List<Random> createSampleRandoms(Random random) {
+        int sampleCount = options.getSampleCount();
+        if (sampleCount == 1) {
+            return Collections.singletonList(random);
+        }
+        List<String> texts = new ArrayList<>(sampleCount);
+        if (!options.isOverlapping()) {
+            logger.info("Drawing {} samples that do not overlap", sampleCount);
+            explanation.append("Atrinktos ").append(sampleCount).append(" nesikertančios imtys: visų imčių eilutės ")
+                    .append("atrinktos kartu ir atsitiktinai padalytos imtims, todėl eilutė patenka ne daugiau kaip ")
+                    .append("į vieną imtį.\n");
+            for (int i = 0; i < sampleCount; i++) {
+                texts.add("Ši imtis: " + (i + 1) + " iš " + sampleCount + ".\n");
+            }
+            explanation.appendPerSample(texts);
+            return Collections.singletonList(random);
+        }
+
+        logger.info("Drawing {} independent samples", sampleCount);
+        explanation.append("Atrinktos ").append(sampleCount).append(" nepriklausomos imtys, kiekviena su savo sėkla, ")
+                .append("todėl ta pati eilutė gali patekti į kelias imtis.\n");
+        List<Random> randoms = new ArrayList<>(sampleCount);
+        for (int i = 0; i < sampleCount; i++) {
+            long seed = random.nextLong();
+            logger.info("Seed of sample {} is: {}", i + 1, seed);
+            randoms.add(new Random(seed));
+            texts.add("Ši imtis: " + (i + 1) + " iš " + sampleCount + ", jos sėkla: " + seed + ".\n");
+        }
+        explanation.appendPerSample(texts);
+        return randoms;
+    }
+
+    /**
+     * Creates the samplers picking the data rows of the samples in a single pass: one for every overlapping sample, or
+     * one taking the rows of all the samples together when they must not overlap.
+     *
+     * @param randoms The sources of randomness of the samples.
+     * @return The samplers.
+     */
+    private <T> List<RowSampler<T>> createSamplers(List<Random> randoms) {
+        int combined = options.isOverlapping() ? 1 : options.getSampleCount();
+        List<RowSampler<T>> samplers = new ArrayList<>(randoms.size());
+        for (Random random : randoms) {
+            samplers.add(createSampler(random, combined));
+        }
+        return samplers;
+    }
+
+    /**
+     * Creates the sampler used to pick data rows in a single pass: a weighted reservoir when the rows are weighted, a
+     * fixed size reservoir when a number of rows is requested, or a proportional sampler when a percentage is
+     * requested.
+     *
+     * @param random   The source of randomness.
+     * @param combined The number of samples whose rows the sampler takes together.
+     * @return The sampler.
+     */
+    private <T> RowSampler<T> createSampler(Random random, int combined) {
+        if (options.getWeightColumn() != null) {
+            return new WeightedReservoirSampler<>((int) options.getNumber(), random);
+        }
+        if (options.isPercent()) {
+            return new ProportionalSampler<>(options.getNumber() / 100.0 * combined, random);
+        }
+        return new ReservoirSampler<>((int) Math.min((long) options.getNumber() * combined, Integer.MAX_VALUE), random);
+    }
+
+    /**
+     * Finishes the samplers and hands out the selected rows to the samples.
+     *
+     * @param samplers      The samplers created by {@link #createSamplers(List)}.
+     * @param numRowsToTake The number of rows of every sample.
+     * @return The selected rows of every sample, in random order.
+     */
+    private <T> List<List<SampledRow<T>>> finishSamplers(List<RowSampler<T>> samplers, int numRowsToTake) {
+        List<List<SampledRow<T>>> samples = new ArrayList<>(options.getSampleCount());
+        if (samplers.size() == options.getSampleCount()) {
+            for (RowSampler<T> sampler : samplers) {
+                samples.add(sampler.finish(numRowsToTake));
+            }
+            return samples;
+        }
+        // The rows come in random order, so consecutive runs of them are random samples that do not overlap
+        List<SampledRow<T>> selected = samplers.get(0).finish(numRowsToTake * options.getSampleCount());
+        for (int i = 0; i < options.getSampleCount(); i++) {
+            samples.add(selected.subList(i * numRowsToTake, (i + 1) * numRowsToTake));
+        }
+        return samples;
+    }
+
+    /**
+     * Offers the rows of a streamed sheet to the samplers of every sample, converting a row at most once however many
+     * of the samples keep it.
+     */
+    private final class SharedRowReader implements Function<List<Object>, Object[]> {
+
+        private Object[] values;
+        // The filters bound to the columns of the sheet, or null if the sheet is not filtered
+        private RowMatcher matcher;
+        // Index of the weight column, or -1 if the rows are not weighted or the column was not found
+        private int weightColumn = -1;
+
+        /**
+         * Finds the columns the filters and the weights of the job are read from.
+         *
+         * @param infoRow Values of the info row.
+         * @return False if a column was not found, so no row can be offered.
+         */
+        boolean bind(Object[] infoRow) {
+            boolean bound = true;
+            if (!options.getFilters().isEmpty()) {
+                matcher = RowMatcher.bind(options.getFilters(), infoRow);
+                bound = matcher.getUnboundFilter() == null;
+            }
+            if (options.getWeightColumn() != null) {
+                weightColumn = findColumn(infoRow, options.getWeightColumn());
+                bound &= weightColumn >= 0;
+            }
+            return bound;
+        }
+
+        /**
+         * Offers the next data row to every sampler, with its weight, unless it fails the filters of the job.
+         *
+         * @param samplers The samplers of the samples.
+         * @param rowIdx   The index of the row in the sheet.
+         * @param cells    The cells of the row.
+         */
+        void offer(List<RowSampler<Object[]>> samplers, int rowIdx, List<Object> cells) {
+            if (matcher != null && !matcher.matches(cells)) {
                 return;
             }
+            double weight = weightColumn >= 0
+                    ? readWeight(rowIdx, weightColumn < cells.size() ? cells.get(weightColumn) : "")
+                    : Double.NaN;
+            values = null;
+            for (RowSampler<Object[]> sampler : samplers) {
+                sampler.offer(rowIdx, weight, cells, this);
+            }
+        }
 
-            Alerter.displayResult("Duomenys sėkmingai apdoroti ir išsaugoti.\n\nNauja Excel'io lentelė išsaugota faile " + EXCEL_FILE_NAME + ".\n\nDuomenų apdorojimo paaiškinimas " +
-                    "išsaugotas faile " + TEXT_FILE_NAME + ".\n\nAbu failai išsaugoti: " + folder.getAbsolutePath());
-        } catch (Exception e) {
-            handleUnknownError(e);
+        @Override
+        public Object[] apply(List<Object> cells) {
+            if (values == null) {
+                values = toRowValues(cells);
+            }
+            return values;
         }
     }
 
     /**
-     * Handles unknown errors that occur during processing.
+     * Logs the data bounds and works out how many rows to take.
      *
-     * @param e         The exception that occurred.
+     * @param infoRowIdx   Index of the info row.
+     * @param firstDataIdx Index of the first data row.
+     * @param lastDataIdx  Index of the last data row.
+     * @param matchCount   The number of data rows meeting the filters of the job. Without filters every data row
+     *                     counts.
+     * @param sampler      The sampler the rows were offered to, which tells how many of them can be selected by their
+     *                     weights, or null if the rows are selected afterwards from all the rows meeting the filters.
+     * @return The number of rows to be selected.
+     * @throws ProcessingException If the indexes are invalid.
      */
-    private static void handleUnknownError(Exception e) {
-        logger.error("An unknown error occurred", e);
-        Alerter.displayError("Nežinoma klaida.");
+    private int countRowsToTake(int infoRowIdx, int firstDataIdx, int lastDataIdx, int matchCount,
+                                RowSampler<?> sampler) throws ProcessingException {
+        int rowCount = lastDataIdx - firstDataIdx + 1;
+        dataRowCount = Math.max(rowCount, 0);
+
+        logGeneralInformation(infoRowIdx, firstDataIdx, lastDataIdx, rowCount);
+        if (!options.getFilters().isEmpty() && infoRowIdx >= 0) {
+            appendFilterMatch(matchCount, rowCount);
+        }
+        if (sampler instanceof WeightedReservoirSampler && infoRowIdx >= 0) {
+            appendWeights((WeightedReservoirSampler<?>) sampler);
+        }
+        int selectableCount = sampler != null ? sampler.getSelectableCount() : matchCount;
+        int numRowsToTake = calculateNumRowsToTake(selectableCount);
+        logger.info("{} data rows will be taken randomly", numRowsToTake);
+
+        if (rowCount < 0 || numRowsToTake < 0 || infoRowIdx < 0) {
+            throw indexError(infoRowIdx, rowCount, numRowsToTake);
+        }
+        int sampleCount = options.getSampleCount();
+        if (!options.isOverlapping() && (long) numRowsToTake * sampleCount > selectableCount) {
+            logger.error("{} samples of {} rows do not fit in {} data rows without overlapping", sampleCount,
+                    numRowsToTake, selectableCount);
+            throw new ProcessingException("Nepakanka duomenų eilučių " + sampleCount + " nesikertančioms imtims po "
+                    + numRowsToTake + " eilučių. Iš viso " + (options.getFilters().isEmpty() ? "" : "sąlygas "
+                    + "atitinkančių ") + "duomenų eilučių yra " + selectableCount + ".");
+        }
+        return numRowsToTake;
+    }
+
+    /**
+     * Logs and explains how many data rows of a sheet can be selected by their weights.
+     *
+     * @param sampler The weighted sampler the rows were offered to.
+     */
+    private void appendWeights(WeightedReservoirSampler<?> sampler) {
+        String totalWeight = BigDecimal.valueOf(sampler.getTotalWeight()).toPlainString();
+        logger.info("{} data rows have a positive weight, {} in total; {} are zero, {} negative and {} blank or not a number",
+                sampler.getSelectableCount(), totalWeight, sampler.getZeroCount(), sampler.getNegativeCount(),
+                sampler.getBlankCount());
+        explanation.append("Teigiamą svorį turi duomenų eilučių: ").append(sampler.getSelectableCount())
+                .append(", jų svorių suma: ").append(totalWeight).append("\n");
+        explanation.append("Neatrenkamos eilutės, kurių svoris lygus nuliui: ").append(sampler.getZeroCount())
+                .append(", neigiamas: ").append(sampler.getNegativeCount())
+                .append(", tuščias arba ne skaičius: ").append(sampler.getBlankCount()).append("\n");
+    }
+
+    /**
+     * Logs and explains how many data rows of a sheet meet the filters of the job.
+     *
+     * @param matchCount The number of data rows meeting the filters.
+     * @param rowCount   Total number of data rows.
+     */
+    private void appendFilterMatch(int matchCount, int rowCount) {
+        logger.info("{} of {} data rows meet the filters", matchCount, rowCount);
+        explanation.append("Sąlygas atitinka duomenų eilučių: ").append(matchCount).append(" iš ").append(rowCount)
+                .append("\n");
     }
 
     /**
@@ -122,34 +1371,33 @@ public class ExcelProcessor {
      * @param lastDataIdx   Index of the last data row.
      * @param rowCount      Total number of data rows.
      */
-    private static void logGeneralInformation(int infoRowIdx, int firstDataIdx, int lastDataIdx, int rowCount) {
+    private void logGeneralInformation(int infoRowIdx, int firstDataIdx, int lastDataIdx, int rowCount) {
         logger.info("Info row index is: {}", infoRowIdx);
         logger.info("First data row index is: {}", firstDataIdx);
         logger.info("Last data row index is: {}", lastDataIdx);
         logger.info("Total data rows in the sheet: {}", rowCount);
 
-        builder.append("Bendras duomenų eilučių skaičius: ").append(rowCount).append("\n");
-        builder.append("Pirmos duomenų eilutės numeris: ").append(firstDataIdx + 1).append("\n");
-        builder.append("Paskutinės duomenų eilutės numeris: ").append(lastDataIdx + 1).append("\n");
+        explanation.append("Bendras duomenų eilučių skaičius: ").append(rowCount).append("\n");
+        explanation.append("Pirmos duomenų eilutės numeris: ").append(firstDataIdx + 1).append("\n");
+        explanation.append("Paskutinės duomenų eilutės numeris: ").append(lastDataIdx + 1).append("\n");
     }
 
     /**
      * Calculates the number of rows to be selected based on the given criteria.
      *
-     * @param number     The number of rows or percentage.
-     * @param isPercent  Indicates whether 'number' is a percentage.
      * @param rowCount   Total number of data rows.
      * @return The number of rows to be selected.
      */
-    private static int calculateNumRowsToTake(double number, boolean isPercent, int rowCount) {
-        if (isPercent) {
+    private int calculateNumRowsToTake(int rowCount) {
+        double number = options.getNumber();
+        if (options.isPercent()) {
             int rowNumb = (int) (number / 100.0 * rowCount);
             logger.info("Taking {} percent of rows.", number);
-            builder.append("Nustatyta atsitiktinės atrankos būdu atrinkti ").append(number).append("% visų duomenų eilučių.\n");
-            builder.append("Bendras atriktų eilučių skaičius: ").append(rowNumb).append("\n");
+            explanation.append("Nustatyta atsitiktinės atrankos būdu atrinkti ").append(number).append("% visų duomenų eilučių.\n");
+            explanation.append("Bendras atriktų eilučių skaičius: ").append(rowNumb).append("\n");
             return rowNumb;
         } else {
-            builder.append("Nustatyta atsitiktinės atrankos būdu atrinkti ").append((int) number).append(" duomenų eilutes.\n");
+            explanation.append("Nustatyta atsitiktinės atrankos būdu atrinkti ").append((int) number).append(" duomenų eilutes.\n");
             return Math.min((int) number, rowCount);
         }
     }
@@ -157,211 +1405,537 @@ public class ExcelProcessor {
     /**
      * Handles the case when index errors occur during processing.
      *
+     * @param infoRowIdx    Index of the info row, or -1 if the sheet has none.
      * @param rowCount      Total number of data rows.
      * @param numRowsToTake Number of rows intended to be taken.
+     * @return The exception describing the error to the user.
      */
-    private static void handleIndexError(int rowCount, int numRowsToTake) {
+    private static ProcessingException indexError(int infoRowIdx, int rowCount, int numRowsToTake) {
         logger.error("An error occurred when getting the indexes");
-        Alerter.displayError("Įvyko klaida. Iš viso duomenų eilučių yra " + rowCount + ".\n" +
-                "Nuspręsta atrankos būdu pasirinkti " + numRowsToTake + " eilučių.");
+        String message = "Įvyko klaida. Iš viso duomenų eilučių yra " + rowCount + ".\n" +
+                "Nuspręsta atrankos būdu pasirinkti " + numRowsToTake + " eilučių.";
+        return infoRowIdx < 0 ? new EmptySheetException(message) : new ProcessingException(message);
     }
 
     /**
-     * Selects random rows from the given range.
+     * Signals that a sheet has no info row, so there is nothing to sample in it. When every sheet is processed such
+     * sheets are skipped, otherwise the message is shown to the user like any other.
+     */
+    private static class EmptySheetException extends ProcessingException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param message The message for the user.
+         */
+        EmptySheetException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Selects random rows from the given range without repeats, in random order. Uses Floyd's algorithm, which needs
+     * exactly one random draw per selected row however close the number of rows to take is to the row count.
      *
      * @param firstDataIdx Index of the first data row.
      * @param lastDataIdx  Index of the last data row.
      * @param numRowsToTake Number of rows to be randomly selected.
-     * @return List of randomly selected row indexes.
+     * @param random       The source of randomness.
+     * @return Array of randomly selected row indexes.
      */
-    private static List<Integer> selectRandomRows(int firstDataIdx, int lastDataIdx, int numRowsToTake) {
-        List<Integer> selectedRows = new ArrayList<>();
-        Random random = new Random();
-        builder.append("Atriktų eilučių numeriai:\n");
-        builder.append("(Sename faile ---> naujame faile)\n\n");
-        int newId = 2;
+    static int[] selectRandomRows(int firstDataIdx, int lastDataIdx, int numRowsToTake, Random random) {
+        int rowCount = lastDataIdx - firstDataIdx + 1;
+        int[] selectedRows = new int[numRowsToTake];
+        BitSet taken = new BitSet(rowCount);
 
-        while (selectedRows.size() < numRowsToTake) {
-            int randomRow = random.nextInt(lastDataIdx - firstDataIdx + 1) + firstDataIdx;
-            if (!selectedRows.contains(randomRow)) {
-                selectedRows.add(randomRow);
-                builder.append(randomRow + 1).append(" ---> ").append(newId).append("\n");
-                newId++;
-            }
+        int selected = 0;
+        for (int bound = rowCount - numRowsToTake; bound < rowCount; bound++) {
+            int candidate = random.nextInt(bound + 1);
+            int row = taken.get(candidate) ? bound : candidate;
+            taken.set(row);
+            selectedRows[selected++] = row + firstDataIdx;
+        }
+
+        // Floyd's algorithm does not produce a random order, so shuffle the selection (Fisher-Yates)
+        for (int i = selectedRows.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = selectedRows[i];
+            selectedRows[i] = selectedRows[j];
+            selectedRows[j] = swap;
         }
 
         return selectedRows;
     }
 
     /**
-     * Copies the header row (info row) from the source sheet to the target sheet.
+     * Copies the header row (info row) values to the target header row.
      *
-     * @param oldInfoRow    Source header row.
+     * @param infoRow       Values of the source header row.
      * @param newHeaderRow  Target header row.
+     * @param styles        Styles of the target workbook.
      */
-    private static void copyInfoRow(Row oldInfoRow, Row newHeaderRow) {
+    private static void copyInfoRow(Object[] infoRow, Row newHeaderRow, CellStyleCache styles) {
         logger.info("Copying the info row");
-        for (int cellNum = 0; cellNum < oldInfoRow.getLastCellNum(); cellNum++) {
-            Cell oldCell = oldInfoRow.getCell(cellNum);
+        for (int cellNum = 0; cellNum < infoRow.length; cellNum++) {
             Cell newCell = newHeaderRow.createCell(cellNum);
-            newCell.setCellValue(getCellValueAsString(oldCell));
+            setCellValue(newCell, infoRow[cellNum], styles);
         }
     }
 
     /**
-     * Copies selected data rows from the old sheet to the new sheet.
+     * Copies selected data rows to the new sheet. Each row is released once copied, so the streaming writer can flush
+     * it without a second copy staying in memory.
      *
-     * @param oldSheet      Source sheet.
-     * @param newSheet      Target sheet.
-     * @param selectedRows  List of selected row indexes.
+     * @param dataRows  Values of the selected data rows.
+     * @param newSheet  Target sheet.
+     * @param styles    Styles of the target workbook.
      */
-    private static void copySelectedDataRows(Sheet oldSheet, Sheet newSheet, List<Integer> selectedRows) {
+    void copySelectedDataRows(List<Object[]> dataRows, Sheet newSheet, CellStyleCache styles) {
         logger.info("Copying the selected data rows");
         int newRowIdx = 1;
-        for (int rowNum : selectedRows) {
-            Row oldRow = oldSheet.getRow(rowNum);
+        for (int i = 0; i < dataRows.size(); i++) {
+            countRow();
+            Object[] values = dataRows.set(i, null);
             Row newRow = newSheet.createRow(newRowIdx);
-            for (int cellNum = 0; cellNum < infoRowLength; cellNum++) {
-                Cell oldCell = oldRow.getCell(cellNum);
+            for (int cellNum = 0; cellNum < values.length; cellNum++) {
                 Cell newCell = newRow.createCell(cellNum);
-                newCell.setCellValue(getCellValueAsString(oldCell));
+                setCellValue(newCell, values[cellNum], styles);
             }
             newRowIdx++;
         }
     }
 
     /**
-     * Creates a new Excel file and writes the new workbook into it.
+     * Writes a copied value to a cell of the new sheet, as text or with its type.
      *
-     * @param newWorkbook New Excel workbook to be saved.
-     * @param folder      Folder where the file will be saved.
+     * @param cell   Target cell.
+     * @param value  The value, a string or a {@link CellValue}.
+     * @param styles Styles of the target workbook.
      */
-    private static void createNewExcelFile(Workbook newWorkbook, File folder) throws IOException{
-        logger.info("Writing data to the new excel file");
-        File outputFile = new File(folder, EXCEL_FILE_NAME);
-        FileOutputStream outputStream = new FileOutputStream(outputFile);
-        newWorkbook.write(outputStream);
+    private static void setCellValue(Cell cell, Object value, CellStyleCache styles) {
+        if (value instanceof CellValue) {
+            ((CellValue) value).writeTo(cell, styles);
+        } else {
+            cell.setCellValue((String) value);
+        }
     }
 
     /**
-     * Creates a new text file and writes the content from the StringBuilder into it.
+     * Converts streamed cell values to a row of the info row length. Shared strings are read here, so only the rows
+     * that are kept have their text created.
      *
-     * @param folder Folder where the file will be saved.
+     * @param cells The streamed cell values, indexed by column.
+     * @return The cell values padded or cut to the info row length, as strings or {@link CellValue}s.
      */
-    private static void createNewTextFile(File folder) throws IOException{
-        File output = new File(folder, TEXT_FILE_NAME);
-        try (FileWriter writer = new FileWriter(output)) {
-            writer.write(builder.toString());
+    private Object[] toRowValues(List<Object> cells) {
+        Object[] values = new Object[infoRowLength];
+        for (int cellNum = 0; cellNum < infoRowLength; cellNum++) {
+            Object value = cellNum < cells.size() ? cells.get(cellNum) : "";
+            values[cellNum] = value instanceof SharedString ? value.toString() : value;
         }
+        return values;
     }
 
     /**
-     * Finds the index of the first non-empty row in the given sheet.
+     * Checks whether any of the streamed cell values is non-empty.
      *
-     * @param sheet The sheet to search for the info row.
-     * @return Index of the info row, or -1 if not found.
+     * @param cells The streamed cell values.
+     * @return True if at least one value is non-empty.
      */
-    private static int findInfoRow(Sheet sheet) {
-        logger.info("Searching for the info row");
-        for (int rowIndex = 0; rowIndex <= sheet.getLastRowNum(); rowIndex++) {
-            Row row = sheet.getRow(rowIndex);
-            if (row != null) {
-                for (Cell cell : row) {
-                    String cellValue = getCellValueAsString(cell);
-                    if (!cellValue.isEmpty()) {
-                        infoRowLength = row.getLastCellNum();
-                        return rowIndex;
-                    }
-                }
+    private static boolean hasContent(List<Object> cells) {
+        for (Object value : cells) {
+            boolean empty = value instanceof SharedString ? ((SharedString) value).isEmpty()
+                    : value instanceof String && ((String) value).isEmpty();
+            if (!empty) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a new Excel file with the info row and the selected data rows in a single sheet.
+     *
+     * @param sample     The rows to be saved.
+     * @param outputFile The file to be written.
+     */
+    void createNewExcelFile(SheetSample sample, File outputFile) throws IOException {
+        createNewExcelFile(Collections.singletonMap(SHEET_NAME, sample), outputFile);
+    }
+
+    /**
+     * Creates a new Excel file with a sheet of the info row and the selected data rows for every sample. The rows go
+     * through a streaming workbook that keeps only a small window of rows in memory and flushes the rest to compressed
+     * temporary files, which are removed once the file is written. A partly written file is deleted if writing fails.
+     *
+     * @param samples    The rows to be saved by sheet name, in the order the sheets are created.
+     * @param outputFile The file to be written.
+     */
+    private void createNewExcelFile(Map<String, SheetSample> samples, File outputFile) throws IOException {
+        List<OutputPart> parts = new ArrayList<>();
+        for (Map.Entry<String, SheetSample> sample : samples.entrySet()) {
+            List<Object[]> dataRows = sample.getValue().getDataRows();
+            parts.add(new OutputPart(sample.getKey(), sample.getKey(), 1, sample.getValue().getInfoRow(), dataRows, 0));
+        }
+        createNewExcelFile(parts, outputFile);
+    }
+
+    /**
+     * Creates a new Excel file with a sheet for every part of the output.
+     *
+     * @param parts      The parts to be saved, in the order the sheets are created.
+     * @param outputFile The file to be written.
+     */
+    private void createNewExcelFile(List<OutputPart> parts, File outputFile) throws IOException {
+        logger.info("Writing data to the new excel file");
+        SXSSFWorkbook newWorkbook = createWorkbook();
+        boolean written = false;
+        try {
+            startPhase(ProcessingPhase.COPY);
+            copyParts(parts, newWorkbook);
+            startPhase(ProcessingPhase.WRITE);
+            writeWorkbook(newWorkbook, outputFile);
+            written = true;
+        } finally {
+            newWorkbook.dispose();
+            newWorkbook.close();
+            if (!written) {
+                deleteOutput(outputFile);
             }
         }
-        return -1; // Info row not found
     }
 
     /**
-     * Finds the index of the last data row based on row lengths and empty cells.
+     * Creates the Excel output. If every sample fits in one part, it is saved as rezultatas.xlsx like always.
+     * Otherwise the samples are split into parts of {@link SamplingOptions#getShardRows()} rows, which go either to
+     * sheets of their own in rezultatas.xlsx or to files of their own. The files are copied and written at the same
+     * time on different threads, as serializing the sheet XML and compressing it is the slowest stage of a large
+     * job. The parts are listed in {@value #MANIFEST_FILE_NAME}. If writing any file fails, the files written so far
+     * are deleted.
      *
-     * @param sheet        The Excel sheet containing the data.
-     * @param firstDataIdx The index of the first data row.
-     * @return The index of the last data row.
+     * @param samples The rows to be saved by sheet name, in sheet order.
+     * @param folder  The folder for the new files.
      */
-    private static int lastDataIdx(Sheet sheet, int firstDataIdx) {
-        logger.info("Searching for the last data row");
+    private void createNewExcelFiles(Map<String, SheetSample> samples, File folder) throws IOException {
+        int partRows = rowsPerPart();
+        boolean split = samples.values().stream().anyMatch(sample -> sample.getDataRows().size() > partRows);
+        if (!split) {
+            File excelFile = new File(folder, EXCEL_FILE_NAME);
+            outputFiles.add(excelFile);
+            createNewExcelFile(samples, excelFile);
+            return;
+        }
 
-        int lastDataRowIdx = firstDataIdx;
+        boolean separateFiles = options.getShardMode() == ShardMode.FILES;
+        // Sheets that are not split keep their names, and the parts are named around them. Excel ignores the case
+        Set<String> sheetNames = new HashSet<>();
+        for (Map.Entry<String, SheetSample> sample : samples.entrySet()) {
+            if (separateFiles || sample.getValue().getDataRows().size() <= partRows) {
+                sheetNames.add(sample.getKey().toLowerCase(Locale.ROOT));
+            }
+        }
+        // Parts of the same number share a file, so that every file has at most one part of each sheet
+        Map<Integer, List<OutputPart>> partsByFile = new TreeMap<>();
+        for (Map.Entry<String, SheetSample> sample : samples.entrySet()) {
+            List<Object[]> dataRows = sample.getValue().getDataRows();
+            int partCount = Math.max(1, (int) ((dataRows.size() + (long) partRows - 1) / partRows));
+            for (int part = 1; part <= partCount; part++) {
+                int from = (part - 1) * partRows;
+                List<Object[]> partRowsList = dataRows.subList(from, Math.min(dataRows.size(), from + partRows));
+                String sheetName = separateFiles || partCount == 1 ? sample.getKey()
+                        : partSheetName(sample.getKey(), part, sheetNames);
+                partsByFile.computeIfAbsent(separateFiles ? part : 1, file -> new ArrayList<>())
+                        .add(new OutputPart(sheetName, sample.getKey(), part, sample.getValue().getInfoRow(),
+                                partRowsList, from));
+            }
+        }
+        logger.info("Splitting the output into parts of at most {} rows, written to {}", partRows,
+                separateFiles ? partsByFile.size() + " files" : "sheets of one file");
 
-        for (int rowIndex = firstDataIdx + 1; rowIndex <= sheet.getLastRowNum(); rowIndex++) {
-            Row currentRow = sheet.getRow(rowIndex);
-            Row previousRow = sheet.getRow(rowIndex - 1);
+        List<File> files = new ArrayList<>();
+        for (int file : partsByFile.keySet()) {
+            files.add(new File(folder, separateFiles ? String.format(Locale.ROOT, "rezultatas_%03d.xlsx", file)
+                    : EXCEL_FILE_NAME));
+        }
+        outputFiles.addAll(files);
+        List<List<OutputPart>> fileParts = new ArrayList<>(partsByFile.values());
+        boolean written = false;
+        try {
+            if (separateFiles) {
+                createNewExcelFilesInParallel(fileParts, files);
+            } else {
+                createNewExcelFile(fileParts.get(0), files.get(0));
+            }
+            File manifest = new File(folder, MANIFEST_FILE_NAME);
+            outputFiles.add(manifest);
+            writeManifest(fileParts, files, manifest);
+            written = true;
+        } finally {
+            if (!written) {
+                outputFiles.forEach(ExcelProcessor::deleteOutput);
+            }
+        }
+        explanation.append("\nAtrinktos eilutės padalytos į dalis po ne daugiau kaip ").append(partRows)
+                .append(separateFiles ? " eilučių, kiekviena dalis išsaugota atskirame faile.\n"
+                        : " eilučių, kiekviena dalis išsaugota atskirame lape.\n")
+                .append("Dalių sąrašas išsaugotas faile ").append(MANIFEST_FILE_NAME).append(".\n");
+    }
 
-            // Check if the current row is empty or shorter than the previous row
-            if (currentRow == null || isRowShorter(currentRow, previousRow)) {
-                break; // Data ends here
+    /**
+     * Copies and writes the given files at the same time, each on its own thread with its own processor. Copying ends
+     * for all files before writing starts, so that the stages are measured like for a single file.
+     *
+     * @param fileParts The parts of every file.
+     * @param files     The files to be written.
+     */
+    private void createNewExcelFilesInParallel(List<List<OutputPart>> fileParts, List<File> files) throws IOException {
+        List<SXSSFWorkbook> workbooks = new ArrayList<>(files.size());
+        List<ExcelProcessor> processors = new ArrayList<>(files.size());
+        ProgressListener partListener = sheetListener();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                workbooks.add(createWorkbook());
+                processors.add(new ExcelProcessor(this, partListener));
+            }
+            startPhase(ProcessingPhase.COPY);
+            runAll(files.size(), true, i -> processors.get(i).copyParts(fileParts.get(i), workbooks.get(i)));
+            startPhase(ProcessingPhase.WRITE);
+            runAll(files.size(), true, i -> writeWorkbook(workbooks.get(i), files.get(i)));
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            for (SXSSFWorkbook workbook : workbooks) {
+                workbook.dispose();
+                workbook.close();
             }
+        }
+    }
+
+    /**
+     * @return A new streaming workbook for the output.
+     */
+    private SXSSFWorkbook createWorkbook() {
+        SXSSFWorkbook newWorkbook = new SXSSFWorkbook(options.getRowAccessWindow());
+        newWorkbook.setCompressTempFiles(true);
+        return newWorkbook;
+    }
 
-            lastDataRowIdx = rowIndex;
+    /**
+     * Copies the info row and the data rows of every part to a sheet of its own.
+     *
+     * @param parts       The parts to be copied, in the order the sheets are created.
+     * @param newWorkbook The workbook receiving the sheets.
+     */
+    private void copyParts(List<OutputPart> parts, SXSSFWorkbook newWorkbook) {
+        CellStyleCache styles = new CellStyleCache(newWorkbook);
+        for (OutputPart part : parts) {
+            Sheet newSheet = newWorkbook.createSheet(part.sheetName);
+            copyInfoRow(part.infoRow, newSheet.createRow(0), styles);
+            copySelectedDataRows(part.dataRows, newSheet, styles);
         }
+    }
 
-        return lastDataRowIdx;
+    /**
+     * Writes a workbook to a file.
+     *
+     * @param newWorkbook The workbook to be written.
+     * @param outputFile  The file to be written.
+     */
+    private static void writeWorkbook(SXSSFWorkbook newWorkbook, File outputFile) throws IOException {
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+            newWorkbook.write(outputStream);
+        }
     }
 
     /**
-     * Checks if the given row is shorter than the previous row or contains only empty cells.
+     * Names the sheet of a part, keeping within the 31 characters Excel allows. Shortening the name of the sampled
+     * sheet, or another sheet already named like the part, can make the name taken, in which case the part is also
+     * counted, as in "Duomenys (2-2)".
      *
-     * @param currentRow The current row to be checked.
-     * @param previousRow The previous row for comparison.
-     * @return True if the current row is shorter or contains only empty cells, false otherwise.
+     * @param name       The name of the sampled sheet.
+     * @param part       The number of the part, from 1.
+     * @param sheetNames The names taken in the file, in lower case. The name of the part is added.
+     * @return The name of the sheet of the part.
      */
-    private static boolean isRowShorter(Row currentRow, Row previousRow) {
-        if (currentRow == null) {
-            return true; // Current row is null, so it's considered shorter
+    static String partSheetName(String name, int part, Set<String> sheetNames) {
+        String suffix = " (" + part + ")";
+        for (int attempt = 2; ; attempt++) {
+            String sheetName = name.substring(0, Math.min(name.length(), 31 - suffix.length())) + suffix;
+            if (sheetNames.add(sheetName.toLowerCase(Locale.ROOT))) {
+                return sheetName;
+            }
+            suffix = " (" + part + "-" + attempt + ")";
         }
+    }
+
+    /**
+     * Writes the manifest listing where every part of the output was saved and which of the selected rows it holds.
+     * The selected rows are counted from 1 in the order of the row mapping of their sheet.
+     *
+     * @param fileParts The parts of every file.
+     * @param files     The files holding the parts.
+     * @param manifest  The manifest file to be written.
+     */
+    private static void writeManifest(List<List<OutputPart>> fileParts, List<File> files, File manifest)
+            throws IOException {
+        try (CsvWriter writer = new CsvWriter(manifest, CsvFormat.DEFAULT, ',')) {
+            writer.writeRow(new Object[]{"failas", "lapas", "duomenu_lapas", "dalis", "atrinktos_nuo", "atrinktos_iki",
+                    "eiluciu_skaicius"});
+            for (int i = 0; i < files.size(); i++) {
+                for (OutputPart part : fileParts.get(i)) {
+                    writer.writeRow(new Object[]{files.get(i).getName(), part.sheetName, part.sampleName,
+                            String.valueOf(part.number), String.valueOf(part.firstSelected + 1),
+                            String.valueOf(part.firstSelected + part.rowCount), String.valueOf(part.rowCount)});
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The most selected rows of a sheet written to one part of the output. Only Excel output is split.
+     */
+    private int rowsPerPart() {
+        return options.getOutputFormat() == OutputFormat.XLSX ? options.getShardRows() : Integer.MAX_VALUE;
+    }
+
+    /**
+     * A part of the selected rows of one sheet, saved to a sheet of its own.
+     */
+    private static final class OutputPart {
 
-        int numCellsInCurrentRow = currentRow.getLastCellNum();
-        int numCellsInPreviousRow = previousRow != null ? previousRow.getLastCellNum() : 0;
+        private final String sheetName;
+        private final String sampleName;
+        private final int number;
+        private final Object[] infoRow;
+        private final List<Object[]> dataRows;
+        private final int firstSelected;
+        private final int rowCount;
 
-        if (numCellsInCurrentRow < numCellsInPreviousRow) {
-            return true; // Current row is shorter than the previous row
+        /**
+         * @param sheetName     The name of the sheet of the part.
+         * @param sampleName    The name of the sample the part belongs to.
+         * @param number        The number of the part within its sample, from 1.
+         * @param infoRow       Values of the info row.
+         * @param dataRows      Values of the data rows of the part.
+         * @param firstSelected The position of the first row of the part among the selected rows, from 0.
+         */
+        OutputPart(String sheetName, String sampleName, int number, Object[] infoRow, List<Object[]> dataRows,
+                   int firstSelected) {
+            this.sheetName = sheetName;
+            this.sampleName = sampleName;
+            this.number = number;
+            this.infoRow = infoRow;
+            this.dataRows = dataRows;
+            this.firstSelected = firstSelected;
+            // Copying releases the rows, so the count is taken before
+            this.rowCount = dataRows.size();
         }
+    }
 
-        // Check if the cells in the current row are all empty
-        for (int cellNum = 0; cellNum < numCellsInCurrentRow; cellNum++) {
-            Cell cell = currentRow.getCell(cellNum);
-            if (cell != null && !cell.toString().isEmpty()) {
-                return false; // Current row has non-empty cells
+    /**
+     * Creates a delimited text file with the info row and the selected data rows for every sample: rezultatas.csv for
+     * a single sample, or a file named after every sheet. The values are separated like in the source file if it is
+     * delimited text, and as set by the options otherwise, by default with commas. Copying and writing the rows is
+     * a single step here, so the rows are released as they are written. If writing any file fails, the files written
+     * so far are deleted, so that a job never leaves only some of its sheets behind.
+     *
+     * @param samples The rows to be saved by sheet name, in sheet order.
+     * @param folder  The folder for the new files.
+     */
+    private void createNewCsvFiles(Map<String, SheetSample> samples, File folder) throws IOException {
+        logger.info("Writing data to the new CSV files");
+        CsvFormat format = options.getCsvFormat();
+        char delimiter = format.getDelimiter() != null ? format.getDelimiter()
+                : csvDelimiter != 0 ? csvDelimiter : ',';
+        startPhase(ProcessingPhase.COPY);
+        boolean written = false;
+        try {
+            for (Map.Entry<String, SheetSample> sample : samples.entrySet()) {
+                File outputFile = samples.size() == 1 ? new File(folder, CSV_FILE_NAME)
+                        : new File(folder, "rezultatas_" + sample.getKey().replaceAll("[\\\\/:*?\"<>|]", "_") + ".csv");
+                outputFiles.add(outputFile);
+                try (CsvWriter writer = new CsvWriter(outputFile, format, delimiter)) {
+                    writer.writeRow(sample.getValue().getInfoRow());
+                    List<Object[]> dataRows = sample.getValue().getDataRows();
+                    for (int i = 0; i < dataRows.size(); i++) {
+                        countRow();
+                        writer.writeRow(dataRows.set(i, null));
+                    }
+                }
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                outputFiles.forEach(ExcelProcessor::deleteOutput);
             }
         }
+        startPhase(ProcessingPhase.WRITE);
+    }
 
-        return true; // Current row has only empty cells
+    /**
+     * Deletes an output file that should not be kept, such as a partly written one.
+     *
+     * @param outputFile The file to delete.
+     */
+    private static void deleteOutput(File outputFile) {
+        if (outputFile.exists() && !outputFile.delete()) {
+            logger.warn("Could not delete the output file at: {}", outputFile.getAbsolutePath());
+        }
     }
 
+    /**
+     * Reports the start of a new processing phase to the listener.
+     *
+     * @param phase The phase that starts.
+     */
+    private void startPhase(ProcessingPhase phase) {
+        checkCancelled();
+        rowsRead = 0;
+        metrics.startStage(ProcessingMetrics.Stage.of(phase));
+        listener.onPhase(phase);
+    }
+
+    /**
+     * Counts a handled row, reporting the progress and checking for cancellation every {@value #PROGRESS_INTERVAL} rows.
+     */
+    private void countRow() {
+        rowsRead++;
+        if (rowsRead % PROGRESS_INTERVAL == 0) {
+            checkCancelled();
+            metrics.sampleHeap();
+            listener.onRows(rowsRead);
+        }
+    }
 
     /**
-     * Retrieves the cell value as a string, handling different cell types.
+     * Stops the processing if the listener has cancelled it or the thread has been interrupted.
      *
-     * @param cell The cell from which to retrieve the value.
-     * @return The cell value as a string.
+     * @throws CancellationException If the processing should stop.
      */
-    private static String getCellValueAsString(Cell cell) {
-        if (cell == null) {
-            return "";
+    private void checkCancelled() {
+        if (listener.isCancelled() || Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Processing was cancelled");
         }
-        switch (cell.getCellType()) {
-            case STRING:
-                return cell.getStringCellValue();
-            case NUMERIC:
-                if (DateUtil.isCellDateFormatted(cell)) {
-                    return formatDate(cell.getDateCellValue());
-                } else {
-                    return String.valueOf(cell.getNumericCellValue());
-                }
-            case BOOLEAN:
-                return String.valueOf(cell.getBooleanCellValue());
-            case BLANK:
-            case ERROR:
-            case FORMULA:
-            default:
-                return "";
+    }
+
+    /**
+     * Creates a new text file and writes the explanation into it. A partly written file is deleted if writing fails.
+     *
+     * @param text   The explanation.
+     * @param output The file to be written.
+     * @param sample The index of the sample the file explains, from 0.
+     */
+    private void createNewTextFile(Explanation text, File output, int sample) throws IOException {
+        boolean written = false;
+        try {
+            text.writeTo(output, options.getMappingFormat(), sample);
+            written = true;
+        } finally {
+            if (!written) {
+                deleteOutput(output);
+            }
         }
     }
 
@@ -371,8 +1945,7 @@ public class ExcelProcessor {
      * @param date The date to be formatted.
      * @return The formatted date string.
      */
-    private static String formatDate(Date date) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        return dateFormat.format(date);
+    static String formatDate(Date date) {
+        return DATE_FORMAT.format(date.toInstant().atZone(ZoneId.systemDefault()));
     }
 }
\ No newline at end of file
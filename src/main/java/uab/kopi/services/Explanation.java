@@ -0,0 +1,254 @@
+package uab.kopi.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The text explaining how a file was processed, saved as paaiskinimas.txt. The short lines are kept as text, while
+ * the mapping of the selected rows, which has a line for every selected row, is kept as the row indexes and only
+ * turned into text while the file is written, as are the weights of the rows selected by weighted sampling. A sample
+ * of hundreds of thousands of rows therefore never has its mapping in memory as text.
+ * <p>
+ * When several samples are drawn in one job, the explanation is shared by all of them. The parts that differ, such as
+ * the mappings, hold a version for every sample, and the file of each sample is written with its own versions.
+ */
+class Explanation {
+
+    private final List<Object> parts = new ArrayList<>();
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * @param value The value to append, as text.
+     * @return This explanation.
+     */
+    Explanation append(Object value) {
+        text.append(value);
+        return this;
+    }
+
+    /**
+     * Appends everything another explanation holds, such as the explanation of one sheet of the file.
+     *
+     * @param other The explanation to append.
+     * @return This explanation.
+     */
+    Explanation append(Explanation other) {
+        endText();
+        other.endText();
+        parts.addAll(other.parts);
+        return this;
+    }
+
+    /**
+     * Appends the mapping between the row numbers in the old file and in the new file. The array is kept as it is, so
+     * it must not be changed afterwards.
+     *
+     * @param selectedRows Selected row indexes, in the order they are written to the new file.
+     * @param partRows     The number of rows in each part of the output. Every part starts its own sheet, so the
+     *                     rows are numbered anew in every part.
+     */
+    void appendRowMapping(int[] selectedRows, int partRows) {
+        appendRowMappings(Collections.singletonList(selectedRows), partRows);
+    }
+
+    /**
+     * Appends the mappings of the selected rows of every sample, each written only to the file of its sample. The
+     * arrays are kept as they are, so they must not be changed afterwards.
+     *
+     * @param selectedRows Selected row indexes of every sample, in the order they are written to the new file.
+     * @param partRows     The number of rows in each part of the output.
+     */
+    void appendRowMappings(List<int[]> selectedRows, int partRows) {
+        endText();
+        parts.add(new RowMapping(selectedRows, partRows));
+    }
+
+    /**
+     * Appends the weights and keys of the rows selected by weighted sampling in every sample, each written only to the
+     * file of its sample. The arrays are kept as they are, so they must not be changed afterwards.
+     *
+     * @param selectedRows Selected row indexes of every sample, in the order they are written to the new file.
+     * @param weights      The weights of the selected rows, in the same order.
+     * @param logKeys      The logarithms of the keys the rows were selected by, in the same order.
+     */
+    void appendRowWeights(List<int[]> selectedRows, List<double[]> weights, List<double[]> logKeys) {
+        endText();
+        parts.add(new RowWeights(selectedRows, weights, logKeys));
+    }
+
+    /**
+     * Appends text that differs between the samples, each written only to the file of its sample.
+     *
+     * @param texts The text of every sample.
+     * @return This explanation.
+     */
+    Explanation appendPerSample(List<String> texts) {
+        endText();
+        parts.add(new SampleText(texts));
+        return this;
+    }
+
+    /**
+     * Writes the explanation to a UTF-8 text file.
+     *
+     * @param output        The file to be written.
+     * @param mappingFormat How the selected rows are listed.
+     * @throws IOException If the file cannot be written.
+     */
+    void writeTo(File output, MappingFormat mappingFormat) throws IOException {
+        writeTo(output, mappingFormat, 0);
+    }
+
+    /**
+     * Writes the explanation of one of the samples to a UTF-8 text file.
+     *
+     * @param output        The file to be written.
+     * @param mappingFormat How the selected rows are listed.
+     * @param sample        The index of the sample, from 0.
+     * @throws IOException If the file cannot be written.
+     */
+    void writeTo(File output, MappingFormat mappingFormat, int sample) throws IOException {
+        endText();
+        try (Writer writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            for (Object part : parts) {
+                if (part instanceof RowMapping) {
+                    ((RowMapping) part).writeTo(writer, mappingFormat, sample);
+                } else if (part instanceof RowWeights) {
+                    ((RowWeights) part).writeTo(writer, sample);
+                } else if (part instanceof SampleText) {
+                    writer.write(((SampleText) part).texts.get(sample));
+                } else {
+                    writer.write((String) part);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the text appended since the last mapping to the parts of the explanation.
+     */
+    private void endText() {
+        if (text.length() > 0) {
+            parts.add(text.toString());
+            text.setLength(0);
+        }
+    }
+
+    /**
+     * Text that differs between the samples.
+     */
+    private static final class SampleText {
+
+        private final List<String> texts;
+
+        /**
+         * @param texts The text of every sample.
+         */
+        SampleText(List<String> texts) {
+            this.texts = texts;
+        }
+    }
+
+    /**
+     * The selected rows of a sheet in every sample, listed when the explanation is written.
+     */
+    private static final class RowMapping {
+
+        private final List<int[]> selectedRows;
+        private final int partRows;
+
+        /**
+         * @param selectedRows Selected row indexes of every sample, in the order they are written to the new file.
+         * @param partRows     The number of rows in each part of the output.
+         */
+        RowMapping(List<int[]> selectedRows, int partRows) {
+            this.selectedRows = selectedRows;
+            this.partRows = partRows;
+        }
+
+        /**
+         * Writes the mapping of the selected rows, a line at a time.
+         *
+         * @param writer        The writer of the text file.
+         * @param mappingFormat How the selected rows are listed.
+         * @param sample        The index of the sample whose rows are listed.
+         * @throws IOException If the file cannot be written.
+         */
+        void writeTo(Writer writer, MappingFormat mappingFormat, int sample) throws IOException {
+            int[] selectedRows = this.selectedRows.get(sample);
+            boolean compact = mappingFormat == MappingFormat.COMPACT;
+            if (compact) {
+                writer.write("Atriktų eilučių numeriai sename faile, naujojo failo eilučių tvarka nuo 2 eilutės:\n");
+            } else {
+                writer.write("Atriktų eilučių numeriai:\n");
+                writer.write("(Sename faile ---> naujame faile)\n\n");
+            }
+            boolean split = selectedRows.length > partRows;
+            int newId = 2;
+            for (int i = 0; i < selectedRows.length; i++) {
+                if (split && i % partRows == 0) {
+                    writer.write((i == 0 ? "" : "\n") + "Dalis " + (i / partRows + 1) + ":\n");
+                    newId = 2;
+                }
+                writer.write(Integer.toString(selectedRows[i] + 1));
+                if (!compact) {
+                    writer.write(" ---> ");
+                    writer.write(Integer.toString(newId));
+                }
+                writer.write('\n');
+                newId++;
+            }
+        }
+    }
+
+    /**
+     * The weights and keys of the rows of a sheet selected by weighted sampling in every sample, listed when the
+     * explanation is written.
+     */
+    private static final class RowWeights {
+
+        private final List<int[]> selectedRows;
+        private final List<double[]> weights;
+        private final List<double[]> logKeys;
+
+        /**
+         * @param selectedRows Selected row indexes of every sample.
+         * @param weights      The weights of the selected rows.
+         * @param logKeys      The logarithms of the keys of the selected rows.
+         */
+        RowWeights(List<int[]> selectedRows, List<double[]> weights, List<double[]> logKeys) {
+            this.selectedRows = selectedRows;
+            this.weights = weights;
+            this.logKeys = logKeys;
+        }
+
+        /**
+         * Writes a line for every selected row of the sample.
+         *
+         * @param writer The writer of the text file.
+         * @param sample The index of the sample whose rows are listed.
+         * @throws IOException If the file cannot be written.
+         */
+        void writeTo(Writer writer, int sample) throws IOException {
+            int[] rows = selectedRows.get(sample);
+            double[] rowWeights = weights.get(sample);
+            double[] rowLogKeys = logKeys.get(sample);
+            writer.write("Atriktų eilučių svoriai ir raktai (eilutės numeris sename faile; svoris; ");
+            writer.write("rakto logaritmas ln(u) / svoris):\n");
+            for (int i = 0; i < rows.length; i++) {
+                writer.write(Integer.toString(rows[i] + 1));
+                writer.write("; ");
+                writer.write(Double.toString(rowWeights[i]));
+                writer.write("; ");
+                writer.write(Double.toString(rowLogKeys[i]));
+                writer.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package uab.kopi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * What scanning the first sheet of a file found out ahead of sampling it: the info row, the data bounds and, for
+ * .xlsx files, where the rows start in the sheet XML. A scan can run in the background as soon as a file is chosen,
+ * and a job given the scan through {@link SamplingJob} skips scanning the sheet again, so that it only selects and
+ * writes the rows.
+ * <p>
+ * The scan is kept in memory only, and a job ignores it if the file has changed since or is read as delimited text
+ * in another way. Stratified jobs, and jobs filtering or weighting the rows, read every data row and scan the sheet
+ * anyway.
+ */
+public final class FileScan {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileScan.class);
+
+    private final File file;
+    private final ScanIndex index;
+    private final String[] infoRow;
+    private final int dataRowCount;
+
+    /**
+     * @param file  The scanned file.
+     * @param index The in-memory index holding what the scan found out.
+     */
+    FileScan(File file, ScanIndex index) {
+        this.file = file;
+        this.index = index;
+        ScanIndex.SheetEntry entry = index.get(0);
+        boolean hasInfoRow = entry != null && entry.getInfoRowIdx() >= 0;
+        this.infoRow = hasInfoRow ? entry.getInfoRow() : new String[0];
+        this.dataRowCount = hasInfoRow ? Math.max(entry.getLastDataIdx() - entry.getFirstDataIdx() + 1, 0) : -1;
+    }
+
+    /**
+     * Scans the first sheet of a file. The scan reads the whole sheet, but selects and writes nothing.
+     *
+     * @param file      The Excel or delimited text file to scan.
+     * @param csvFormat How the file is read if it is delimited text.
+     * @param listener  The listener receiving the progress, which can also cancel the scan.
+     * @return What the scan found out.
+     * @throws ProcessingException   If the file could not be scanned. The message is meant for the user.
+     * @throws CancellationException If the listener cancelled the scan.
+     */
+    public static FileScan scan(File file, CsvFormat csvFormat, ProgressListener listener) throws ProcessingException {
+        File folder = file.getAbsoluteFile().getParentFile();
+        SamplingOptions options = SamplingOptions.builder().count(0).csvFormat(csvFormat).build();
+        return new ExcelProcessor(new SamplingJob(file, folder, options)).scan(listener);
+    }
+
+    /**
+     * @return The scanned file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Whether the first sheet has an info row. Without one the file cannot be sampled.
+     */
+    public boolean hasInfoRow() {
+        return dataRowCount >= 0;
+    }
+
+    /**
+     * @return The values of the info row as text, empty if the sheet has none.
+     */
+    public List<String> getInfoRow() {
+        return Collections.unmodifiableList(Arrays.asList(infoRow));
+    }
+
+    /**
+     * @return The number of data rows below the info row, or -1 if the sheet has no info row.
+     */
+    public int getDataRowCount() {
+        return dataRowCount;
+    }
+
+    /**
+     * Gives the index of the scan to a job, if the scan still holds for the job's file as it is now.
+     *
+     * @param source    The file of the job.
+     * @param csvFormat How the job reads the file if it is delimited text.
+     * @return The index, or null if the scan does not hold for the job.
+     */
+    ScanIndex indexFor(File source, CsvFormat csvFormat) {
+        if (!index.belongsTo(source)) {
+            logger.info("Not using the scan made ahead of the job, as it is not of {} as it is now",
+                    source.getAbsolutePath());
+            return null;
+        }
+        if (!index.isReadAs(source, csvFormat)) {
+            logger.info("Not using the scan made ahead of the job, as it read the file as other delimited text");
+            return null;
+        }
+        return index;
+    }
+}
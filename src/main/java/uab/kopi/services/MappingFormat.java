@@ -0,0 +1,11 @@
+package uab.kopi.services;
+
+/**
+ * How the selected rows are listed in the text file explaining the processing.
+ */
+public enum MappingFormat {
+    /** A line "old ---> new" for every selected row. */
+    TEXT,
+    /** Only the old row number of every selected row, one per line in the order of the new file, for large samples. */
+    COMPACT
+}
@@ -0,0 +1,11 @@
+package uab.kopi.services;
+
+/**
+ * The format of the file holding the selected rows.
+ */
+public enum OutputFormat {
+    /** An Excel workbook, rezultatas.xlsx, with a sheet for every sampled sheet. */
+    XLSX,
+    /** Delimited text, rezultatas.csv, or a file for every sampled sheet, written as set by {@link CsvFormat}. */
+    CSV
+}
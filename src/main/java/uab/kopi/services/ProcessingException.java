@@ -0,0 +1,24 @@
+package uab.kopi.services;
+
+/**
+ * Signals that a file could not be processed. The message is written for the user and can be shown as is.
+ */
+public class ProcessingException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param message The message for the user.
+     */
+    public ProcessingException(String message) {
+        super(message);
+    }
+
+    /**
+     * @param message The message for the user.
+     * @param cause   The underlying error.
+     */
+    public ProcessingException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
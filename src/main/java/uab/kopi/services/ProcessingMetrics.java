@@ -0,0 +1,224 @@
+package uab.kopi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures the wall time and the bytes allocated by each stage of a job, along with the highest heap use seen while
+ * it runs. The measurements are written as structured lines to the heartbeat log and summarised in the text file, so
+ * that slow jobs can be looked into without a profiler.
+ * <p>
+ * Allocations are counted for the thread that runs the stages. The heap use is sampled at each stage boundary and at
+ * every progress check, and covers the whole JVM, so jobs running at the same time see each other's memory.
+ */
+class ProcessingMetrics {
+
+    private static final Logger heartbeat = LoggerFactory.getLogger("heartbeat");
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double BYTES_PER_MEGABYTE = 1024.0 * 1024.0;
+
+    /**
+     * The measured stages of a job, in the order they run.
+     */
+    enum Stage {
+        OPEN("open", "Failo atidarymas"),
+        INFO_ROW("infoRow", "Informacinės eilutės paieška"),
+        DATA_END("dataEnd", "Duomenų pabaigos paieška"),
+        SELECT("select", "Eilučių atranka"),
+        COPY("copy", "Eilučių kopijavimas"),
+        WRITE("write", "Naujų failų rašymas");
+
+        private final String key;
+        private final String description;
+
+        Stage(String key, String description) {
+            this.key = key;
+            this.description = description;
+        }
+
+        /**
+         * Finds the stage a processing phase starts. Scanning starts with the search for the info row; the search
+         * for the end of the data is started separately.
+         *
+         * @param phase The processing phase.
+         * @return The stage the phase starts.
+         */
+        static Stage of(ProcessingPhase phase) {
+            switch (phase) {
+                case OPEN:
+                    return OPEN;
+                case SCAN:
+                    return INFO_ROW;
+                case SELECT:
+                    return SELECT;
+                case COPY:
+                    return COPY;
+                case WRITE:
+                default:
+                    return WRITE;
+            }
+        }
+    }
+
+    private final String jobName;
+    private final com.sun.management.ThreadMXBean allocations;
+    private final Map<Stage, Long> wallTimes = new EnumMap<>(Stage.class);
+    private final Map<Stage, Long> allocatedBytes = new EnumMap<>(Stage.class);
+    private Stage stage;
+    private long start;
+    private long stageStart;
+    private long stageAllocationStart;
+    private long peakHeap;
+    private long elapsed;
+    private boolean finished;
+
+    /**
+     * @param jobName The name of the job in the heartbeat lines, usually the path of the source file.
+     */
+    ProcessingMetrics(String jobName) {
+        this.jobName = jobName;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled()) {
+            this.allocations = (com.sun.management.ThreadMXBean) threads;
+        } else {
+            this.allocations = null;
+        }
+        sampleHeap();
+    }
+
+    /**
+     * Ends the current stage, if any, and starts the given one. The clock of the job starts with its first stage.
+     * Starting the stage that is already running does nothing.
+     *
+     * @param next The stage that starts.
+     */
+    void startStage(Stage next) {
+        if (next == stage) {
+            return;
+        }
+        endStage();
+        stage = next;
+        stageStart = System.nanoTime();
+        if (wallTimes.isEmpty()) {
+            start = stageStart;
+        }
+        stageAllocationStart = allocatedBytes();
+    }
+
+    /**
+     * Ends the current stage and stops the clock of the job. Later calls do nothing.
+     */
+    void finish() {
+        if (finished) {
+            return;
+        }
+        endStage();
+        elapsed = System.nanoTime() - start;
+        finished = true;
+    }
+
+    /**
+     * Records the current heap use if it is the highest seen so far.
+     */
+    void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Writes a heartbeat line for every measured stage and a final line for the whole job.
+     *
+     * @param status       How the job ended, such as done, cancelled or failed.
+     * @param dataRowCount The number of data rows in the source sheet.
+     * @param sampledRows  The number of rows selected.
+     */
+    void log(String status, int dataRowCount, int sampledRows) {
+        if (!heartbeat.isInfoEnabled()) {
+            return;
+        }
+        for (Map.Entry<Stage, Long> entry : wallTimes.entrySet()) {
+            heartbeat.info(String.format(Locale.ROOT, "job=\"%s\" stage=%s wallMs=%.3f allocBytes=%d",
+                    jobName, entry.getKey().key, entry.getValue() / NANOS_PER_MILLI,
+                    allocatedBytes.get(entry.getKey())));
+        }
+        heartbeat.info(String.format(Locale.ROOT,
+                "job=\"%s\" status=%s totalMs=%.3f allocBytes=%d dataRows=%d sampledRows=%d rowsPerSec=%.0f "
+                        + "peakHeapBytes=%d",
+                jobName, status, elapsed / NANOS_PER_MILLI, totalAllocatedBytes(), dataRowCount, sampledRows,
+                rowsPerSecond(dataRowCount), peakHeap));
+    }
+
+    /**
+     * Appends a short summary of the measurements to the text explaining the processing.
+     *
+     * @param explanation  The text explaining the processing.
+     * @param dataRowCount The number of data rows in the source sheet.
+     */
+    void appendSummary(Explanation explanation, int dataRowCount) {
+        explanation.append("Apdorojimo trukmė pagal etapus:\n");
+        for (Map.Entry<Stage, Long> entry : wallTimes.entrySet()) {
+            explanation.append(String.format(Locale.ROOT, "  %s: %.0f ms", entry.getKey().description,
+                    entry.getValue() / NANOS_PER_MILLI));
+            long allocated = allocatedBytes.get(entry.getKey());
+            if (allocated >= 0) {
+                explanation.append(String.format(Locale.ROOT, ", išskirta %.1f MB atminties",
+                        allocated / BYTES_PER_MEGABYTE));
+            }
+            explanation.append("\n");
+        }
+        explanation.append(String.format(Locale.ROOT,
+                "Iš viso: %.0f ms, %.0f eil./s, didžiausia naudota atmintis %.1f MB\n",
+                elapsed / NANOS_PER_MILLI, rowsPerSecond(dataRowCount), peakHeap / BYTES_PER_MEGABYTE));
+    }
+
+    /**
+     * Records the wall time and allocations of the current stage.
+     */
+    private void endStage() {
+        if (stage == null) {
+            return;
+        }
+        long allocationEnd = allocatedBytes();
+        wallTimes.merge(stage, System.nanoTime() - stageStart, Long::sum);
+        allocatedBytes.merge(stage, allocations == null ? -1 : allocationEnd - stageAllocationStart,
+                (a, b) -> a < 0 || b < 0 ? -1 : a + b);
+        sampleHeap();
+        stage = null;
+    }
+
+    /**
+     * @return The bytes allocated so far by the current thread, or -1 if the JVM does not count them.
+     */
+    private long allocatedBytes() {
+        return allocations == null ? -1 : allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @return The bytes allocated by all the measured stages, or -1 if the JVM does not count them.
+     */
+    private long totalAllocatedBytes() {
+        long total = 0;
+        for (long allocated : allocatedBytes.values()) {
+            if (allocated < 0) {
+                return -1;
+            }
+            total += allocated;
+        }
+        return total;
+    }
+
+    /**
+     * @param dataRowCount The number of data rows in the source sheet.
+     * @return The data rows handled per second over the whole job.
+     */
+    private double rowsPerSecond(int dataRowCount) {
+        return dataRowCount / Math.max(elapsed / 1e9, 1e-9);
+    }
+}
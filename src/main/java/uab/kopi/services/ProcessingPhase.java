@@ -0,0 +1,17 @@
+package uab.kopi.services;
+
+/**
+ * The phases a file goes through while it is processed, in order.
+ */
+public enum ProcessingPhase {
+    /** Opening the source file. */
+    OPEN,
+    /** Reading the rows to find the info row and the end of the data. */
+    SCAN,
+    /** Randomly selecting the data rows. */
+    SELECT,
+    /** Copying the selected rows to the new sheet. */
+    COPY,
+    /** Writing the new files. */
+    WRITE
+}
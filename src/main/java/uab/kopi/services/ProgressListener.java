@@ -0,0 +1,40 @@
+package uab.kopi.services;
+
+/**
+ * Receives progress updates while a file is processed and lets the caller cancel the processing.
+ * Methods are called on the processing thread.
+ */
+public interface ProgressListener {
+
+    /**
+     * A listener that ignores all updates and never cancels.
+     */
+    ProgressListener NONE = new ProgressListener() {
+    };
+
+    /**
+     * Called when the processing enters a new phase.
+     *
+     * @param phase The phase that starts.
+     */
+    default void onPhase(ProcessingPhase phase) {
+    }
+
+    /**
+     * Called periodically with the number of rows handled so far in the current phase.
+     *
+     * @param rows The number of rows handled in the current phase.
+     */
+    default void onRows(long rows) {
+    }
+
+    /**
+     * Checked periodically by the processing. Once it returns true the processing stops and removes any files it has
+     * already written.
+     *
+     * @return True if the processing should stop.
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+}
@@ -0,0 +1,130 @@
+package uab.kopi.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Keeps a given share of the rows when the total number of rows is not known until the end of the stream.
+ * <p>
+ * Every row gets a uniform random key, and a row is kept while its key is below the target share plus a safety margin
+ * (a Bernoulli trial with a slightly raised probability). The margin shrinks as more rows are seen, and rows whose
+ * keys fall outside it are dropped. At the end the rows with the smallest keys are returned, which is a uniform sample
+ * of the exact requested size. The margin is six standard deviations wide, so running short of rows is practically
+ * impossible.
+ *
+ * @param <T> The type holding the row values.
+ */
+class ProportionalSampler<T> implements RowSampler<T> {
+
+    private static final double MARGIN_DEVIATIONS = 6.0;
+    private static final int MIN_CAPACITY = 16;
+
+    private final double proportion;
+    private final Random random;
+    private double[] keys = new double[MIN_CAPACITY];
+    private int[] rowIdxs = new int[MIN_CAPACITY];
+    private Object[] values = new Object[MIN_CAPACITY];
+    private int size;
+    private int rowCount;
+
+    /**
+     * @param proportion The share of rows to keep, from 0 to 1.
+     * @param random     The source of randomness.
+     */
+    ProportionalSampler(double proportion, Random random) {
+        this.proportion = Math.min(Math.max(proportion, 0.0), 1.0);
+        this.random = random;
+    }
+
+    @Override
+    public <S> void offer(int rowIdx, S source, Function<? super S, ? extends T> reader) {
+        rowCount++;
+        double key = random.nextDouble();
+        if (key >= threshold(rowCount)) {
+            return;
+        }
+        if (size == keys.length) {
+            prune();
+            if (size > keys.length / 4 * 3) {
+                grow();
+            }
+        }
+        keys[size] = key;
+        rowIdxs[size] = rowIdx;
+        values[size] = reader.apply(source);
+        size++;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<SampledRow<T>> finish(int numRowsToTake) {
+        prune();
+        int taken = Math.min(numRowsToTake, size);
+        List<SampledRow<T>> selected = new ArrayList<>(taken);
+        if (taken == 0) {
+            return selected;
+        }
+
+        // The rows with the smallest keys form the sample
+        double[] sortedKeys = Arrays.copyOf(keys, size);
+        Arrays.sort(sortedKeys);
+        double cutoff = sortedKeys[taken - 1];
+        for (int i = 0; i < size && selected.size() < taken; i++) {
+            if (keys[i] <= cutoff) {
+                selected.add(new SampledRow<>(rowIdxs[i], (T) values[i]));
+            }
+        }
+        Collections.shuffle(selected, random);
+        return selected;
+    }
+
+    /**
+     * Works out the highest key a row may have to stay a candidate after the given number of rows.
+     *
+     * @param rows The number of rows seen.
+     * @return The key threshold.
+     */
+    private double threshold(int rows) {
+        double deviation = Math.sqrt(proportion * (1.0 - proportion) / rows);
+        return proportion + MARGIN_DEVIATIONS * deviation + MARGIN_DEVIATIONS / rows;
+    }
+
+    /**
+     * Drops the candidates whose keys are above the current threshold.
+     */
+    private void prune() {
+        double limit = threshold(Math.max(rowCount, 1));
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (keys[i] < limit) {
+                keys[kept] = keys[i];
+                rowIdxs[kept] = rowIdxs[i];
+                values[kept] = values[i];
+                kept++;
+            }
+        }
+        for (int i = kept; i < size; i++) {
+            values[i] = null;
+        }
+        size = kept;
+    }
+
+    /**
+     * Doubles the capacity of the candidate arrays.
+     */
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        rowIdxs = Arrays.copyOf(rowIdxs, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+}
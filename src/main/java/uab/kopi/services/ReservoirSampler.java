@@ -0,0 +1,85 @@
+package uab.kopi.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Keeps a fixed number of uniformly selected rows using reservoir sampling (Algorithm L). After the reservoir is
+ * full, the position of the next row to keep is drawn directly, so skipped rows cost no random draws.
+ *
+ * @param <T> The type holding the row values.
+ */
+class ReservoirSampler<T> implements RowSampler<T> {
+
+    private final int capacity;
+    private final Random random;
+    private final List<SampledRow<T>> reservoir;
+    private int rowCount;
+    private double weight;
+    private long nextKeptRow;
+
+    /**
+     * @param capacity The number of rows to keep.
+     * @param random   The source of randomness.
+     */
+    ReservoirSampler(int capacity, Random random) {
+        this.capacity = Math.max(capacity, 0);
+        this.random = random;
+        this.reservoir = new ArrayList<>(Math.min(this.capacity, 1 << 16));
+    }
+
+    @Override
+    public <S> void offer(int rowIdx, S source, Function<? super S, ? extends T> reader) {
+        int position = rowCount++;
+        if (capacity == 0) {
+            // Nothing to keep, but the rows are still counted
+            return;
+        }
+        if (position < capacity) {
+            reservoir.add(new SampledRow<>(rowIdx, reader.apply(source)));
+            if (position == capacity - 1) {
+                weight = Math.exp(Math.log(nextUniform()) / capacity);
+                skip(position);
+            }
+        } else if (position == nextKeptRow) {
+            reservoir.set(random.nextInt(capacity), new SampledRow<>(rowIdx, reader.apply(source)));
+            weight *= Math.exp(Math.log(nextUniform()) / capacity);
+            skip(position);
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public List<SampledRow<T>> finish(int numRowsToTake) {
+        List<SampledRow<T>> selected = new ArrayList<>(reservoir);
+        Collections.shuffle(selected, random);
+        return selected.subList(0, Math.min(numRowsToTake, selected.size()));
+    }
+
+    /**
+     * Draws the position of the next row to keep.
+     *
+     * @param position The position of the last row kept.
+     */
+    private void skip(int position) {
+        nextKeptRow = position + (long) Math.floor(Math.log(nextUniform()) / Math.log1p(-weight)) + 1;
+    }
+
+    /**
+     * @return A uniformly distributed number in (0, 1).
+     */
+    private double nextUniform() {
+        double value;
+        do {
+            value = random.nextDouble();
+        } while (value == 0.0);
+        return value;
+    }
+}
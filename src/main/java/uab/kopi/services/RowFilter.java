@@ -0,0 +1,268 @@
+package uab.kopi.services;
+
+import org.apache.poi.ss.usermodel.DateUtil;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * A condition on one column of the data rows, such as {@code Būsena = "uždaryta"}, {@code Suma > 10000} or
+ * {@code Data >= 2024-01-01}. Only the rows meeting every condition of a job are sampled.
+ * <p>
+ * A condition is the name of a column of the info row, an operator and a value. A name holding spaces or operator
+ * characters is written in double quotes. The operators are {@code =}, {@code !=} (or {@code <>}), {@code <},
+ * {@code <=}, {@code >}, {@code >=} and {@code ~}, which checks whether the text of the cell contains the value,
+ * ignoring case. The type of the comparison is set by the value once, when the condition is parsed:
+ * <ul>
+ *     <li>a number, with a dot or a comma before the decimals, compares the cells as numbers;</li>
+ *     <li>a date {@code yyyy-MM-dd}, optionally followed by a time {@code HH:mm} or {@code HH:mm:ss}, compares the
+ *     cells as dates, and a date without a time compares only the day;</li>
+ *     <li>anything else, or any value in double quotes, compares the text of the cells.</li>
+ * </ul>
+ * A cell that is not a number never meets a numeric condition, and a cell that is not a date never meets a date
+ * condition, whatever the operator, so blank cells are left out by both.
+ */
+public final class RowFilter {
+
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd H:mm[:ss]");
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final int DATE_LENGTH = "yyyy-MM-dd".length();
+
+    /**
+     * How the value of a cell is compared with the value of the condition.
+     */
+    private enum Operator {
+        EQUAL("="), NOT_EQUAL("!="), LESS("<"), LESS_OR_EQUAL("<="), GREATER(">"), GREATER_OR_EQUAL(">="),
+        CONTAINS("~");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        /**
+         * Finds the operator a text starts with, preferring the longer symbols, so that {@code <=} is not read as
+         * {@code <}. The symbol {@code <>} is read as {@link #NOT_EQUAL}.
+         *
+         * @param text The text following the column name.
+         * @return The operator, or null if the text starts with none.
+         */
+        static Operator at(String text) {
+            if (text.startsWith("<>")) {
+                return NOT_EQUAL;
+            }
+            Operator found = null;
+            for (Operator operator : values()) {
+                if (text.startsWith(operator.symbol)
+                        && (found == null || operator.symbol.length() > found.symbol.length())) {
+                    found = operator;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @param comparison The result of comparing the cell with the value of the condition.
+         * @return Whether the comparison meets the operator.
+         */
+        boolean accepts(int comparison) {
+            switch (this) {
+                case EQUAL:
+                    return comparison == 0;
+                case NOT_EQUAL:
+                    return comparison != 0;
+                case LESS:
+                    return comparison < 0;
+                case LESS_OR_EQUAL:
+                    return comparison <= 0;
+                case GREATER:
+                    return comparison > 0;
+                case GREATER_OR_EQUAL:
+                    return comparison >= 0;
+                default:
+                    throw new IllegalStateException("Not a comparison: " + this);
+            }
+        }
+    }
+
+    private final String column;
+    private final Operator operator;
+    private final String text;
+    private final String lowerCaseText;
+    private final Double number;
+    private final LocalDateTime dateTime;
+    private final boolean dateOnly;
+
+    private RowFilter(String column, Operator operator, String text, Double number, LocalDateTime dateTime,
+                      boolean dateOnly) {
+        this.column = column;
+        this.operator = operator;
+        this.text = text;
+        this.lowerCaseText = text.toLowerCase(Locale.ROOT);
+        this.number = number;
+        this.dateTime = dateTime;
+        this.dateOnly = dateOnly;
+    }
+
+    /**
+     * Parses a condition.
+     *
+     * @param expression The condition, such as {@code Suma > 10000}.
+     * @return The parsed condition.
+     * @throws IllegalArgumentException If the expression is not a valid condition.
+     */
+    public static RowFilter parse(String expression) {
+        String trimmed = expression.trim();
+        String column;
+        int position;
+        if (trimmed.startsWith("\"")) {
+            int end = trimmed.indexOf('"', 1);
+            if (end < 0) {
+                throw new IllegalArgumentException("The column name is not closed in the filter: " + expression);
+            }
+            column = trimmed.substring(1, end);
+            position = end + 1;
+        } else {
+            position = 0;
+            while (position < trimmed.length() && "=!<>~".indexOf(trimmed.charAt(position)) < 0) {
+                position++;
+            }
+            column = trimmed.substring(0, position).trim();
+        }
+        if (column.isEmpty()) {
+            throw new IllegalArgumentException("The filter has no column name: " + expression);
+        }
+
+        String rest = trimmed.substring(position).trim();
+        Operator operator = Operator.at(rest);
+        if (operator == null) {
+            throw new IllegalArgumentException("The filter has no operator (=, !=, <, <=, >, >=, ~): " + expression);
+        }
+
+        String value = rest.substring(rest.startsWith("<>") ? 2 : operator.symbol.length()).trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return new RowFilter(column, operator, value.substring(1, value.length() - 1), null, null, false);
+        }
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("The filter has no value, write \"\" to match blank cells: "
+                    + expression);
+        }
+        if (operator == Operator.CONTAINS) {
+            return new RowFilter(column, operator, value, null, null, false);
+        }
+        Double number = parseNumber(value);
+        if (number != null) {
+            return new RowFilter(column, operator, value, number, null, false);
+        }
+        LocalDateTime dateTime = parseDateTime(value);
+        if (dateTime != null) {
+            return new RowFilter(column, operator, value, null, dateTime, value.length() == DATE_LENGTH);
+        }
+        return new RowFilter(column, operator, value, null, null, false);
+    }
+
+    /**
+     * @return The name of the info row column the condition is on.
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * Checks whether a cell meets the condition.
+     *
+     * @param value The value of the cell, a string or a {@link CellValue}.
+     * @return Whether the cell meets the condition.
+     */
+    boolean test(Object value) {
+        if (operator == Operator.CONTAINS) {
+            return String.valueOf(value).toLowerCase(Locale.ROOT).contains(lowerCaseText);
+        }
+        if (number != null) {
+            Double cellNumber = toNumber(value);
+            return cellNumber != null && operator.accepts(Double.compare(cellNumber, number));
+        }
+        if (dateTime != null) {
+            LocalDateTime cellDateTime = toDateTime(value);
+            if (cellDateTime == null) {
+                return false;
+            }
+            return operator.accepts(dateOnly
+                    ? cellDateTime.toLocalDate().compareTo(dateTime.toLocalDate())
+                    : cellDateTime.compareTo(dateTime));
+        }
+        return operator.accepts(Integer.signum(String.valueOf(value).trim().compareTo(text)));
+    }
+
+    /**
+     * @param value The value of a cell.
+     * @return The number in the cell, or null if the cell holds no number. Dates are not numbers here.
+     */
+    private static Double toNumber(Object value) {
+        if (value instanceof CellValue) {
+            CellValue cellValue = (CellValue) value;
+            return cellValue.isNumber() && !cellValue.isDate() ? cellValue.getNumber() : null;
+        }
+        return parseNumber(value.toString());
+    }
+
+    /**
+     * @param value The value of a cell.
+     * @return The date in the cell, or null if the cell holds no date.
+     */
+    private static LocalDateTime toDateTime(Object value) {
+        if (value instanceof CellValue) {
+            CellValue cellValue = (CellValue) value;
+            return cellValue.isDate() && DateUtil.isValidExcelDate(cellValue.getNumber())
+                    ? DateUtil.getLocalDateTime(cellValue.getNumber())
+                    : null;
+        }
+        return parseDateTime(value.toString());
+    }
+
+    /**
+     * @param text The text to read, with a dot or a comma before the decimals.
+     * @return The number, or null if the text is not a number.
+     */
+    private static Double parseNumber(String text) {
+        String trimmed = text.trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        try {
+            double parsed = Double.parseDouble(trimmed.replace(',', '.'));
+            // Words such as NaN or Infinity are text here
+            return Double.isFinite(parsed) ? parsed : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param text The text to read, a date optionally followed by a time, as the dates are written by the processor.
+     * @return The date, or null if the text is not a date.
+     */
+    private static LocalDateTime parseDateTime(String text) {
+        String trimmed = text.trim();
+        try {
+            return trimmed.length() == DATE_LENGTH
+                    ? LocalDate.parse(trimmed, DATE).atStartOfDay()
+                    : LocalDateTime.parse(trimmed, DATE_TIME);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The condition as it is shown to the user, with the value quoted if it is compared as text.
+     */
+    @Override
+    public String toString() {
+        boolean quoted = number == null && dateTime == null;
+        return column + " " + operator.symbol + " " + (quoted ? "\"" + text + "\"" : text);
+    }
+}
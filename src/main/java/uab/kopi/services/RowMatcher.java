@@ -0,0 +1,71 @@
+package uab.kopi.services;
+
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * The filters of a job bound to the columns of one sheet, checking whether a data row meets all of them. Only the
+ * cells of the filtered columns are looked at, so rows are checked before their values are copied anywhere.
+ */
+final class RowMatcher {
+
+    private final List<RowFilter> filters;
+    private final int[] columns;
+
+    private RowMatcher(List<RowFilter> filters, int[] columns) {
+        this.filters = filters;
+        this.columns = columns;
+    }
+
+    /**
+     * Finds the columns of the filters in the info row of a sheet.
+     *
+     * @param filters The filters of the job.
+     * @param infoRow Values of the info row.
+     * @return The matcher of the sheet, which matches no row if a column was not found.
+     */
+    static RowMatcher bind(List<RowFilter> filters, Object[] infoRow) {
+        int[] columns = new int[filters.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = ExcelProcessor.findColumn(infoRow, filters.get(i).getColumn());
+        }
+        return new RowMatcher(filters, columns);
+    }
+
+    /**
+     * @return The first filter whose column is not in the info row, or null if every column was found.
+     */
+    RowFilter getUnboundFilter() {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] < 0) {
+                return filters.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks a row read from a stream.
+     *
+     * @param cells The streamed cell values of the row, indexed by column.
+     * @return Whether the row meets every filter.
+     */
+    boolean matches(List<Object> cells) {
+        return matches(column -> column < cells.size() ? cells.get(column) : "");
+    }
+
+    /**
+     * Checks a row.
+     *
+     * @param cellValue Gives the value of the cell in a column, a string or a {@link CellValue}.
+     * @return Whether the row meets every filter.
+     */
+    boolean matches(IntFunction<Object> cellValue) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] < 0 || !filters.get(i).test(cellValue.apply(columns[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
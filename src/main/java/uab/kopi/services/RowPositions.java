@@ -0,0 +1,415 @@
+package uab.kopi.services;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Where the rows of a sheet start in its file, noted for every {@value #STEP}th row while the sheet is streamed. A
+ * later read of a few rows can then jump over the parts of the sheet that hold none of them.
+ * <p>
+ * For an .xlsx sheet the positions are offsets in its uncompressed XML. The sheet is compressed inside the file and
+ * cannot be searched, so the skipped parts are still inflated, but no longer parsed. For a delimited text file the
+ * positions are offsets in the file itself, which is searched directly.
+ */
+final class RowPositions {
+
+    static final int STEP = 64;
+
+    private static final byte[] SHEET_DATA_END = "</sheetData></worksheet>".getBytes(StandardCharsets.US_ASCII);
+
+    private final long sheetDataStart;
+    private final int[] rowIdxs;
+    private final long[] offsets;
+
+    /**
+     * @param sheetDataStart The offset just past the start tag of the sheet data, where the first row may start.
+     * @param rowIdxs        The indexes of the noted rows, in ascending order.
+     * @param offsets        The offsets of the start tags of the noted rows.
+     */
+    private RowPositions(long sheetDataStart, int[] rowIdxs, long[] offsets) {
+        this.sheetDataStart = sheetDataStart;
+        this.rowIdxs = rowIdxs;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Wraps the XML of the sheet in a stream that passes on only the parts holding the given rows, between the start
+     * of the document and the start of the sheet data and closing tags of their own. Every part starts at a noted row
+     * and ends at the next one, so the rows around the given ones are passed too.
+     *
+     * @param sheet      The uncompressed XML of the sheet, read from the start.
+     * @param sortedRows The indexes of the wanted rows, in ascending order.
+     * @return The stream holding a well formed sheet with the wanted rows.
+     */
+    InputStream select(InputStream sheet, int[] sortedRows) {
+        long[] starts = new long[sortedRows.length + 1];
+        long[] ends = new long[sortedRows.length + 1];
+        ends[0] = sheetDataStart;
+        int parts = 1;
+        int lastStep = -1;
+        for (int rowIdx : sortedRows) {
+            int step = stepOf(rowIdx);
+            if (step < 0 || step == lastStep) {
+                // The row is missing from the sheet or its part is already passed on
+                continue;
+            }
+            starts[parts] = offsets[step];
+            ends[parts] = step + 1 < offsets.length ? offsets[step + 1] : -1;
+            parts++;
+            lastStep = step;
+        }
+        boolean toTheEnd = parts > 1 && ends[parts - 1] < 0;
+        return new PartsInputStream(sheet, Arrays.copyOf(starts, parts), Arrays.copyOf(ends, parts),
+                toTheEnd ? new byte[0] : SHEET_DATA_END);
+    }
+
+    /**
+     * @param rowIdx Index of a row.
+     * @return The number of the last noted row at or before the given one, or -1 if there is none.
+     */
+    int stepOf(int rowIdx) {
+        int step = Arrays.binarySearch(rowIdxs, rowIdx);
+        return step >= 0 ? step : -step - 2;
+    }
+
+    /**
+     * @param step The number of a noted row.
+     * @return Index of the noted row.
+     */
+    int rowIdxAt(int step) {
+        return rowIdxs[step];
+    }
+
+    /**
+     * @param step The number of a noted row.
+     * @return The offset where the noted row starts.
+     */
+    long offsetAt(int step) {
+        return offsets[step];
+    }
+
+    /**
+     * Writes the positions to an index file.
+     *
+     * @param out The stream of the index file.
+     * @throws IOException If writing fails.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(sheetDataStart);
+        out.writeInt(rowIdxs.length);
+        for (int i = 0; i < rowIdxs.length; i++) {
+            out.writeInt(rowIdxs[i]);
+            out.writeLong(offsets[i]);
+        }
+    }
+
+    /**
+     * Reads positions written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param in The stream of the index file.
+     * @return The positions.
+     * @throws IOException If reading fails or the positions are damaged.
+     */
+    static RowPositions readFrom(DataInputStream in) throws IOException {
+        long sheetDataStart = in.readLong();
+        int count = in.readInt();
+        if (sheetDataStart < 0 || count < 0) {
+            throw new IOException("Invalid row positions");
+        }
+        int[] rowIdxs = new int[count];
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            rowIdxs[i] = in.readInt();
+            offsets[i] = in.readLong();
+            if (i > 0 && (rowIdxs[i] <= rowIdxs[i - 1] || offsets[i] <= offsets[i - 1])) {
+                throw new IOException("Invalid row positions");
+            }
+        }
+        return new RowPositions(sheetDataStart, rowIdxs, offsets);
+    }
+
+    /**
+     * Notes the row positions while a sheet is parsed. For an .xlsx sheet the offsets come from {@link Scanner},
+     * which sees the bytes before the parser does, and the row indexes from the parser. Both see the rows in the same
+     * order, so the nth offset belongs to the nth row index. A delimited text file gives both at once.
+     */
+    static final class Recorder {
+
+        private long sheetDataStart = -1;
+        private long[] offsets = new long[16];
+        private int offsetCount;
+        private int tagCount;
+        private int[] rowIdxs = new int[16];
+        private int rowIdxCount;
+        private int rowCount;
+        private boolean valid = true;
+
+        /**
+         * @param offset The offset of the start tag of the next row in the XML.
+         */
+        void onRowTag(long offset) {
+            if (tagCount++ % STEP == 0) {
+                if (offsetCount == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsetCount * 2);
+                }
+                offsets[offsetCount++] = offset;
+            }
+        }
+
+        /**
+         * @param reference The reference of the next parsed row, its one based number, or null if it has none.
+         */
+        void onRow(String reference) {
+            if (reference == null) {
+                // Without the numbers, rows read out of their context would be numbered from the first one read
+                valid = false;
+                return;
+            }
+            if (rowCount++ % STEP == 0) {
+                try {
+                    noteRowIdx(Integer.parseInt(reference) - 1);
+                } catch (NumberFormatException e) {
+                    valid = false;
+                }
+            }
+        }
+
+        /**
+         * @param rowIdx Index of the next record of a delimited text file.
+         * @param offset The offset where the record starts in the file.
+         */
+        void onRecord(int rowIdx, long offset) {
+            sheetDataStart = 0;
+            onRowTag(offset);
+            if (rowCount++ % STEP == 0) {
+                noteRowIdx(rowIdx);
+            }
+        }
+
+        /**
+         * @param rowIdx Index of the next noted row.
+         */
+        private void noteRowIdx(int rowIdx) {
+            if (rowIdxCount == rowIdxs.length) {
+                rowIdxs = Arrays.copyOf(rowIdxs, rowIdxCount * 2);
+            }
+            rowIdxs[rowIdxCount++] = rowIdx;
+        }
+
+        /**
+         * @return The positions of the rows parsed so far, or null if they could not be worked out.
+         */
+        RowPositions finish() {
+            if (!valid || sheetDataStart < 0) {
+                return null;
+            }
+            // The scanner may be ahead of the parser, which stops at the end of the data
+            int count = Math.min(offsetCount, rowIdxCount);
+            return new RowPositions(sheetDataStart, Arrays.copyOf(rowIdxs, count), Arrays.copyOf(offsets, count));
+        }
+    }
+
+    /**
+     * Looks for the start tags of the sheet data and of the rows in the bytes passing to the parser, telling the
+     * recorder where they are.
+     */
+    static final class Scanner extends FilterInputStream {
+
+        private static final byte[] ROW_TAG = "<row".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] SHEET_DATA_TAG = "<sheetData".getBytes(StandardCharsets.US_ASCII);
+
+        private final Recorder recorder;
+        private long position;
+        private int rowMatched;
+        private int sheetDataMatched;
+        private boolean inSheetDataTag;
+
+        /**
+         * @param sheet    The uncompressed XML of the sheet.
+         * @param recorder The recorder noting the positions.
+         */
+        Scanner(InputStream sheet, Recorder recorder) {
+            super(sheet);
+            this.recorder = recorder;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                scan((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            for (int i = 0; i < read; i++) {
+                scan(b[off + i]);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Every byte has to be scanned
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        /**
+         * Checks the next byte against the tags looked for.
+         *
+         * @param b The next byte of the XML.
+         */
+        private void scan(byte b) {
+            if (inSheetDataTag) {
+                if (b == '>') {
+                    recorder.sheetDataStart = position + 1;
+                    inSheetDataTag = false;
+                }
+            } else if (rowMatched == ROW_TAG.length) {
+                // Only a whole tag name counts, so that <rowBreaks> is not taken for a row
+                if (isNameEnd(b)) {
+                    recorder.onRowTag(position - ROW_TAG.length);
+                }
+                rowMatched = 0;
+            } else if (sheetDataMatched == SHEET_DATA_TAG.length) {
+                if (isNameEnd(b)) {
+                    inSheetDataTag = b != '>';
+                    if (b == '>') {
+                        recorder.sheetDataStart = position + 1;
+                    }
+                }
+                sheetDataMatched = 0;
+            }
+            rowMatched = advance(rowMatched, b, ROW_TAG);
+            sheetDataMatched = advance(sheetDataMatched, b, SHEET_DATA_TAG);
+            position++;
+        }
+
+        /**
+         * @param matched The number of bytes of the tag matched so far.
+         * @param b       The next byte of the XML.
+         * @param tag     The tag looked for, which has no '&lt;' after its first byte.
+         * @return The number of bytes of the tag matched with the next byte.
+         */
+        private static int advance(int matched, byte b, byte[] tag) {
+            if (matched < tag.length && b == tag[matched]) {
+                return matched + 1;
+            }
+            return b == '<' ? 1 : 0;
+        }
+
+        /**
+         * @param b A byte following a tag name.
+         * @return Whether the byte ends the name.
+         */
+        private static boolean isNameEnd(byte b) {
+            return b == ' ' || b == '>' || b == '/' || b == '\t' || b == '\n' || b == '\r';
+        }
+    }
+
+    /**
+     * Passes on the given parts of a stream, skipping the bytes between them, followed by fixed closing bytes.
+     */
+    private static final class PartsInputStream extends InputStream {
+
+        private final InputStream source;
+        private final long[] starts;
+        private final long[] ends;
+        private final byte[] closing;
+        private int part;
+        private long position;
+        private int closingPosition;
+
+        /**
+         * @param source  The stream holding the parts.
+         * @param starts  The offsets where the parts start, in ascending order.
+         * @param ends    The offsets where the parts end, or -1 for a part running to the end of the stream.
+         * @param closing The bytes passed on after the last part.
+         */
+        PartsInputStream(InputStream source, long[] starts, long[] ends, byte[] closing) {
+            this.source = source;
+            this.starts = starts;
+            this.ends = ends;
+            this.closing = closing;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (part < starts.length) {
+                if (position < starts[part]) {
+                    skipTo(starts[part]);
+                }
+                if (ends[part] >= 0 && position >= ends[part]) {
+                    part++;
+                    continue;
+                }
+                int wanted = ends[part] < 0 ? len : (int) Math.min(len, ends[part] - position);
+                int read = source.read(b, off, wanted);
+                if (read < 0) {
+                    part = starts.length;
+                    closingPosition = closing.length;
+                    return -1;
+                }
+                position += read;
+                return read;
+            }
+            if (closingPosition == closing.length) {
+                return -1;
+            }
+            int count = Math.min(len, closing.length - closingPosition);
+            System.arraycopy(closing, closingPosition, b, off, count);
+            closingPosition += count;
+            return count;
+        }
+
+        /**
+         * Skips the source to the given offset.
+         *
+         * @param offset The offset to skip to.
+         * @throws IOException If the source ends before the offset.
+         */
+        private void skipTo(long offset) throws IOException {
+            while (position < offset) {
+                long skipped = source.skip(offset - position);
+                if (skipped <= 0) {
+                    if (source.read() < 0) {
+                        throw new IOException("The sheet ends before the indexed row position " + offset);
+                    }
+                    skipped = 1;
+                }
+                position += skipped;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
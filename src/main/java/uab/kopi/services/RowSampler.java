@@ -0,0 +1,58 @@
+package uab.kopi.services;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Selects random data rows in a single forward pass, without knowing the number of rows in advance.
+ * Rows are only converted to their stored form when the sampler decides to keep them.
+ *
+ * @param <T> The type holding the row values.
+ */
+interface RowSampler<T> {
+
+    /**
+     * Offers the next data row of the stream.
+     *
+     * @param rowIdx The zero based index of the row in the source sheet.
+     * @param source The raw row as delivered by the reader.
+     * @param reader Converts the raw row to its stored form, called only if the row is kept.
+     * @param <S>    The type of the raw row.
+     */
+    <S> void offer(int rowIdx, S source, Function<? super S, ? extends T> reader);
+
+    /**
+     * Offers the next data row of the stream together with its weight. Samplers that select rows uniformly ignore
+     * the weight.
+     *
+     * @param rowIdx The zero based index of the row in the source sheet.
+     * @param weight The weight of the row, NaN if it has none.
+     * @param source The raw row as delivered by the reader.
+     * @param reader Converts the raw row to its stored form, called only if the row is kept.
+     * @param <S>    The type of the raw row.
+     */
+    default <S> void offer(int rowIdx, double weight, S source, Function<? super S, ? extends T> reader) {
+        offer(rowIdx, source, reader);
+    }
+
+    /**
+     * @return The number of rows offered so far.
+     */
+    int getRowCount();
+
+    /**
+     * @return The number of rows offered so far that can be selected, which is all of them unless the sampler leaves
+     * some out by their weight.
+     */
+    default int getSelectableCount() {
+        return getRowCount();
+    }
+
+    /**
+     * Finishes the sampling and returns the selected rows in random order.
+     *
+     * @param numRowsToTake The exact number of rows to return, at most the number of rows offered.
+     * @return The selected rows.
+     */
+    List<SampledRow<T>> finish(int numRowsToTake);
+}
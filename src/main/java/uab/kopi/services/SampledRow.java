@@ -0,0 +1,31 @@
+package uab.kopi.services;
+
+/**
+ * A data row kept by a {@link RowSampler}, together with its index in the source sheet.
+ *
+ * @param <T> The type holding the row values.
+ */
+class SampledRow<T> {
+
+    private final int rowIdx;
+    private final T values;
+
+    SampledRow(int rowIdx, T values) {
+        this.rowIdx = rowIdx;
+        this.values = values;
+    }
+
+    /**
+     * @return The zero based index of the row in the source sheet.
+     */
+    int getRowIdx() {
+        return rowIdx;
+    }
+
+    /**
+     * @return The values of the row.
+     */
+    T getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,67 @@
+package uab.kopi.services;
+
+import java.io.File;
+import java.util.Objects;
+
+/**
+ * A request to sample one Excel file: the source file, the folder for the new files and the sampling options, and
+ * optionally a scan of the file made ahead of the job.
+ */
+public class SamplingJob {
+
+    private final File file;
+    private final File outputFolder;
+    private final SamplingOptions options;
+    private final FileScan scan;
+
+    /**
+     * @param file         The Excel file to process.
+     * @param outputFolder The folder where new files will be saved.
+     * @param options      The sampling options.
+     */
+    public SamplingJob(File file, File outputFolder, SamplingOptions options) {
+        this(file, outputFolder, options, null);
+    }
+
+    /**
+     * @param file         The Excel file to process.
+     * @param outputFolder The folder where new files will be saved.
+     * @param options      The sampling options.
+     * @param scan         A scan of the file made ahead of the job, or null. It is ignored if it does not hold for
+     *                     the file as it is when the job runs.
+     */
+    public SamplingJob(File file, File outputFolder, SamplingOptions options, FileScan scan) {
+        this.file = Objects.requireNonNull(file, "file");
+        this.outputFolder = Objects.requireNonNull(outputFolder, "outputFolder");
+        this.options = Objects.requireNonNull(options, "options");
+        this.scan = scan;
+    }
+
+    /**
+     * @return The Excel file to process.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The folder where new files will be saved.
+     */
+    public File getOutputFolder() {
+        return outputFolder;
+    }
+
+    /**
+     * @return The sampling options.
+     */
+    public SamplingOptions getOptions() {
+        return options;
+    }
+
+    /**
+     * @return The scan of the file made ahead of the job, or null if the file is scanned by the job.
+     */
+    public FileScan getScan() {
+        return scan;
+    }
+}
@@ -0,0 +1,483 @@
+package uab.kopi.services;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable settings of a sampling job: how many rows to take, the seed of the random selection and how the output is
+ * written. Instances are created with {@link #builder()}.
+ */
+public class SamplingOptions {
+
+    // Number of rows the streaming writer keeps in memory before flushing them to a temporary file
+    private static final int DEFAULT_ROW_ACCESS_WINDOW = Integer.getInteger("generuoklis.rowAccessWindow",
+            SXSSFWorkbook.DEFAULT_WINDOW_SIZE);
+
+    // Whether the shared strings of streamed .xlsx files are kept in a temporary file unless set otherwise
+    private static final boolean DEFAULT_SHARED_STRINGS_ON_DISK = Boolean.getBoolean("generuoklis.sharedStringsOnDisk");
+
+    /** The most data rows an .xlsx sheet can hold below its info row. */
+    public static final int MAX_SHEET_ROWS = SpreadsheetVersion.EXCEL2007.getMaxRows() - 1;
+
+    private final double number;
+    private final boolean isPercent;
+    private final Long seed;
+    private final int rowAccessWindow;
+    private final boolean sharedStringsOnDisk;
+    private final CopyMode copyMode;
+    private final String stratumColumn;
+    private final StratumAllocation allocation;
+    private final boolean allSheets;
+    private final boolean scanIndex;
+    private final File indexFolder;
+    private final CsvFormat csvFormat;
+    private final OutputFormat outputFormat;
+    private final MappingFormat mappingFormat;
+    private final int shardRows;
+    private final ShardMode shardMode;
+    private final int sampleCount;
+    private final boolean overlapping;
+    private final List<RowFilter> filters;
+    private final String weightColumn;
+
+    private SamplingOptions(Builder builder) {
+        this.number = builder.number;
+        this.isPercent = builder.isPercent;
+        this.seed = builder.seed;
+        this.rowAccessWindow = builder.rowAccessWindow;
+        this.sharedStringsOnDisk = builder.sharedStringsOnDisk;
+        this.copyMode = builder.copyMode;
+        this.stratumColumn = builder.stratumColumn;
+        this.allocation = builder.allocation;
+        this.allSheets = builder.allSheets;
+        this.scanIndex = builder.scanIndex;
+        this.indexFolder = builder.indexFolder;
+        this.csvFormat = builder.csvFormat;
+        this.outputFormat = builder.outputFormat;
+        this.mappingFormat = builder.mappingFormat;
+        this.shardRows = builder.shardRows;
+        this.shardMode = builder.shardMode;
+        this.sampleCount = builder.sampleCount;
+        this.overlapping = builder.overlapping;
+        this.filters = Collections.unmodifiableList(new ArrayList<>(builder.filters));
+        this.weightColumn = builder.weightColumn;
+    }
+
+    /**
+     * @return A builder for new options.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return The number of rows or percentage of rows to be selected.
+     */
+    public double getNumber() {
+        return number;
+    }
+
+    /**
+     * @return Whether the number is a percentage.
+     */
+    public boolean isPercent() {
+        return isPercent;
+    }
+
+    /**
+     * @return The seed for the random selection, or null to pick a new one for every job.
+     */
+    public Long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return The number of rows the output writer keeps in memory.
+     */
+    public int getRowAccessWindow() {
+        return rowAccessWindow;
+    }
+
+    /**
+     * @return Whether the shared strings of an .xlsx file are kept in a temporary file rather than in memory while it
+     * is read.
+     */
+    public boolean isSharedStringsOnDisk() {
+        return sharedStringsOnDisk;
+    }
+
+    /**
+     * @return How cell values are copied to the new file.
+     */
+    public CopyMode getCopyMode() {
+        return copyMode;
+    }
+
+    /**
+     * @return The name of the info row column grouping the rows into strata, or null to select from all rows at once.
+     */
+    public String getStratumColumn() {
+        return stratumColumn;
+    }
+
+    /**
+     * @return How a number of rows is shared between the strata.
+     */
+    public StratumAllocation getAllocation() {
+        return allocation;
+    }
+
+    /**
+     * @return Whether every sheet of the file is sampled, rather than only the first one.
+     */
+    public boolean isAllSheets() {
+        return allSheets;
+    }
+
+    /**
+     * @return Whether what the scan finds out is kept in an index, so that sampling the same file again skips it.
+     */
+    public boolean isScanIndex() {
+        return scanIndex;
+    }
+
+    /**
+     * @return The folder keeping the scan indexes, or null to keep every index next to its source file.
+     */
+    public File getIndexFolder() {
+        return indexFolder;
+    }
+
+    /**
+     * @return How delimited text files are read and written.
+     */
+    public CsvFormat getCsvFormat() {
+        return csvFormat;
+    }
+
+    /**
+     * @return The format of the files with the selected rows.
+     */
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * @return How the selected rows are listed in the text file explaining the processing.
+     */
+    public MappingFormat getMappingFormat() {
+        return mappingFormat;
+    }
+
+    /**
+     * @return The most selected rows of a sheet written to one part of the Excel output. Samples that do not fit in a
+     * single sheet are always split, at {@link #MAX_SHEET_ROWS} rows unless a smaller size is set.
+     */
+    public int getShardRows() {
+        return shardRows;
+    }
+
+    /**
+     * @return Where the parts of a split sample are written.
+     */
+    public ShardMode getShardMode() {
+        return shardMode;
+    }
+
+    /**
+     * @return The number of independent samples drawn from one read of the source, 1 unless set.
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return Whether a row can be selected into several of the samples. Overlapping samples are drawn each with its
+     * own seed, while samples that must not overlap are drawn together and split.
+     */
+    public boolean isOverlapping() {
+        return overlapping;
+    }
+
+    /**
+     * @return The conditions every sampled row meets, in the order they were given. Empty to sample from all rows.
+     */
+    public List<RowFilter> getFilters() {
+        return filters;
+    }
+
+    /**
+     * @return The name of the info row column whose values weigh the rows, or null to select every row with the same
+     * probability.
+     */
+    public String getWeightColumn() {
+        return weightColumn;
+    }
+
+    /**
+     * Builds {@link SamplingOptions}. Either {@link #count(int)} or {@link #percent(double)} must be called.
+     */
+    public static class Builder {
+
+        private Double number;
+        private boolean isPercent;
+        private Long seed;
+        private int rowAccessWindow = DEFAULT_ROW_ACCESS_WINDOW;
+        private boolean sharedStringsOnDisk = DEFAULT_SHARED_STRINGS_ON_DISK;
+        private CopyMode copyMode = CopyMode.TEXT;
+        private String stratumColumn;
+        private StratumAllocation allocation = StratumAllocation.PROPORTIONAL;
+        private boolean allSheets;
+        private boolean scanIndex;
+        private File indexFolder;
+        private CsvFormat csvFormat = CsvFormat.DEFAULT;
+        private OutputFormat outputFormat = OutputFormat.XLSX;
+        private MappingFormat mappingFormat = MappingFormat.TEXT;
+        private int shardRows = MAX_SHEET_ROWS;
+        private ShardMode shardMode = ShardMode.SHEETS;
+        private int sampleCount = 1;
+        private boolean overlapping = true;
+        private final List<RowFilter> filters = new ArrayList<>();
+        private String weightColumn;
+
+        private Builder() {
+        }
+
+        /**
+         * Selects a fixed number of rows.
+         *
+         * @param count The number of rows to select.
+         * @return This builder.
+         */
+        public Builder count(int count) {
+            this.number = (double) count;
+            this.isPercent = false;
+            return this;
+        }
+
+        /**
+         * Selects a percentage of the data rows.
+         *
+         * @param percent The percentage of rows to select, from 0 to 100.
+         * @return This builder.
+         */
+        public Builder percent(double percent) {
+            this.number = percent;
+            this.isPercent = true;
+            return this;
+        }
+
+        /**
+         * @param seed The seed for the random selection, or null to pick a new one for every job.
+         * @return This builder.
+         */
+        public Builder seed(Long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * @param rowAccessWindow The number of rows the output writer keeps in memory.
+         * @return This builder.
+         */
+        public Builder rowAccessWindow(int rowAccessWindow) {
+            this.rowAccessWindow = rowAccessWindow;
+            return this;
+        }
+
+        /**
+         * Keeps the shared strings of an .xlsx file in a temporary file while it is read, rather than in memory. Only
+         * the strings of the rows kept are read back, so this suits files whose shared strings take more memory than
+         * can be spared. The strings are kept in memory by default.
+         *
+         * @param sharedStringsOnDisk Whether the shared strings are kept in a temporary file.
+         * @return This builder.
+         */
+        public Builder sharedStringsOnDisk(boolean sharedStringsOnDisk) {
+            this.sharedStringsOnDisk = sharedStringsOnDisk;
+            return this;
+        }
+
+        /**
+         * @param copyMode How cell values are copied to the new file. Values are copied as text by default.
+         * @return This builder.
+         */
+        public Builder copyMode(CopyMode copyMode) {
+            this.copyMode = Objects.requireNonNull(copyMode);
+            return this;
+        }
+
+        /**
+         * Selects rows separately within every group of rows sharing a value of the given column.
+         *
+         * @param column     The name of the column in the info row, or null to select from all rows at once.
+         * @param allocation How a number of rows is shared between the strata. A percentage is always taken from every
+         *                   stratum separately.
+         * @return This builder.
+         */
+        public Builder stratify(String column, StratumAllocation allocation) {
+            this.stratumColumn = column;
+            this.allocation = Objects.requireNonNull(allocation);
+            return this;
+        }
+
+        /**
+         * @param allSheets Whether every sheet of the file is sampled, each into its own sheet of the new file, rather
+         *                  than only the first one.
+         * @return This builder.
+         */
+        public Builder allSheets(boolean allSheets) {
+            this.allSheets = allSheets;
+            return this;
+        }
+
+        /**
+         * Keeps what the scan finds out in an index, so that sampling the same file again skips the scan as long as
+         * the file has not changed. Stratified sampling always scans the file, as it groups every data row, and so do
+         * filtering and weighting a streamed file, as they read every data row.
+         *
+         * @param indexFolder The folder keeping the indexes, or null to keep every index next to its source file.
+         * @return This builder.
+         */
+        public Builder scanIndex(File indexFolder) {
+            this.scanIndex = true;
+            this.indexFolder = indexFolder;
+            return this;
+        }
+
+        /**
+         * @param csvFormat How .csv and .tsv source files are read and CSV output is written.
+         * @return This builder.
+         */
+        public Builder csvFormat(CsvFormat csvFormat) {
+            this.csvFormat = Objects.requireNonNull(csvFormat);
+            return this;
+        }
+
+        /**
+         * @param outputFormat The format of the files with the selected rows.
+         * @return This builder.
+         */
+        public Builder outputFormat(OutputFormat outputFormat) {
+            this.outputFormat = Objects.requireNonNull(outputFormat);
+            return this;
+        }
+
+        /**
+         * @param mappingFormat How the selected rows are listed in the text file explaining the processing.
+         * @return This builder.
+         */
+        public Builder mappingFormat(MappingFormat mappingFormat) {
+            this.mappingFormat = Objects.requireNonNull(mappingFormat);
+            return this;
+        }
+
+        /**
+         * Splits the Excel output of every sheet whose sample has more rows than the given number into parts of that
+         * many rows. Each part starts with the info row and is listed in a manifest next to the results.
+         *
+         * @param shardRows The most selected rows in one part, at most {@link #MAX_SHEET_ROWS}.
+         * @param shardMode Whether the parts are written to sheets of one file or to separate files.
+         * @return This builder.
+         */
+        public Builder shard(int shardRows, ShardMode shardMode) {
+            this.shardRows = shardRows;
+            this.shardMode = Objects.requireNonNull(shardMode);
+            return this;
+        }
+
+        /**
+         * Draws several samples from one read of the source, each saved with its own explanation in a folder of its
+         * own. Every sample has the requested number or percentage of rows.
+         *
+         * @param sampleCount The number of samples.
+         * @param overlapping Whether a row can be selected into several of the samples.
+         * @return This builder.
+         */
+        public Builder samples(int sampleCount, boolean overlapping) {
+            this.sampleCount = sampleCount;
+            this.overlapping = overlapping;
+            return this;
+        }
+
+        /**
+         * Samples only the data rows meeting a condition on one of their columns, checked while the rows are read.
+         * Every condition added must be met. Percentages and the shares of the strata are taken of the rows meeting
+         * the conditions.
+         *
+         * @param expression The condition, as described in {@link RowFilter}.
+         * @return This builder.
+         * @throws IllegalArgumentException If the expression is not a valid condition.
+         */
+        public Builder filter(String expression) {
+            filters.add(RowFilter.parse(expression));
+            return this;
+        }
+
+        /**
+         * Selects rows with probability proportional to the values of a column, such as the amounts of a
+         * monetary-unit sample. Only a number of rows can be taken this way, not a percentage. Rows whose weight is
+         * zero, negative, blank or not a number are never selected.
+         *
+         * @param column The name of the column in the info row, or null to select every row with the same probability.
+         * @return This builder.
+         */
+        public Builder weight(String column) {
+            this.weightColumn = column;
+            return this;
+        }
+
+        /**
+         * @return The options.
+         * @throws IllegalArgumentException If the options are incomplete or out of range.
+         */
+        public SamplingOptions build() {
+            if (number == null) {
+                throw new IllegalArgumentException("Either a count or a percent must be set");
+            }
+            if (number < 0 || (isPercent && number > 100)) {
+                throw new IllegalArgumentException("The count must not be negative and the percent must be from 0 to 100");
+            }
+            if (stratumColumn != null && stratumColumn.trim().isEmpty()) {
+                throw new IllegalArgumentException("The stratum column must not be blank");
+            }
+            if (rowAccessWindow < 1) {
+                throw new IllegalArgumentException("The row access window must be positive");
+            }
+            if (shardRows < 1 || shardRows > MAX_SHEET_ROWS) {
+                throw new IllegalArgumentException("The part size must be from 1 to " + MAX_SHEET_ROWS + " rows");
+            }
+            if (sampleCount < 1) {
+                throw new IllegalArgumentException("The number of samples must be positive");
+            }
+            if (sampleCount > 1 && stratumColumn != null) {
+                throw new IllegalArgumentException("Several samples cannot be drawn with stratified sampling");
+            }
+            if (sampleCount > 1 && !overlapping && isPercent && number * sampleCount > 100) {
+                throw new IllegalArgumentException("Samples that do not overlap cannot take more than 100 percent "
+                        + "of the rows together");
+            }
+            if (weightColumn != null) {
+                if (weightColumn.trim().isEmpty()) {
+                    throw new IllegalArgumentException("The weight column must not be blank");
+                }
+                if (isPercent) {
+                    throw new IllegalArgumentException("Weighted sampling takes a count of rows, not a percent");
+                }
+                if (stratumColumn != null) {
+                    throw new IllegalArgumentException("Weighted sampling cannot be stratified");
+                }
+                if (sampleCount > 1 && !overlapping) {
+                    throw new IllegalArgumentException("Weighted samples must be allowed to overlap");
+                }
+            }
+            return new SamplingOptions(this);
+        }
+    }
+}
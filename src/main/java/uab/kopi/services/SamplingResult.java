@@ -0,0 +1,78 @@
+package uab.kopi.services;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The outcome of a sampling job: the files written, the row counts and how long the job took.
+ */
+public class SamplingResult {
+
+    private final List<File> outputFiles;
+    private final List<File> textFiles;
+    private final int dataRowCount;
+    private final int sampledRowCount;
+    private final long seed;
+    private final Duration elapsed;
+
+    SamplingResult(List<File> outputFiles, List<File> textFiles, int dataRowCount, int sampledRowCount, long seed,
+                   Duration elapsed) {
+        this.outputFiles = List.copyOf(outputFiles);
+        this.textFiles = List.copyOf(textFiles);
+        this.dataRowCount = dataRowCount;
+        this.sampledRowCount = sampledRowCount;
+        this.seed = seed;
+        this.elapsed = elapsed;
+    }
+
+    /**
+     * @return The new files with the selected rows: one Excel file, or one CSV file for every sampled sheet, along with
+     * the parts of a split sample. With several samples, the files of every sample in sample order.
+     */
+    public List<File> getOutputFiles() {
+        return outputFiles;
+    }
+
+    /**
+     * @return The text file explaining the processing, or of the first sample if several were drawn.
+     */
+    public File getTextFile() {
+        return textFiles.get(0);
+    }
+
+    /**
+     * @return The text files explaining the processing, one for every sample.
+     */
+    public List<File> getTextFiles() {
+        return textFiles;
+    }
+
+    /**
+     * @return The number of data rows found in the source sheet.
+     */
+    public int getDataRowCount() {
+        return dataRowCount;
+    }
+
+    /**
+     * @return The number of rows written to the new files, added up over the samples.
+     */
+    public int getSampledRowCount() {
+        return sampledRowCount;
+    }
+
+    /**
+     * @return The seed used for the random selection.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return How long the job took.
+     */
+    public Duration getElapsed() {
+        return elapsed;
+    }
+}
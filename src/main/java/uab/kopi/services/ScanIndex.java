@@ -0,0 +1,426 @@
+package uab.kopi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Remembers what scanning the sheets of a file found out, so that sampling the same file again can skip the scan: the
+ * info row, the data bounds, the number of columns and, for .xlsx files, where the rows start in the sheet XML.
+ * <p>
+ * The index is kept in a small binary file, either next to the source file or in a chosen folder. It belongs to the
+ * source file by its path, size, modification time and CRC-32C checksum, and is ignored as soon as any of them
+ * changes. The checksum costs a read of the whole file, which is still much cheaper than parsing it. The index of a
+ * delimited text file also holds the charset and the delimiter the file was read with, and is ignored when the file is
+ * read another way, as the values and the row positions depend on them. A missing or damaged index is never an error:
+ * the file is simply scanned again and the index rewritten.
+ * <p>
+ * An index can also be kept in memory only, such as the one filled by a {@link FileScan} while the user is still
+ * choosing the options. It belongs to the source file by its path, size and modification time, is ignored in the same
+ * way when the file is read as other delimited text, and is never saved.
+ */
+class ScanIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(ScanIndex.class);
+    private static final int MAGIC = 0x4B4F5049;
+    private static final int VERSION = 2;
+    private static final String EXTENSION = ".idx";
+    private static final int CHECKSUM_BUFFER_SIZE = 1 << 20;
+
+    private final File indexFile;
+    private final String path;
+    private final long size;
+    private final long modified;
+    private final long checksum;
+    private final String textFormat;
+    private final Map<Integer, SheetEntry> sheets = new ConcurrentHashMap<>();
+    private volatile boolean changed;
+
+    private ScanIndex(File indexFile, File source, long checksum, String textFormat) {
+        this.indexFile = indexFile;
+        this.path = source.getAbsolutePath();
+        this.size = source.length();
+        this.modified = source.lastModified();
+        this.checksum = checksum;
+        this.textFormat = textFormat;
+    }
+
+    /**
+     * Opens the index of a source file, loading the sheets indexed by an earlier run if the file has not changed
+     * since and is read the same way.
+     *
+     * @param source    The source file.
+     * @param folder    The folder keeping the index, or null to keep it next to the source file.
+     * @param csvFormat How the file is read if it is delimited text.
+     * @return The index, possibly without any indexed sheets.
+     * @throws IOException If the source file cannot be read.
+     */
+    static ScanIndex open(File source, File folder, CsvFormat csvFormat) throws IOException {
+        ScanIndex index = new ScanIndex(indexFileOf(source, folder), source, checksumOf(source),
+                textFormatOf(source, csvFormat));
+        if (index.indexFile.isFile()) {
+            try {
+                index.load();
+            } catch (IOException | RuntimeException e) {
+                logger.info("Ignoring the scan index at {}: {}", index.indexFile.getAbsolutePath(), e.getMessage());
+                index.sheets.clear();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Creates an empty index kept in memory only.
+     *
+     * @param source    The source file.
+     * @param csvFormat How the file is read if it is delimited text.
+     * @return The index, without any indexed sheets.
+     * @throws IOException If the delimiter of the source file cannot be worked out.
+     */
+    static ScanIndex inMemory(File source, CsvFormat csvFormat) throws IOException {
+        return new ScanIndex(null, source, 0, textFormatOf(source, csvFormat));
+    }
+
+    /**
+     * @return Whether the index is kept in memory only.
+     */
+    boolean isInMemory() {
+        return indexFile == null;
+    }
+
+    /**
+     * Checks whether the index still belongs to a file by its path, size and modification time, as they are now.
+     *
+     * @param source The source file.
+     * @return Whether the index belongs to the file.
+     */
+    boolean belongsTo(File source) {
+        return path.equals(source.getAbsolutePath()) && size == source.length() && modified == source.lastModified();
+    }
+
+    /**
+     * Checks whether the file the index belongs to is read the same way as when it was indexed.
+     *
+     * @param source    The source file.
+     * @param csvFormat How the file is read if it is delimited text.
+     * @return Whether the file is read with the same charset and delimiter, always true for workbooks.
+     */
+    boolean isReadAs(File source, CsvFormat csvFormat) {
+        try {
+            return textFormat.equals(textFormatOf(source, csvFormat));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds the sheets of another index of the same file that this one does not have yet.
+     *
+     * @param other The other index.
+     */
+    void addMissing(ScanIndex other) {
+        other.sheets.forEach((sheetIdx, entry) -> {
+            if (sheets.putIfAbsent(sheetIdx, entry) == null) {
+                changed = true;
+            }
+        });
+    }
+
+    /**
+     * @param sheetIdx The index of the sheet, in workbook order.
+     * @return What an earlier scan found out about the sheet, or null if it has not been indexed.
+     */
+    SheetEntry get(int sheetIdx) {
+        return sheets.get(sheetIdx);
+    }
+
+    /**
+     * Adds what a scan found out about a sheet. The entries can be added from several threads.
+     *
+     * @param sheetIdx The index of the sheet, in workbook order.
+     * @param entry    What the scan found out.
+     */
+    void put(int sheetIdx, SheetEntry entry) {
+        sheets.put(sheetIdx, entry);
+        changed = true;
+    }
+
+    /**
+     * Writes the index if sheets were added to it, unless it is kept in memory only. The file is replaced in one step,
+     * so that other jobs never read a partly written index. Failing to write the index is only logged, as it is not
+     * needed for the results.
+     */
+    void save() {
+        if (!changed || indexFile == null) {
+            return;
+        }
+        File folder = indexFile.getAbsoluteFile().getParentFile();
+        File tempFile = null;
+        try {
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException("Could not create the folder " + folder.getAbsolutePath());
+            }
+            tempFile = File.createTempFile(indexFile.getName(), ".tmp", folder);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                write(out);
+            }
+            try {
+                Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            changed = false;
+            logger.info("Saved the scan index of {} sheets to {}", sheets.size(), indexFile.getAbsolutePath());
+        } catch (IOException e) {
+            logger.warn("Could not save the scan index to {}", indexFile.getAbsolutePath(), e);
+            if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+                logger.warn("Could not delete the temporary file at: {}", tempFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Reads the indexed sheets, if the index belongs to the source file as it is now.
+     *
+     * @throws IOException If the index cannot be read or is damaged.
+     */
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a scan index of this version");
+            }
+            if (!in.readUTF().equals(path) || in.readLong() != size || in.readLong() != modified
+                    || in.readLong() != checksum) {
+                throw new IOException("the source file has changed");
+            }
+            if (!in.readUTF().equals(textFormat)) {
+                throw new IOException("the source file was read as other delimited text");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int sheetIdx = in.readInt();
+                sheets.put(sheetIdx, SheetEntry.readFrom(in));
+            }
+        }
+        logger.info("Loaded the scan index of {} sheets from {}", sheets.size(), indexFile.getAbsolutePath());
+    }
+
+    /**
+     * Writes the key of the source file and the indexed sheets.
+     *
+     * @param out The stream of the index file.
+     * @throws IOException If writing fails.
+     */
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(path);
+        out.writeLong(size);
+        out.writeLong(modified);
+        out.writeLong(checksum);
+        out.writeUTF(textFormat);
+        Map<Integer, SheetEntry> entries = Map.copyOf(sheets);
+        out.writeInt(entries.size());
+        for (Map.Entry<Integer, SheetEntry> entry : entries.entrySet()) {
+            out.writeInt(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    /**
+     * Works out where the index of a source file is kept. In a shared folder the name also carries a checksum of the
+     * path, so that files of the same name from different folders do not share an index.
+     *
+     * @param source The source file.
+     * @param folder The folder keeping the index, or null to keep it next to the source file.
+     * @return The index file.
+     */
+    private static File indexFileOf(File source, File folder) {
+        if (folder == null) {
+            return new File(source.getAbsoluteFile().getParentFile(), source.getName() + EXTENSION);
+        }
+        CRC32 pathChecksum = new CRC32();
+        pathChecksum.update(source.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        return new File(folder, source.getName() + "-" + Long.toHexString(pathChecksum.getValue()) + EXTENSION);
+    }
+
+    /**
+     * Describes how a file is read, so that an index made reading the file one way is not used reading it another.
+     *
+     * @param source    The source file.
+     * @param csvFormat How the file is read if it is delimited text.
+     * @return The charset and the delimiter of delimited text, the delimiter worked out from the file if the format
+     * leaves it open, and an empty string for workbooks.
+     * @throws IOException If the delimiter cannot be worked out.
+     */
+    private static String textFormatOf(File source, CsvFormat csvFormat) throws IOException {
+        if (!CsvSheet.isDelimitedText(source)) {
+            return "";
+        }
+        char delimiter = csvFormat.getDelimiter() != null ? csvFormat.getDelimiter() : CsvSheet.detectDelimiter(source);
+        return csvFormat.getCharset().name() + " " + (int) delimiter;
+    }
+
+    /**
+     * Works out the CRC-32C checksum of the whole file, which current processors compute in hardware.
+     *
+     * @param source The file.
+     * @return The checksum.
+     * @throws IOException If the file cannot be read.
+     */
+    private static long checksumOf(File source) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * What a scan found out about one sheet.
+     */
+    static final class SheetEntry {
+
+        private final int infoRowIdx;
+        private final int firstDataIdx;
+        private final int lastDataIdx;
+        private final int columnCount;
+        private final String[] infoRow;
+        private final RowPositions positions;
+
+        /**
+         * @param infoRowIdx   Index of the info row, or -1 if the sheet has none.
+         * @param firstDataIdx Index of the first data row.
+         * @param lastDataIdx  Index of the last data row.
+         * @param columnCount  The number of cells in the info row.
+         * @param infoRow      The values of the info row as text.
+         * @param positions    Where the rows start in the sheet XML, or null if unknown.
+         */
+        SheetEntry(int infoRowIdx, int firstDataIdx, int lastDataIdx, int columnCount, String[] infoRow,
+                   RowPositions positions) {
+            this.infoRowIdx = infoRowIdx;
+            this.firstDataIdx = firstDataIdx;
+            this.lastDataIdx = lastDataIdx;
+            this.columnCount = columnCount;
+            this.infoRow = infoRow;
+            this.positions = positions;
+        }
+
+        /**
+         * @return Index of the info row, or -1 if the sheet has none.
+         */
+        int getInfoRowIdx() {
+            return infoRowIdx;
+        }
+
+        /**
+         * @return Index of the first data row.
+         */
+        int getFirstDataIdx() {
+            return firstDataIdx;
+        }
+
+        /**
+         * @return Index of the last data row.
+         */
+        int getLastDataIdx() {
+            return lastDataIdx;
+        }
+
+        /**
+         * @return The number of cells in the info row.
+         */
+        int getColumnCount() {
+            return columnCount;
+        }
+
+        /**
+         * @return The values of the info row as text.
+         */
+        String[] getInfoRow() {
+            return infoRow.clone();
+        }
+
+        /**
+         * @return Where the rows start in the sheet XML, or null if unknown.
+         */
+        RowPositions getPositions() {
+            return positions;
+        }
+
+        /**
+         * Writes the entry to an index file.
+         *
+         * @param out The stream of the index file.
+         * @throws IOException If writing fails.
+         */
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(infoRowIdx);
+            out.writeInt(firstDataIdx);
+            out.writeInt(lastDataIdx);
+            out.writeInt(columnCount);
+            out.writeInt(infoRow.length);
+            for (String value : infoRow) {
+                // writeUTF is limited to 64 KB, less than a cell may hold
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeBoolean(positions != null);
+            if (positions != null) {
+                positions.writeTo(out);
+            }
+        }
+
+        /**
+         * Reads an entry written by {@link #writeTo(DataOutputStream)}.
+         *
+         * @param in The stream of the index file.
+         * @return The entry.
+         * @throws IOException If reading fails or the entry is damaged.
+         */
+        private static SheetEntry readFrom(DataInputStream in) throws IOException {
+            int infoRowIdx = in.readInt();
+            int firstDataIdx = in.readInt();
+            int lastDataIdx = in.readInt();
+            int columnCount = in.readInt();
+            int length = in.readInt();
+            if (columnCount < 0 || length < 0 || length > columnCount) {
+                throw new IOException("damaged sheet entry");
+            }
+            String[] infoRow = new String[length];
+            for (int i = 0; i < length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                infoRow[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            RowPositions positions = in.readBoolean() ? RowPositions.readFrom(in) : null;
+            return new SheetEntry(infoRowIdx, firstDataIdx, lastDataIdx, columnCount, infoRow, positions);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package uab.kopi.services;
+
+/**
+ * Where the parts of a sample larger than the part size are written.
+ */
+public enum ShardMode {
+    /** Every part gets its own sheet of rezultatas.xlsx. */
+    SHEETS,
+    /** Every part gets its own file, rezultatas_001.xlsx and on, written at the same time on different threads. */
+    FILES
+}
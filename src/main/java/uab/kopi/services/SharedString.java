@@ -0,0 +1,36 @@
+package uab.kopi.services;
+
+/**
+ * The value of an .xlsx cell holding a shared string, passed to the row listeners in place of the string itself. The
+ * string is only read from the {@link SharedStringStore} when {@link #toString()} is called, which happens for the
+ * cells of the info row, of the rows kept and of the columns the rows are filtered, grouped or weighed by.
+ */
+final class SharedString {
+
+    private final SharedStringStore store;
+    private final int idx;
+
+    /**
+     * @param store The shared strings of the workbook.
+     * @param idx   The index of the string.
+     */
+    SharedString(SharedStringStore store, int idx) {
+        this.store = store;
+        this.idx = idx;
+    }
+
+    /**
+     * @return Whether the string is empty, checked without reading it.
+     */
+    boolean isEmpty() {
+        return store.isEmpty(idx);
+    }
+
+    /**
+     * @return The string.
+     */
+    @Override
+    public String toString() {
+        return store.get(idx);
+    }
+}
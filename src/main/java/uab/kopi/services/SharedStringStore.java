@@ -0,0 +1,365 @@
+package uab.kopi.services;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The shared strings of an .xlsx file, kept read-only as UTF-8 bytes one after another rather than as a string object
+ * per entry. The bytes are held in memory, in pages of a fixed size so that the table is never copied as it grows, or,
+ * for very large tables, in a temporary file. Only the strings read through {@link #get(int)} are ever turned into
+ * Java strings.
+ * <p>
+ * The text of an entry is read the same way as by POI's {@code ReadOnlySharedStringsTable}: the text of all its runs,
+ * followed by the phonetic runs, and with the {@code _xHHHH_} escapes decoded.
+ */
+final class SharedStringStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedStringStore.class);
+    private static final String SPREADSHEETML = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    // The most offsets set aside ahead of reading the strings, 512 KB; the count a file states is not trusted further
+    private static final int MAX_EXPECTED_STRINGS = 1 << 16;
+
+    private final long[] offsets;
+    private final int size;
+    private final byte[][] pages;
+    private final File file;
+    private final FileChannel channel;
+
+    private SharedStringStore(long[] offsets, int size, byte[][] pages, File file, FileChannel channel) {
+        this.offsets = offsets;
+        this.size = size;
+        this.pages = pages;
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Reads the shared strings of a package.
+     *
+     * @param pkg    The opened .xlsx package.
+     * @param onDisk Whether the strings are kept in a temporary file rather than in memory.
+     * @return The shared strings, empty if the package has none. The store must be closed.
+     * @throws Exception If the shared strings cannot be read.
+     */
+    static SharedStringStore read(OPCPackage pkg, boolean onDisk) throws Exception {
+        List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+        if (parts.isEmpty()) {
+            return new SharedStringStore(new long[1], 0, new byte[0][], null, null);
+        }
+        if (!onDisk) {
+            PagedOutputStream out = new PagedOutputStream();
+            Entries entries = parse(parts.get(0), out);
+            logger.debug("Read {} shared strings into {} bytes of memory", entries.size, entries.offsets[entries.size]);
+            return new SharedStringStore(entries.offsets, entries.size, out.pages.toArray(new byte[0][]), null, null);
+        }
+        File file = File.createTempFile("generuoklis-sst", ".tmp");
+        try {
+            Entries entries;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                entries = parse(parts.get(0), out);
+            }
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            logger.debug("Read {} shared strings into {} bytes of the temporary file {}", entries.size,
+                    entries.offsets[entries.size], file.getAbsolutePath());
+            return new SharedStringStore(entries.offsets, entries.size, null, file, channel);
+        } catch (Exception e) {
+            deleteFile(file);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of shared strings.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param idx The index of a shared string.
+     * @return Whether the string is empty, checked without reading it.
+     */
+    boolean isEmpty(int idx) {
+        return offsets[idx + 1] == offsets[idx];
+    }
+
+    /**
+     * Reads a shared string. Different threads can read strings at the same time.
+     *
+     * @param idx The index of the shared string.
+     * @return The string.
+     * @throws IndexOutOfBoundsException If there is no string with the index.
+     */
+    String get(int idx) {
+        if (idx < 0 || idx >= size) {
+            throw new IndexOutOfBoundsException("No shared string " + idx + " of " + size);
+        }
+        long start = offsets[idx];
+        int length = (int) (offsets[idx + 1] - start);
+        if (pages != null) {
+            return readPages(start, length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException("The temporary file of the shared strings ended early");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param start  Where the string starts in the pages.
+     * @param length The number of bytes of the string.
+     * @return The string.
+     */
+    private String readPages(long start, int length) {
+        int page = (int) (start >>> PAGE_BITS);
+        int position = (int) (start & (PAGE_SIZE - 1));
+        if (position + length <= PAGE_SIZE) {
+            return new String(pages[page], position, length, StandardCharsets.UTF_8);
+        }
+        // The string runs over the end of its page
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            int count = Math.min(length - copied, PAGE_SIZE - position);
+            System.arraycopy(pages[page], position, bytes, copied, count);
+            copied += count;
+            page++;
+            position = 0;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes the temporary file, if the strings were kept in one.
+     */
+    @Override
+    public void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the temporary file at: {}", file.getAbsolutePath(), e);
+        }
+        deleteFile(file);
+    }
+
+    /**
+     * @param file The temporary file to delete.
+     */
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Could not delete the temporary file at: {}", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Parses the shared strings part, writing the strings one after another to the output.
+     *
+     * @param part The shared strings part.
+     * @param out  The output receiving the UTF-8 bytes of the strings.
+     * @return Where every string starts in the output.
+     * @throws Exception If the part cannot be parsed.
+     */
+    private static Entries parse(PackagePart part, OutputStream out) throws Exception {
+        EntryHandler handler = new EntryHandler(out);
+        XMLReader parser = XMLHelper.newXMLReader();
+        parser.setContentHandler(handler);
+        try (InputStream in = part.getInputStream()) {
+            parser.parse(new InputSource(in));
+        }
+        return handler.entries;
+    }
+
+    /**
+     * The start of every string written, followed by the end of the last one.
+     */
+    private static final class Entries {
+
+        private long[] offsets = new long[16];
+        private int size;
+
+        /**
+         * Sets aside room for the strings the table says it holds, up to {@value #MAX_EXPECTED_STRINGS}. The room
+         * grows as more strings arrive, so a wrong count costs no more than the strings actually read.
+         *
+         * @param uniqueCount The number of strings the table says it holds, as written in the file.
+         */
+        void expect(String uniqueCount) {
+            long capacity;
+            try {
+                capacity = Math.min(Long.parseLong(uniqueCount.trim()), MAX_EXPECTED_STRINGS);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (capacity + 1 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, (int) capacity + 1);
+            }
+        }
+
+        /**
+         * @param end Where the string just written ends.
+         */
+        void add(long end) {
+            if (size + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[++size] = end;
+        }
+    }
+
+    /**
+     * Collects the text of every {@code si} element of the shared strings part and writes it to the output.
+     */
+    private static final class EntryHandler extends DefaultHandler {
+
+        private final OutputStream out;
+        private final Entries entries = new Entries();
+        private final StringBuilder characters = new StringBuilder(64);
+        private long written;
+        private boolean textOpen;
+
+        /**
+         * @param out The output receiving the UTF-8 bytes of the strings.
+         */
+        EntryHandler(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (uri != null && !uri.equals(SPREADSHEETML)) {
+                return;
+            }
+            switch (localName) {
+                case "sst":
+                    String uniqueCount = attributes.getValue("uniqueCount");
+                    if (uniqueCount != null) {
+                        entries.expect(uniqueCount);
+                    }
+                    break;
+                case "si":
+                    characters.setLength(0);
+                    break;
+                case "t":
+                    textOpen = true;
+                    break;
+                case "rPh":
+                    // Phonetic runs follow the text they annotate
+                    if (characters.length() > 0) {
+                        characters.append(' ');
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (uri != null && !uri.equals(SPREADSHEETML)) {
+                return;
+            }
+            switch (localName) {
+                case "si":
+                    addEntry();
+                    break;
+                case "t":
+                    textOpen = false;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (textOpen) {
+                characters.append(ch, start, length);
+            }
+        }
+
+        /**
+         * Writes the text of the finished entry.
+         */
+        private void addEntry() {
+            String text = characters.toString();
+            if (text.contains("_x")) {
+                // The rich text string decodes the characters Excel escapes, such as _x000D_
+                text = new XSSFRichTextString(text).getString();
+            }
+            byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+            try {
+                out.write(encoded);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            written += encoded.length;
+            entries.add(written);
+        }
+    }
+
+    /**
+     * An in-memory output filling pages of {@link #PAGE_SIZE} bytes, one after another.
+     */
+    private static final class PagedOutputStream extends OutputStream {
+
+        private final List<byte[]> pages = new ArrayList<>();
+        private int position = PAGE_SIZE;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (position == PAGE_SIZE) {
+                    pages.add(new byte[PAGE_SIZE]);
+                    position = 0;
+                }
+                int count = Math.min(len, PAGE_SIZE - position);
+                System.arraycopy(b, off, pages.get(pages.size() - 1), position, count);
+                position += count;
+                off += count;
+                len -= count;
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package uab.kopi.services;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The values taken from a source sheet: its info row and the randomly selected data rows, in the order they are
+ * written to the new file. When several samples are drawn from one read of the sheet, it holds the data rows of every
+ * sample, which may share the same row values.
+ */
+class SheetSample {
+
+    private final Object[] infoRow;
+    private final List<List<Object[]>> samples;
+
+    SheetSample(Object[] infoRow, List<Object[]> dataRows) {
+        this(Collections.singletonList(dataRows), infoRow);
+    }
+
+    private SheetSample(List<List<Object[]>> samples, Object[] infoRow) {
+        this.infoRow = infoRow;
+        this.samples = samples;
+    }
+
+    /**
+     * @param infoRow Values of the info row.
+     * @param samples Values of the selected data rows of every sample, in sample order.
+     * @return The values of the sheet.
+     */
+    static SheetSample ofSamples(Object[] infoRow, List<List<Object[]>> samples) {
+        return new SheetSample(samples, infoRow);
+    }
+
+    /**
+     * @return Values of the info row, each a string or a {@link CellValue}.
+     */
+    Object[] getInfoRow() {
+        return infoRow;
+    }
+
+    /**
+     * @return Values of the selected data rows of the first sample, each a string or a {@link CellValue}.
+     */
+    List<Object[]> getDataRows() {
+        return samples.get(0);
+    }
+
+    /**
+     * @return The number of samples drawn from the sheet.
+     */
+    int getSampleCount() {
+        return samples.size();
+    }
+
+    /**
+     * @param sample The index of the sample, from 0.
+     * @return The info row with the data rows of the given sample only.
+     */
+    SheetSample forSample(int sample) {
+        return new SheetSample(infoRow, samples.get(sample));
+    }
+}
@@ -0,0 +1,55 @@
+package uab.kopi.services;
+
+import java.util.List;
+
+/**
+ * Streams the rows of one sheet to a listener, such as a sheet of an .xlsx file or a delimited text file. A sheet can
+ * be read any number of times.
+ */
+interface SheetSource {
+
+    /**
+     * Receives the rows of a sheet in the order they appear in the file.
+     */
+    interface RowListener {
+
+        /**
+         * Called once for every row present in the sheet.
+         *
+         * @param rowIdx The zero based index of the row.
+         * @param cells  The cell values of the row, indexed by column, each a string, a {@link CellValue} or a
+         *               {@link SharedString} read when its text is needed. The list is reused between calls.
+         * @return True to continue reading, false to stop.
+         */
+        boolean onRow(int rowIdx, List<Object> cells);
+    }
+
+    /**
+     * Streams the rows of the sheet to the listener.
+     *
+     * @param listener The listener receiving the rows.
+     * @throws Exception If the sheet cannot be opened or parsed.
+     */
+    void read(RowListener listener) throws Exception;
+
+    /**
+     * Streams the rows of the sheet to the listener like {@link #read(RowListener)}, also noting where the rows start
+     * in the file.
+     *
+     * @param listener The listener receiving the rows.
+     * @return The positions of the rows read, or null if they could not be worked out.
+     * @throws Exception If the sheet cannot be opened or parsed.
+     */
+    RowPositions readNotingPositions(RowListener listener) throws Exception;
+
+    /**
+     * Streams the given rows to the listener, skipping the parts of the file that hold none of them. Some of the rows
+     * around the given ones are streamed too.
+     *
+     * @param sortedRows The indexes of the wanted rows, in ascending order.
+     * @param positions  The positions of the rows noted by an earlier read, or null to read from the start.
+     * @param listener   The listener receiving the rows.
+     * @throws Exception If the sheet cannot be opened or parsed.
+     */
+    void readRows(int[] sortedRows, RowPositions positions, RowListener listener) throws Exception;
+}
@@ -0,0 +1,185 @@
+package uab.kopi.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Groups the data rows of a sheet by the value of one column and randomly selects rows within every group (stratum).
+ * Only row indexes are kept while grouping, so the values of the selected rows are read afterwards.
+ * <p>
+ * Strata are selected on the common fork-join pool at the same time. Every stratum draws from its own generator,
+ * seeded in stratum order from the generator of the job, so the selection does not depend on the thread scheduling.
+ */
+class StratifiedSelection {
+
+    /**
+     * The rows sharing one value of the grouping column.
+     */
+    static class Stratum {
+
+        private final String key;
+        private int[] rows = new int[16];
+        private int size;
+        private int allocated;
+        private int[] selected = new int[0];
+
+        private Stratum(String key) {
+            this.key = key;
+        }
+
+        private void add(int rowIdx) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = rowIdx;
+        }
+
+        private void select(Random random) {
+            int[] positions = ExcelProcessor.selectRandomRows(0, size - 1, allocated, random);
+            selected = new int[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                selected[i] = rows[positions[i]];
+            }
+        }
+
+        /**
+         * @return The value of the grouping column shared by the rows.
+         */
+        String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The number of data rows in the stratum.
+         */
+        int getSize() {
+            return size;
+        }
+
+        /**
+         * @return The number of rows to select from the stratum.
+         */
+        int getAllocated() {
+            return allocated;
+        }
+    }
+
+    private final Map<String, Stratum> strata = new LinkedHashMap<>();
+    private int rowCount;
+
+    /**
+     * Adds a data row to the stratum of its key. Rows must be added in ascending order.
+     *
+     * @param rowIdx The index of the row.
+     * @param key    The value of the grouping column in the row.
+     */
+    void add(int rowIdx, String key) {
+        strata.computeIfAbsent(key, Stratum::new).add(rowIdx);
+        rowCount++;
+    }
+
+    /**
+     * @return The number of data rows added.
+     */
+    int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return The strata, in the order their first rows appear in the sheet.
+     */
+    Collection<Stratum> getStrata() {
+        return strata.values();
+    }
+
+    /**
+     * Works out how many rows to select from every stratum.
+     *
+     * @param number     The number or percentage of rows to select.
+     * @param isPercent  Whether the number is a percentage, taken from every stratum.
+     * @param allocation How a number of rows is shared between the strata.
+     * @return The total number of rows to select.
+     */
+    int allocate(double number, boolean isPercent, StratumAllocation allocation) {
+        if (isPercent) {
+            for (Stratum stratum : strata.values()) {
+                stratum.allocated = (int) (number / 100.0 * stratum.size);
+            }
+        } else if (allocation == StratumAllocation.FIXED) {
+            for (Stratum stratum : strata.values()) {
+                stratum.allocated = Math.min((int) number, stratum.size);
+            }
+        } else {
+            allocateProportionally(Math.min((int) number, rowCount));
+        }
+        int total = 0;
+        for (Stratum stratum : strata.values()) {
+            total += stratum.allocated;
+        }
+        return total;
+    }
+
+    /**
+     * Shares the rows in proportion to the stratum sizes by the largest remainder method, so the shares add up to the
+     * total exactly. Ties go to the stratum that appears first.
+     *
+     * @param total The number of rows to share, at most the number of data rows.
+     */
+    private void allocateProportionally(int total) {
+        List<Stratum> byRemainder = new ArrayList<>(strata.values());
+        double[] remainders = new double[byRemainder.size()];
+        int given = 0;
+        for (int i = 0; i < byRemainder.size(); i++) {
+            Stratum stratum = byRemainder.get(i);
+            double share = (double) total * stratum.size / rowCount;
+            stratum.allocated = (int) share;
+            remainders[i] = share - stratum.allocated;
+            given += stratum.allocated;
+        }
+        Integer[] order = new Integer[byRemainder.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // The sort is stable, so equal remainders keep the order of the strata
+        Arrays.sort(order, (a, b) -> Double.compare(remainders[b], remainders[a]));
+        for (int i = 0; given < total; i++) {
+            byRemainder.get(order[i]).allocated++;
+            given++;
+        }
+    }
+
+    /**
+     * Selects the allocated number of rows from every stratum.
+     *
+     * @param random The generator of the job, which seeds the generators of the strata.
+     * @return The selected row indexes, grouped by stratum in the order of {@link #getStrata()} and in random order
+     * within each stratum.
+     */
+    int[] select(Random random) {
+        List<Stratum> toSelect = new ArrayList<>(strata.values());
+        long[] seeds = new long[toSelect.size()];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = random.nextLong();
+        }
+        IntStream.range(0, toSelect.size()).parallel()
+                .forEach(i -> toSelect.get(i).select(new Random(seeds[i])));
+
+        int total = 0;
+        for (Stratum stratum : toSelect) {
+            total += stratum.selected.length;
+        }
+        int[] selectedRows = new int[total];
+        int offset = 0;
+        for (Stratum stratum : toSelect) {
+            System.arraycopy(stratum.selected, 0, selectedRows, offset, stratum.selected.length);
+            offset += stratum.selected.length;
+        }
+        return selectedRows;
+    }
+}
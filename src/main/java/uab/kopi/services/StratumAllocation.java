@@ -0,0 +1,12 @@
+package uab.kopi.services;
+
+/**
+ * How a requested number of rows is shared between the strata of a stratified selection. A percentage is always
+ * taken from every stratum separately.
+ */
+public enum StratumAllocation {
+    /** The requested number of rows is shared between the strata in proportion to their sizes. */
+    PROPORTIONAL,
+    /** The requested number of rows is taken from every stratum, or all of its rows if it has fewer. */
+    FIXED
+}
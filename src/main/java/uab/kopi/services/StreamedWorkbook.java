@@ -0,0 +1,26 @@
+package uab.kopi.services;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * A workbook file opened for streaming its sheets, without building the workbook in memory. Different sheets can be
+ * read at the same time from different threads.
+ */
+interface StreamedWorkbook extends Closeable {
+
+    /**
+     * @return The names of the sheets, in workbook order.
+     */
+    List<String> getSheetNames();
+
+    /**
+     * @param index    The index of the sheet, in workbook order.
+     * @param copyMode Whether the cell values are passed as text or with their types.
+     * @return The source streaming the rows of the sheet.
+     */
+    SheetSource sheet(int index, CopyMode copyMode);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,41 @@
+package uab.kopi.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Cleans up the temporary folders the application samples files in.
+ */
+public final class TempFolders {
+
+    private static final Logger logger = LoggerFactory.getLogger(TempFolders.class);
+
+    private TempFolders() {
+    }
+
+    /**
+     * Deletes a temporary folder with everything in it. Files that cannot be deleted are only logged, so the rest of
+     * the folder is still deleted.
+     *
+     * @param folder The folder.
+     */
+    public static void delete(Path folder) {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    logger.warn("Could not delete the temporary file {}", path, e);
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Could not delete the temporary folder {}", folder, e);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package uab.kopi.services;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+/**
+ * Loads the classes that processing a file needs, most of them from POI and its XML schemas. It samples a few small
+ * generated files, one of every format the application reads, in a temporary folder deleted afterwards.
+ * <p>
+ * Only the training run of the startup distribution runs it, to put the classes into the class-data sharing archive
+ * from which the application then loads them. The application itself never runs it, as it would process files the
+ * user did not choose and log them as if they were jobs.
+ */
+public final class Warmup {
+
+    private static final Logger logger = LoggerFactory.getLogger(Warmup.class);
+    private static final int ROWS = 20;
+
+    private Warmup() {
+    }
+
+    /**
+     * Samples the generated files. Failures are only logged, as the warm-up is never needed for the processing to
+     * work.
+     */
+    public static void run() {
+        long start = System.nanoTime();
+        Path folder = null;
+        try {
+            folder = Files.createTempDirectory("generuoklis-warmup");
+            logger.info("Warming up the processing on the generated files in {}", folder);
+            File output = Files.createDirectory(folder.resolve("output")).toFile();
+            SamplingOptions typed = SamplingOptions.builder().count(5).seed(1L).copyMode(CopyMode.TYPED).build();
+            SamplingOptions text = SamplingOptions.builder().count(5).seed(1L).copyMode(CopyMode.TEXT).build();
+
+            SXSSFWorkbook xlsx = new SXSSFWorkbook();
+            try {
+                sample(writeWorkbook(xlsx, folder.resolve("warmup.xlsx").toFile()), output, typed);
+            } finally {
+                xlsx.dispose();
+            }
+            sample(writeWorkbook(new HSSFWorkbook(), folder.resolve("warmup.xls").toFile()), output, text);
+            sample(writeCsv(folder.resolve("warmup.csv").toFile()), output, typed);
+            logger.info("Warmed up the processing in {} ms", (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) {
+            logger.warn("Could not warm up the processing", e);
+        } finally {
+            if (folder != null) {
+                TempFolders.delete(folder);
+            }
+        }
+    }
+
+    /**
+     * Scans a file as the graphical interface does once the file is chosen, and samples it with the scan.
+     *
+     * @param file    The generated file.
+     * @param output  The folder receiving the results.
+     * @param options How the file is sampled.
+     * @throws ProcessingException If the file could not be processed.
+     */
+    private static void sample(File file, File output, SamplingOptions options) throws ProcessingException {
+        FileScan scan = FileScan.scan(file, options.getCsvFormat(), ProgressListener.NONE);
+        new ExcelProcessor(new SamplingJob(file, output, options, scan)).process();
+    }
+
+    /**
+     * Writes the info row and the data rows, with text, number and date cells, to a workbook.
+     *
+     * @param workbook The empty workbook, closed once written.
+     * @param file     The file to write.
+     * @return The file.
+     * @throws IOException If the file could not be written.
+     */
+    private static File writeWorkbook(Workbook workbook, File file) throws IOException {
+        try (workbook) {
+            CellStyle dateStyle = workbook.createCellStyle();
+            dateStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd"));
+            Sheet sheet = workbook.createSheet("Duomenys");
+            Row infoRow = sheet.createRow(0);
+            infoRow.createCell(0).setCellValue("Pavadinimas");
+            infoRow.createCell(1).setCellValue("Suma");
+            infoRow.createCell(2).setCellValue("Data");
+            for (int i = 1; i <= ROWS; i++) {
+                Row row = sheet.createRow(i);
+                row.createCell(0).setCellValue("Įrašas " + i);
+                row.createCell(1).setCellValue(i * 12.5);
+                row.createCell(2).setCellValue(LocalDate.of(2024, 1, 1).plusDays(i));
+                row.getCell(2).setCellStyle(dateStyle);
+            }
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                workbook.write(out);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes the info row and the data rows as delimited text.
+     *
+     * @param file The file to write.
+     * @return The file.
+     * @throws IOException If the file could not be written.
+     */
+    private static File writeCsv(File file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("Pavadinimas;Suma;Data\n");
+            for (int i = 1; i <= ROWS; i++) {
+                writer.write("Įrašas " + i + ";" + i * 12.5 + ";" + LocalDate.of(2024, 1, 1).plusDays(i) + "\n");
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,345 @@
+package uab.kopi.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Keeps a fixed number of rows selected with probability proportional to their weights, such as the amounts of a
+ * monetary-unit sample, using weighted reservoir sampling with exponential jumps (A-ExpJ by Efraimidis and Spirakis).
+ * <p>
+ * Every row gets the key u<sup>1/w</sup>, with u uniform in (0, 1) and w the weight of the row, and the rows with the
+ * largest keys are kept. Once the reservoir is full, the total weight to skip before the next row that enters it is
+ * drawn directly, so skipped rows cost no random draws. The keys are kept as their logarithms, ln(u) / w, which stay
+ * precise for very small and very large weights alike. The kept rows are held in a min-heap of primitive arrays.
+ * <p>
+ * Only rows with a positive weight can be selected. Rows whose weight is zero, negative, blank or not a number are
+ * counted by kind and otherwise skipped.
+ *
+ * @param <T> The type holding the row values.
+ */
+class WeightedReservoirSampler<T> implements RowSampler<T> {
+
+    private final int capacity;
+    private final Random random;
+    private double[] logKeys;
+    private double[] weights;
+    private int[] rowIdxs;
+    private Object[] values;
+    private int size;
+    private double weightToSkip;
+
+    private int rowCount;
+    private int positiveCount;
+    private int zeroCount;
+    private int negativeCount;
+    private int blankCount;
+    private double totalWeight;
+
+    /**
+     * A row kept by the sampler, together with its weight and key.
+     *
+     * @param <T> The type holding the row values.
+     */
+    static final class WeightedRow<T> extends SampledRow<T> {
+
+        private final double weight;
+        private final double logKey;
+
+        WeightedRow(int rowIdx, T values, double weight, double logKey) {
+            super(rowIdx, values);
+            this.weight = weight;
+            this.logKey = logKey;
+        }
+
+        /**
+         * @return The weight of the row.
+         */
+        double getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return The logarithm of the key the row was selected by.
+         */
+        double getLogKey() {
+            return logKey;
+        }
+    }
+
+    /**
+     * @param capacity The number of rows to keep.
+     * @param random   The source of randomness.
+     */
+    WeightedReservoirSampler(int capacity, Random random) {
+        this.capacity = Math.max(capacity, 0);
+        this.random = random;
+        int initial = Math.min(this.capacity, 1 << 16);
+        this.logKeys = new double[initial];
+        this.weights = new double[initial];
+        this.rowIdxs = new int[initial];
+        this.values = new Object[initial];
+    }
+
+    /**
+     * Reads the weight of a row from the value of its weight cell, without boxing the number.
+     *
+     * Text is read with a decimal comma or point, and the digits may be grouped by spaces, points or commas, as in
+     * "12,5", "1 234,56", "1.234,56" or "1,234.56".
+     *
+     * @param value The value of the cell, a string or a {@link CellValue}.
+     * @return The weight, or NaN if the cell is blank or holds no number. Dates and booleans are not weights.
+     */
+    static double weightOf(Object value) {
+        if (value instanceof CellValue) {
+            CellValue cellValue = (CellValue) value;
+            return cellValue.isNumber() && !cellValue.isDate() ? cellValue.getNumber() : Double.NaN;
+        }
+        String text = value.toString().trim();
+        if (text.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(normalizeSeparators(text));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Rewrites a number with a decimal point and without grouping separators.
+     *
+     * @param text The trimmed text of the number.
+     * @return The text as {@link Double#parseDouble(String)} reads it.
+     */
+    private static String normalizeSeparators(String text) {
+        StringBuilder number = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\u00A0' && c != '\u202F') {
+                number.append(c);
+            }
+        }
+        String digits = number.toString();
+        int comma = digits.lastIndexOf(',');
+        int point = digits.lastIndexOf('.');
+        if (comma >= 0 && point >= 0) {
+            // Whichever comes last separates the decimals, and the other one groups the digits
+            return comma < point ? digits.replace(",", "") : digits.replace(".", "").replace(',', '.');
+        }
+        if (comma >= 0) {
+            // A single comma separates the decimals, several ones group the digits
+            return digits.indexOf(',') == comma ? digits.replace(',', '.') : digits.replace(",", "");
+        }
+        if (point >= 0 && digits.indexOf('.') != point) {
+            return digits.replace(".", "");
+        }
+        return digits;
+    }
+
+    /**
+     * Offers a row of weight 1.
+     */
+    @Override
+    public <S> void offer(int rowIdx, S source, Function<? super S, ? extends T> reader) {
+        offer(rowIdx, 1.0, source, reader);
+    }
+
+    @Override
+    public <S> void offer(int rowIdx, double weight, S source, Function<? super S, ? extends T> reader) {
+        rowCount++;
+        if (Double.isNaN(weight) || Double.isInfinite(weight)) {
+            blankCount++;
+            return;
+        }
+        if (weight < 0) {
+            negativeCount++;
+            return;
+        }
+        if (weight == 0) {
+            zeroCount++;
+            return;
+        }
+        positiveCount++;
+        totalWeight += weight;
+        if (capacity == 0) {
+            return;
+        }
+        if (size < capacity) {
+            if (size == logKeys.length) {
+                grow();
+            }
+            logKeys[size] = Math.log(nextUniform()) / weight;
+            weights[size] = weight;
+            rowIdxs[size] = rowIdx;
+            values[size] = reader.apply(source);
+            siftUp(size++);
+            if (size == capacity) {
+                jump();
+            }
+            return;
+        }
+        weightToSkip -= weight;
+        if (weightToSkip > 0) {
+            return;
+        }
+        // The row replaces the one with the smallest key T, and its own key is drawn from (T, 1)
+        double thresholdPower = Math.exp(weight * logKeys[0]);
+        double u = thresholdPower + (1.0 - thresholdPower) * nextUniform();
+        logKeys[0] = Math.log(u) / weight;
+        weights[0] = weight;
+        rowIdxs[0] = rowIdx;
+        values[0] = reader.apply(source);
+        siftDown(0);
+        jump();
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getSelectableCount() {
+        return positiveCount;
+    }
+
+    /**
+     * @return The number of rows with a weight of zero.
+     */
+    int getZeroCount() {
+        return zeroCount;
+    }
+
+    /**
+     * @return The number of rows with a negative weight.
+     */
+    int getNegativeCount() {
+        return negativeCount;
+    }
+
+    /**
+     * @return The number of rows whose weight is blank or not a number.
+     */
+    int getBlankCount() {
+        return blankCount;
+    }
+
+    /**
+     * @return The sum of the positive weights.
+     */
+    double getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * Returns the rows with the largest keys, largest first. The keys are random, so this is a random order.
+     *
+     * @param numRowsToTake The number of rows to return, at most the number of rows kept.
+     * @return The selected rows, each a {@link WeightedRow}.
+     */
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public List<SampledRow<T>> finish(int numRowsToTake) {
+        // Taking the smallest key off the heap until it is empty lists the rows from the back
+        WeightedRow<T>[] sorted = new WeightedRow[size];
+        while (size > 0) {
+            sorted[size - 1] = new WeightedRow<>(rowIdxs[0], (T) values[0], weights[0], logKeys[0]);
+            size--;
+            swap(0, size);
+            values[size] = null;
+            siftDown(0);
+        }
+        return new ArrayList<>(Arrays.asList(sorted).subList(0, Math.min(numRowsToTake, sorted.length)));
+    }
+
+    /**
+     * Draws the total weight of the rows to skip before the next one that enters the reservoir.
+     */
+    private void jump() {
+        // ln(r) / ln(T) with T the smallest key; a key of 1 cannot be beaten
+        weightToSkip = logKeys[0] < 0 ? Math.log(nextUniform()) / logKeys[0] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Moves the entry at the given slot up the heap until its parent has a smaller key.
+     *
+     * @param slot The slot of the entry.
+     */
+    private void siftUp(int slot) {
+        while (slot > 0) {
+            int parent = (slot - 1) / 2;
+            if (logKeys[parent] <= logKeys[slot]) {
+                return;
+            }
+            swap(slot, parent);
+            slot = parent;
+        }
+    }
+
+    /**
+     * Moves the entry at the given slot down the heap until its children have larger keys.
+     *
+     * @param slot The slot of the entry.
+     */
+    private void siftDown(int slot) {
+        while (true) {
+            int smallest = slot;
+            int left = 2 * slot + 1;
+            int right = left + 1;
+            if (left < size && logKeys[left] < logKeys[smallest]) {
+                smallest = left;
+            }
+            if (right < size && logKeys[right] < logKeys[smallest]) {
+                smallest = right;
+            }
+            if (smallest == slot) {
+                return;
+            }
+            swap(slot, smallest);
+            slot = smallest;
+        }
+    }
+
+    /**
+     * Swaps two entries of the heap.
+     */
+    private void swap(int a, int b) {
+        double logKey = logKeys[a];
+        logKeys[a] = logKeys[b];
+        logKeys[b] = logKey;
+        double weight = weights[a];
+        weights[a] = weights[b];
+        weights[b] = weight;
+        int rowIdx = rowIdxs[a];
+        rowIdxs[a] = rowIdxs[b];
+        rowIdxs[b] = rowIdx;
+        Object value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+
+    /**
+     * Doubles the room for kept rows, up to the capacity.
+     */
+    private void grow() {
+        int length = (int) Math.min((long) Math.max(logKeys.length, 1) * 2, capacity);
+        logKeys = Arrays.copyOf(logKeys, length);
+        weights = Arrays.copyOf(weights, length);
+        rowIdxs = Arrays.copyOf(rowIdxs, length);
+        values = Arrays.copyOf(values, length);
+    }
+
+    /**
+     * @return A uniformly distributed number in (0, 1).
+     */
+    private double nextUniform() {
+        double value;
+        do {
+            value = random.nextDouble();
+        } while (value == 0.0);
+        return value;
+    }
+}
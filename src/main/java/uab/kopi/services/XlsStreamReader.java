@@ -0,0 +1,424 @@
+package uab.kopi.services;
+
+import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
+import org.apache.poi.hssf.eventusermodel.FormatTrackingHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BlankRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.CellValueRecordInterface;
+import org.apache.poi.hssf.record.DateWindow1904Record;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FilePassRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.MulBlankRecord;
+import org.apache.poi.hssf.record.MulRKRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.RKRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.DocumentInputStream;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the sheets of a legacy .xls (BIFF8) file through the POI event model ({@link HSSFEventFactory}). The cell
+ * records are turned straight into rows handed to a {@link SheetSource.RowListener}, so no {@code HSSFRow} or
+ * {@code HSSFCell} is ever built. Values are passed the same way as by {@link XlsxStreamReader}, so the results do not
+ * depend on which of the two formats the data was saved in.
+ */
+class XlsStreamReader {
+
+    /**
+     * An .xls file opened for streaming its sheets. The workbook globals, which hold the sheet list, the shared
+     * strings and the formats, are read once. Every read of a sheet opens the file anew and jumps to the start of the
+     * sheet, so different sheets can be read at the same time from different threads.
+     */
+    static class XlsWorkbook implements StreamedWorkbook {
+
+        private final File file;
+        private final List<String> sheetNames = new ArrayList<>();
+        private final List<Integer> sheetOffsets = new ArrayList<>();
+        private final FormatTrackingHSSFListener formats = new FormatTrackingHSSFListener(record -> { });
+        private SSTRecord strings;
+        private boolean date1904;
+        private boolean encrypted;
+
+        private XlsWorkbook(File file) {
+            this.file = file;
+        }
+
+        /**
+         * Opens an .xls file for reading, reading its workbook globals.
+         *
+         * @param file The .xls file to read.
+         * @return The opened workbook.
+         * @throws Exception If the file cannot be opened.
+         */
+        static XlsWorkbook open(File file) throws Exception {
+            XlsWorkbook workbook = new XlsWorkbook(file);
+            workbook.readGlobals();
+            return workbook;
+        }
+
+        @Override
+        public List<String> getSheetNames() {
+            return Collections.unmodifiableList(sheetNames);
+        }
+
+        @Override
+        public SheetSource sheet(int index, CopyMode copyMode) {
+            return new StreamedSheet(index, copyMode == CopyMode.TYPED);
+        }
+
+        @Override
+        public void close() {
+            // Every read opens and closes the file itself
+        }
+
+        /**
+         * Reads the records of the workbook globals, up to their end.
+         *
+         * @throws Exception If the file cannot be parsed.
+         */
+        private void readGlobals() throws Exception {
+            List<BoundSheetRecord> sheets = new ArrayList<>();
+            process(0, new AbortableHSSFListener() {
+                @Override
+                public short abortableProcessRecord(Record record) {
+                    if (record instanceof EOFRecord) {
+                        return 1;
+                    }
+                    if (record instanceof BoundSheetRecord) {
+                        sheets.add((BoundSheetRecord) record);
+                    } else if (record instanceof SSTRecord) {
+                        strings = (SSTRecord) record;
+                    } else if (record instanceof DateWindow1904Record) {
+                        date1904 = ((DateWindow1904Record) record).getWindowing() == 1;
+                    } else if (record instanceof FilePassRecord) {
+                        encrypted = true;
+                    }
+                    formats.processRecordInternally(record);
+                    return 0;
+                }
+            });
+            for (BoundSheetRecord sheet : sheets) {
+                sheetNames.add(sheet.getSheetname());
+                sheetOffsets.add(sheet.getPositionOfBof());
+            }
+        }
+
+        /**
+         * Passes the records of the workbook stream to the listener until it asks to stop.
+         *
+         * @param offset   Where to start in the workbook stream. An encrypted stream is always read from its start,
+         *                 as it can only be decrypted from there.
+         * @param listener The listener receiving the records.
+         * @throws Exception If the file cannot be parsed.
+         */
+        private void process(int offset, AbortableHSSFListener listener) throws Exception {
+            try (POIFSFileSystem fs = new POIFSFileSystem(file, true);
+                 DocumentInputStream in = fs.createDocumentInputStream(
+                         HSSFWorkbook.getWorkbookDirEntryName(fs.getRoot()))) {
+                if (offset > 0 && !encrypted && IOUtils.skipFully(in, offset) < offset) {
+                    throw new IOException("The workbook stream ends before the sheet at " + offset);
+                }
+                HSSFRequest request = new HSSFRequest();
+                request.addListenerForAllRecords(listener);
+                new HSSFEventFactory().abortableProcessEvents(request, in);
+            }
+        }
+
+        /**
+         * A sheet of the workbook, parsed anew for every read.
+         */
+        private class StreamedSheet implements SheetSource {
+
+            private final int index;
+            private final boolean typed;
+
+            /**
+             * @param index The index of the sheet, in workbook order.
+             * @param typed Whether the cell values should keep their types.
+             */
+            StreamedSheet(int index, boolean typed) {
+                this.index = index;
+                this.typed = typed;
+            }
+
+            @Override
+            public void read(SheetSource.RowListener listener) throws Exception {
+                process(encrypted ? 0 : sheetOffsets.get(index), new SheetRecordHandler(this, listener));
+            }
+
+            @Override
+            public RowPositions readNotingPositions(SheetSource.RowListener listener) throws Exception {
+                // The records of a sheet are not where a row can be jumped to, so only the bounds are indexed
+                read(listener);
+                return null;
+            }
+
+            @Override
+            public void readRows(int[] sortedRows, RowPositions positions, SheetSource.RowListener listener)
+                    throws Exception {
+                read(listener);
+            }
+        }
+
+        /**
+         * Collects the cells of the sheet records into rows. The cell records of a sheet come in row order, so a row
+         * is finished as soon as a cell of a later row, or the end of the sheet, is reached.
+         */
+        private class SheetRecordHandler extends AbortableHSSFListener {
+
+            private final StreamedSheet sheet;
+            private final SheetSource.RowListener listener;
+            private final List<Object> cells = new ArrayList<>();
+            private final Map<Short, String> formatStrings = new HashMap<>();
+            private final Map<Short, Boolean> dateFormats = new HashMap<>();
+            private int sheetIdx = -1;
+            private int depth;
+            private int rowIdx = -1;
+            private int formulaColumn = -1;
+
+            /**
+             * @param sheet    The sheet being read.
+             * @param listener The listener receiving the rows.
+             */
+            SheetRecordHandler(StreamedSheet sheet, SheetSource.RowListener listener) {
+                this.sheet = sheet;
+                this.listener = listener;
+                if (!encrypted) {
+                    // The stream starts at the sheet itself
+                    sheetIdx = sheet.index - 1;
+                }
+            }
+
+            @Override
+            public short abortableProcessRecord(Record record) {
+                if (record instanceof BOFRecord) {
+                    if (depth++ == 0 && ((BOFRecord) record).getType() != BOFRecord.TYPE_WORKBOOK) {
+                        sheetIdx++;
+                    }
+                    return 0;
+                }
+                if (record instanceof EOFRecord) {
+                    if (--depth == 0 && sheetIdx == sheet.index) {
+                        endRow();
+                        return 1;
+                    }
+                    return 0;
+                }
+                if (depth != 1 || sheetIdx != sheet.index) {
+                    // Another sheet, or a chart embedded in this one
+                    return 0;
+                }
+                return handleCell(record) ? 0 : (short) 1;
+            }
+
+            /**
+             * Adds the value of a cell record to the current row.
+             *
+             * @param record The record, which may not be a cell record at all.
+             * @return False if the listener asked to stop.
+             */
+            private boolean handleCell(Record record) {
+                if (record instanceof StringRecord) {
+                    // The text result of the formula just before
+                    if (formulaColumn >= 0) {
+                        setCell(formulaColumn, ((StringRecord) record).getString());
+                        formulaColumn = -1;
+                    }
+                    return true;
+                }
+                formulaColumn = -1;
+                if (record instanceof MulRKRecord) {
+                    MulRKRecord mulRK = (MulRKRecord) record;
+                    if (!startCell(mulRK.getRow())) {
+                        return false;
+                    }
+                    for (int i = 0; i < mulRK.getNumColumns(); i++) {
+                        setCell(mulRK.getFirstColumn() + i, numberValue(mulRK.getRKNumberAt(i), mulRK.getXFAt(i)));
+                    }
+                    return true;
+                }
+                // Blank cells only carry formatting; like the .xlsx reader, they keep their row but not its width
+                if (record instanceof MulBlankRecord) {
+                    return startCell(((MulBlankRecord) record).getRow());
+                }
+                if (record instanceof BlankRecord) {
+                    return startCell(((BlankRecord) record).getRow());
+                }
+                if (!(record instanceof CellValueRecordInterface)) {
+                    return true;
+                }
+                CellValueRecordInterface cell = (CellValueRecordInterface) record;
+                if (!startCell(cell.getRow())) {
+                    return false;
+                }
+                setCell(cell.getColumn(), valueOf(cell));
+                return true;
+            }
+
+            /**
+             * Works out the value passed to the listener for a cell record. Formula cells give their cached result,
+             * except text results, which follow in a record of their own.
+             *
+             * @param cell The cell record.
+             * @return The value as text, or the typed value of the cell.
+             */
+            private Object valueOf(CellValueRecordInterface cell) {
+                if (cell instanceof LabelSSTRecord) {
+                    return strings.getString(((LabelSSTRecord) cell).getSSTIndex()).getString();
+                }
+                if (cell instanceof LabelRecord) {
+                    return ((LabelRecord) cell).getValue();
+                }
+                if (cell instanceof NumberRecord) {
+                    return numberValue(((NumberRecord) cell).getValue(), cell.getXFIndex());
+                }
+                if (cell instanceof RKRecord) {
+                    return numberValue(((RKRecord) cell).getRKNumber(), cell.getXFIndex());
+                }
+                if (cell instanceof BoolErrRecord) {
+                    BoolErrRecord boolErr = (BoolErrRecord) cell;
+                    return boolErr.isBoolean() ? booleanValue(boolErr.getBooleanValue())
+                            : errorValue(boolErr.getErrorValue());
+                }
+                if (cell instanceof FormulaRecord) {
+                    FormulaRecord formula = (FormulaRecord) cell;
+                    switch (formula.getCachedResultTypeEnum()) {
+                        case NUMERIC:
+                            return numberValue(formula.getValue(), formula.getXFIndex());
+                        case BOOLEAN:
+                            return booleanValue(formula.getCachedBooleanValue());
+                        case ERROR:
+                            return errorValue(formula.getCachedErrorValue());
+                        case STRING:
+                            formulaColumn = formula.getColumn();
+                            return "";
+                        default:
+                            return "";
+                    }
+                }
+                return "";
+            }
+
+            /**
+             * Formats a number like {@link XlsxStreamReader} does, or keeps it typed in typed mode.
+             *
+             * @param number  The value of the cell.
+             * @param xfIndex The index of the cell format.
+             * @return The formatted text, or the typed value of the cell.
+             */
+            private Object numberValue(double number, short xfIndex) {
+                String format = formatStrings.computeIfAbsent(xfIndex, this::formatOf);
+                boolean isDate = dateFormats.computeIfAbsent(xfIndex,
+                        idx -> format != null && DateUtil.isADateFormat(formatIndexOf(idx), format));
+                if (sheet.typed) {
+                    return CellValue.number(number, format, isDate);
+                }
+                if (isDate && DateUtil.isValidExcelDate(number)) {
+                    return ExcelProcessor.formatDate(DateUtil.getJavaDate(number, date1904));
+                }
+                return String.valueOf(number);
+            }
+
+            /**
+             * @param xfIndex The index of a cell format of the workbook.
+             * @return The number format of the cell format, or null if the workbook has no such format.
+             */
+            private String formatOf(short xfIndex) {
+                try {
+                    return formats.getFormatString(formatIndexOf(xfIndex));
+                } catch (IndexOutOfBoundsException e) {
+                    return null;
+                }
+            }
+
+            /**
+             * @param xfIndex The index of a cell format of the workbook.
+             * @return The index of its number format.
+             */
+            private int formatIndexOf(short xfIndex) {
+                // The listener only looks cell formats up by cell, which the format of a MulRK value is not
+                BlankRecord formatOnly = new BlankRecord();
+                formatOnly.setXFIndex(xfIndex);
+                return formats.getFormatIndex(formatOnly);
+            }
+
+            /**
+             * @param value The value of a boolean cell.
+             * @return The value as text, as the .xlsx reader gives it, or typed in typed mode.
+             */
+            private Object booleanValue(boolean value) {
+                return sheet.typed ? CellValue.bool(value) : value ? "TRUE" : "FALSE";
+            }
+
+            /**
+             * @param code The code of a cell error.
+             * @return The error as text, as the .xlsx reader gives it.
+             */
+            private String errorValue(int code) {
+                return "ERROR:" + (FormulaError.isValidCode(code) ? FormulaError.forInt(code).getString() : code);
+            }
+
+            /**
+             * Finishes the current row if a cell of another row starts.
+             *
+             * @param cellRowIdx The row of the cell.
+             * @return False if the listener asked to stop.
+             */
+            private boolean startCell(int cellRowIdx) {
+                if (cellRowIdx == rowIdx) {
+                    return true;
+                }
+                boolean more = endRow();
+                rowIdx = cellRowIdx;
+                return more;
+            }
+
+            /**
+             * Passes the current row to the listener.
+             *
+             * @return False if the listener asked to stop.
+             */
+            private boolean endRow() {
+                if (rowIdx < 0) {
+                    return true;
+                }
+                boolean more = listener.onRow(rowIdx, cells);
+                cells.clear();
+                rowIdx = -1;
+                return more;
+            }
+
+            /**
+             * @param column The column of the cell.
+             * @param value  The value of the cell.
+             */
+            private void setCell(int column, Object value) {
+                if (column >= cells.size()) {
+                    cells.addAll(Collections.nCopies(column - cells.size() + 1, ""));
+                }
+                cells.set(column, value);
+            }
+        }
+    }
+}
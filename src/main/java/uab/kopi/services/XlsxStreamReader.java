@@ -0,0 +1,407 @@
+package uab.kopi.services;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the sheets of an .xlsx file through the POI event model ({@link XSSFReader} and
+ * {@link XSSFSheetXMLHandler}). Rows are handed to a {@link SheetSource.RowListener} one at a time, so the workbook is
+ * never built in memory. In {@link CopyMode#TYPED} mode numbers, dates and booleans are passed as {@link CellValue}s read
+ * from the raw cell XML, while text is always passed as a string.
+ * <p>
+ * Shared strings are kept in a compact {@link SharedStringStore}, and cells holding one are passed as
+ * {@link SharedString}s, so a string is only created for the cells whose text is actually used.
+ */
+class XlsxStreamReader {
+
+    /**
+     * An .xlsx file opened for streaming its sheets. The shared strings and styles are loaded once, and different
+     * sheets can be read at the same time from different threads.
+     */
+    static class XlsxWorkbook implements StreamedWorkbook {
+
+        private final OPCPackage pkg;
+        private final SharedStringStore strings;
+        private final StylesTable styles;
+        private final List<String> sheetNames = new ArrayList<>();
+        private final List<PackagePart> sheetParts = new ArrayList<>();
+
+        private XlsxWorkbook(OPCPackage pkg, SharedStringStore strings) throws Exception {
+            this.pkg = pkg;
+            this.strings = strings;
+            XSSFReader reader = new XSSFReader(pkg);
+            this.styles = reader.getStylesTable();
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            while (sheets.hasNext()) {
+                // The iterator opens every sheet it passes, only its part is needed here
+                sheets.next().close();
+                sheetNames.add(sheets.getSheetName());
+                sheetParts.add(sheets.getSheetPart());
+            }
+        }
+
+        /**
+         * Opens an .xlsx file for reading.
+         *
+         * @param file                The .xlsx file to read.
+         * @param sharedStringsOnDisk Whether the shared strings are kept in a temporary file rather than in memory.
+         * @return The opened workbook, which must be closed.
+         * @throws Exception If the file cannot be opened.
+         */
+        static XlsxWorkbook open(File file, boolean sharedStringsOnDisk) throws Exception {
+            OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+            SharedStringStore strings = null;
+            try {
+                strings = SharedStringStore.read(pkg, sharedStringsOnDisk);
+                return new XlsxWorkbook(pkg, strings);
+            } catch (Exception e) {
+                if (strings != null) {
+                    strings.close();
+                }
+                pkg.revert();
+                throw e;
+            }
+        }
+
+        @Override
+        public List<String> getSheetNames() {
+            return Collections.unmodifiableList(sheetNames);
+        }
+
+        @Override
+        public SheetSource sheet(int index, CopyMode copyMode) {
+            return new StreamedSheet(sheetParts.get(index), copyMode == CopyMode.TYPED);
+        }
+
+        @Override
+        public void close() {
+            // Opened for reading only, so there is nothing to save
+            pkg.revert();
+            strings.close();
+        }
+
+        /**
+         * A sheet of the workbook, parsed anew for every read.
+         */
+        private class StreamedSheet implements SheetSource {
+
+            private final PackagePart part;
+            private final boolean typed;
+
+            /**
+             * @param part  The part of the package holding the sheet XML.
+             * @param typed Whether the cell values should keep their types.
+             */
+            StreamedSheet(PackagePart part, boolean typed) {
+                this.part = part;
+                this.typed = typed;
+            }
+
+            @Override
+            public void read(SheetSource.RowListener listener) throws Exception {
+                try (InputStream sheet = part.getInputStream()) {
+                    parse(sheet, listener, null);
+                }
+            }
+
+            @Override
+            public RowPositions readNotingPositions(SheetSource.RowListener listener) throws Exception {
+                RowPositions.Recorder recorder = new RowPositions.Recorder();
+                try (InputStream sheet = new RowPositions.Scanner(part.getInputStream(), recorder)) {
+                    parse(sheet, listener, recorder);
+                }
+                return recorder.finish();
+            }
+
+            @Override
+            public void readRows(int[] sortedRows, RowPositions positions, SheetSource.RowListener listener)
+                    throws Exception {
+                try (InputStream sheet = part.getInputStream()) {
+                    parse(positions != null ? positions.select(sheet, sortedRows) : sheet, listener, null);
+                }
+            }
+
+            /**
+             * Parses the sheet XML, passing its rows to the listener until it asks to stop.
+             *
+             * @param sheet    The sheet XML.
+             * @param listener The listener receiving the rows.
+             * @param recorder The recorder noting the row positions, or null.
+             * @throws Exception If the sheet cannot be parsed.
+             */
+            private void parse(InputStream sheet, SheetSource.RowListener listener, RowPositions.Recorder recorder)
+                    throws Exception {
+                RowCollector collector = new RowCollector(listener);
+                TypedSheetHandler handler = new TypedSheetHandler(styles, strings, collector, typed, recorder);
+                collector.handler = handler;
+                XMLReader parser = XMLHelper.newXMLReader();
+                parser.setContentHandler(handler);
+                try {
+                    parser.parse(new InputSource(sheet));
+                } catch (StopReadingException e) {
+                    // The listener has everything it needs
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the cells of the current row and passes the finished row to the listener.
+     */
+    private static class RowCollector implements XSSFSheetXMLHandler.SheetContentsHandler {
+
+        private final SheetSource.RowListener listener;
+        private final List<Object> cells = new ArrayList<>();
+        private TypedSheetHandler handler;
+
+        RowCollector(SheetSource.RowListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            cells.clear();
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (!listener.onRow(rowNum, cells)) {
+                throw new StopReadingException();
+            }
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            int column = new CellReference(cellReference).getCol();
+            if (column >= cells.size()) {
+                cells.addAll(Collections.nCopies(column - cells.size() + 1, ""));
+            }
+            cells.set(column, handler.valueOf(formattedValue == null ? "" : formattedValue));
+        }
+    }
+
+    /**
+     * Parses the sheet like {@link XSSFSheetXMLHandler}, also remembering the type, style and raw value of the current
+     * cell, which the handler itself only uses to format the value as text. The handler is given no shared strings,
+     * as shared string cells are passed as {@link SharedString}s instead of their text.
+     */
+    private static class TypedSheetHandler extends XSSFSheetXMLHandler {
+
+        private final StylesTable styles;
+        private final SharedStringStore strings;
+        private final boolean typed;
+        private final RowPositions.Recorder recorder;
+        private final StringBuilder rawValue = new StringBuilder();
+        private final Map<Integer, String> formats = new HashMap<>();
+        private final Map<Integer, Boolean> dateFormats = new HashMap<>();
+        private String cellType;
+        private int styleIdx;
+        private boolean valueOpen;
+
+        /**
+         * @param styles    The styles of the workbook.
+         * @param strings   The shared strings of the workbook.
+         * @param collector The collector receiving the cells.
+         * @param typed     Whether the cell values should keep their types.
+         * @param recorder  The recorder noting the row positions, or null.
+         */
+        TypedSheetHandler(StylesTable styles, SharedStringStore strings, RowCollector collector,
+                          boolean typed, RowPositions.Recorder recorder) {
+            super(styles, null, new DeferredStrings(strings), collector, new PlainValueFormatter(), false);
+            this.styles = styles;
+            this.strings = strings;
+            this.typed = typed;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            if (recorder != null && "row".equals(localName)) {
+                recorder.onRow(attributes.getValue("r"));
+            }
+            if ("c".equals(localName)) {
+                cellType = attributes.getValue("t");
+                rawValue.setLength(0);
+                if (typed) {
+                    String style = attributes.getValue("s");
+                    styleIdx = style == null ? 0 : Integer.parseInt(style);
+                }
+            } else if ("v".equals(localName)) {
+                rawValue.setLength(0);
+                valueOpen = true;
+            }
+            super.startElement(uri, localName, qName, attributes);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (valueOpen) {
+                rawValue.append(ch, start, length);
+            }
+            super.characters(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if ("v".equals(localName)) {
+                valueOpen = false;
+            }
+            super.endElement(uri, localName, qName);
+        }
+
+        /**
+         * Works out the value passed to the listener for the current cell. Shared strings are passed as references to
+         * the string. Numbers and booleans, including cached formula results, keep their type in typed mode;
+         * everything else is passed as the formatted text.
+         *
+         * @param formattedValue The cell value formatted as text.
+         * @return The formatted text, a {@link SharedString}, or the typed value of the cell.
+         */
+        Object valueOf(String formattedValue) {
+            if (rawValue.length() == 0) {
+                return formattedValue;
+            }
+            if ("s".equals(cellType)) {
+                return sharedStringOf(formattedValue);
+            }
+            if (!typed) {
+                return formattedValue;
+            }
+            if ("b".equals(cellType)) {
+                return CellValue.bool(rawValue.charAt(0) == '1');
+            }
+            if (cellType != null && !"n".equals(cellType)) {
+                return formattedValue;
+            }
+            double number;
+            try {
+                number = Double.parseDouble(rawValue.toString());
+            } catch (NumberFormatException e) {
+                return formattedValue;
+            }
+            String format = formats.computeIfAbsent(styleIdx, this::formatOf);
+            boolean isDate = dateFormats.computeIfAbsent(styleIdx,
+                    idx -> format != null && DateUtil.isADateFormat(styles.getStyleAt(idx).getDataFormat(), format));
+            return CellValue.number(number, format, isDate);
+        }
+
+        /**
+         * @param formattedValue The cell value formatted as text, used if the index is not a valid one.
+         * @return The shared string the raw value of the current cell refers to.
+         */
+        private Object sharedStringOf(String formattedValue) {
+            int idx;
+            try {
+                idx = Integer.parseInt(rawValue, 0, rawValue.length(), 10);
+            } catch (NumberFormatException e) {
+                return formattedValue;
+            }
+            if (idx < 0 || idx >= strings.size()) {
+                throw new IllegalStateException("The cell refers to shared string " + idx + ", but the workbook has "
+                        + strings.size());
+            }
+            return new SharedString(strings, idx);
+        }
+
+        /**
+         * @param styleIdx The index of a cell style of the workbook.
+         * @return The number format of the style, or null if the workbook has no such style.
+         */
+        private String formatOf(int styleIdx) {
+            if (styles == null || styleIdx >= styles.getNumCellStyles()) {
+                return null;
+            }
+            XSSFCellStyle style = styles.getStyleAt(styleIdx);
+            return style == null ? null : style.getDataFormatString();
+        }
+    }
+
+    /**
+     * Stands in for the shared strings of the workbook while the sheet XML is parsed. Every string is given as empty,
+     * as the handler's text of shared string cells is replaced by a {@link SharedString}.
+     */
+    private static class DeferredStrings implements SharedStrings {
+
+        private final SharedStringStore strings;
+        private final XSSFRichTextString empty = new XSSFRichTextString("");
+
+        /**
+         * @param strings The shared strings of the workbook.
+         */
+        DeferredStrings(SharedStringStore strings) {
+            this.strings = strings;
+        }
+
+        @Override
+        public RichTextString getItemAt(int idx) {
+            return empty;
+        }
+
+        @Override
+        public int getCount() {
+            return strings.size();
+        }
+
+        @Override
+        public int getUniqueCount() {
+            return strings.size();
+        }
+    }
+
+    /**
+     * Formats numeric cells the same way {@link XlsStreamReader} does, dates with {@link ExcelProcessor#formatDate}, so
+     * the output does not depend on which reader was used.
+     */
+    private static class PlainValueFormatter extends DataFormatter {
+
+        // DateUtil only remembers the last format it checked, which misses on every column change
+        private final Map<Integer, Boolean> dateFormats = new HashMap<>();
+
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString, boolean use1904Windowing) {
+            boolean isDate = dateFormats.computeIfAbsent(formatIndex, idx -> DateUtil.isADateFormat(idx, formatString));
+            if (isDate && DateUtil.isValidExcelDate(value)) {
+                return ExcelProcessor.formatDate(DateUtil.getJavaDate(value, use1904Windowing));
+            }
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * Thrown from the row callback to abort parsing once the listener asks to stop.
+     */
+    private static class StopReadingException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        StopReadingException() {
+            super(null, null, false, false);
+        }
+    }
+}
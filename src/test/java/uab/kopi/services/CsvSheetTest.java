@@ -0,0 +1,94 @@
+package uab.kopi.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CsvSheetTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void splitsQuotedValuesAndLineBreaks() throws Exception {
+        File file = write("duomenys.csv", "﻿Pavadinimas,Pastaba\r\n"
+                + "\"Jonas, Petras\",\"sakė \"\"labas\"\"\"\n"
+                + "\"dvi\neilutės\",\r"
+                + "paskutinė,be pabaigos", StandardCharsets.UTF_8);
+
+        List<List<Object>> rows = readAll(new CsvSheet(file, CsvFormat.DEFAULT));
+
+        assertEquals(List.of(
+                List.of("Pavadinimas", "Pastaba"),
+                List.of("Jonas, Petras", "sakė \"labas\""),
+                List.of("dvi\neilutės", ""),
+                List.of("paskutinė", "be pabaigos")), rows);
+    }
+
+    @Test
+    void detectsTheDelimiterOutsideQuotes() throws Exception {
+        assertEquals(';', new CsvSheet(write("a.csv", "\"a,b,c\";d;e\n1;2;3", StandardCharsets.UTF_8),
+                CsvFormat.DEFAULT).getDelimiter());
+        assertEquals('\t', new CsvSheet(write("b.tsv", "a\tb\n", StandardCharsets.UTF_8),
+                CsvFormat.DEFAULT).getDelimiter());
+        assertEquals('\t', new CsvSheet(write("c.tsv", "vienas\n", StandardCharsets.UTF_8),
+                CsvFormat.DEFAULT).getDelimiter());
+        assertEquals(',', new CsvSheet(write("d.csv", "vienas\n", StandardCharsets.UTF_8),
+                CsvFormat.DEFAULT).getDelimiter());
+        assertEquals('|', new CsvSheet(write("e.csv", "a;b\n", StandardCharsets.UTF_8),
+                new CsvFormat(StandardCharsets.UTF_8, '|')).getDelimiter());
+    }
+
+    @Test
+    void decodesTheChosenCharset() throws Exception {
+        Charset windows = Charset.forName("windows-1257");
+        File file = write("lt.csv", "Miestas;Šalis\nŠiauliai;Lietuva\n", windows);
+
+        List<List<Object>> rows = readAll(new CsvSheet(file, new CsvFormat(windows, null)));
+
+        assertEquals(List.of("Šiauliai", "Lietuva"), rows.get(1));
+    }
+
+    @Test
+    void readsChosenRowsFromTheNotedPositions() throws Exception {
+        StringBuilder text = new StringBuilder("Nr,Tekstas\n");
+        for (int i = 1; i <= 5000; i++) {
+            text.append(i).append(",\"eilutė\n").append(i).append("\"\n");
+        }
+        File file = write("ilgas.csv", text.toString(), StandardCharsets.UTF_8);
+        CsvSheet sheet = new CsvSheet(file, CsvFormat.DEFAULT);
+        List<Integer> seen = new ArrayList<>();
+        RowPositions positions = sheet.readNotingPositions((rowIdx, cells) -> seen.add(rowIdx));
+
+        List<String> read = new ArrayList<>();
+        sheet.readRows(new int[]{3, 1500, 1501, 4999, 5000}, positions, (rowIdx, cells) -> {
+            if (rowIdx == 3 || rowIdx >= 1500 && rowIdx <= 1501 || rowIdx >= 4999) {
+                read.add(rowIdx + ":" + cells.get(0) + ":" + cells.get(1));
+            }
+            return true;
+        });
+
+        assertEquals(5001, seen.size());
+        assertEquals(List.of("3:3:eilutė\n3", "1500:1500:eilutė\n1500", "1501:1501:eilutė\n1501",
+                "4999:4999:eilutė\n4999", "5000:5000:eilutė\n5000"), read);
+    }
+
+    private File write(String name, String text, Charset charset) throws Exception {
+        return Files.write(folder.resolve(name), text.getBytes(charset)).toFile();
+    }
+
+    private static List<List<Object>> readAll(CsvSheet sheet) throws Exception {
+        List<List<Object>> rows = new ArrayList<>();
+        sheet.read((rowIdx, cells) -> rows.add(new ArrayList<>(cells)));
+        return rows;
+    }
+}
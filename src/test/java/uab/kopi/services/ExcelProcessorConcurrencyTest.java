@@ -0,0 +1,129 @@
+package uab.kopi.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs many jobs at the same time and checks that every job writes what it writes when it runs alone, so that no
+ * state leaks between processors.
+ */
+class ExcelProcessorConcurrencyTest {
+
+    private static final int FILES = 12;
+    private static final int ROWS = 300;
+    private static final int REPEATS = 3;
+    private static final String TIMINGS = "Apdorojimo trukmė pagal etapus:";
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void parallelJobsKeepTheirOutputsAndExplanationsApart() throws Exception {
+        List<File> sources = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            // Every other file is a legacy workbook, and the file name is the prefix of its rows
+            String name = "failas" + i;
+            sources.add(TestWorkbooks.write(folder.resolve(name + (i % 2 == 0 ? ".xlsx" : ".xls")).toFile(),
+                    name, ROWS + i));
+        }
+
+        List<Outcome> expected = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            expected.add(run(sources.get(i), folder.resolve("alone-" + i).toFile(), i));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Outcome>> futures = new ArrayList<>();
+            for (int repeat = 0; repeat < REPEATS; repeat++) {
+                for (int i = 0; i < FILES; i++) {
+                    int job = i;
+                    File output = folder.resolve("parallel-" + repeat + "-" + i).toFile();
+                    Callable<Outcome> task = () -> {
+                        start.await();
+                        return run(sources.get(job), output, job);
+                    };
+                    futures.add(pool.submit(task));
+                }
+            }
+            start.countDown();
+
+            for (int f = 0; f < futures.size(); f++) {
+                int job = f % FILES;
+                Outcome outcome = futures.get(f).get();
+                assertEquals(expected.get(job).rows, outcome.rows, "rows of job " + job);
+                assertEquals(expected.get(job).explanation, outcome.explanation, "explanation of job " + job);
+                String prefix = "failas" + job + "-";
+                assertTrue(outcome.rows.stream().skip(1).allMatch(value -> value.startsWith(prefix)),
+                        "job " + job + " holds rows of another file: " + outcome.rows);
+                for (int other = 0; other < FILES; other++) {
+                    if (other != job) {
+                        assertFalse(outcome.explanation.contains(sources.get(other).getName() + "\n"),
+                                "explanation of job " + job + " names file " + other);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void xlsAndXlsxSourcesGiveTheSameSample() throws Exception {
+        File xlsx = TestWorkbooks.write(folder.resolve("duomenys.xlsx").toFile(), "eilute", ROWS);
+        File xls = TestWorkbooks.write(folder.resolve("duomenys.xls").toFile(), "eilute", ROWS);
+
+        Outcome fromXlsx = run(xlsx, folder.resolve("xlsx").toFile(), 7);
+        Outcome fromXls = run(xls, folder.resolve("xls").toFile(), 7);
+
+        assertEquals(fromXlsx.rows, fromXls.rows);
+        assertEquals(26, fromXlsx.rows.size());
+    }
+
+    /**
+     * Samples 25 rows of a file with a seed of its own.
+     */
+    private static Outcome run(File source, File output, long seed) throws Exception {
+        assertTrue(output.mkdirs());
+        SamplingOptions options = SamplingOptions.builder().count(25).seed(seed).build();
+        SamplingResult result = new ExcelProcessor(new SamplingJob(source, output, options)).process();
+        assertEquals(List.of(new File(output, ExcelProcessor.EXCEL_FILE_NAME)), result.getOutputFiles());
+        assertEquals(new File(output, ExcelProcessor.TEXT_FILE_NAME), result.getTextFile());
+        String explanation = Files.readString(result.getTextFile().toPath(), StandardCharsets.UTF_8);
+        // The times of the stages differ from run to run
+        int timings = explanation.indexOf(TIMINGS);
+        return new Outcome(TestWorkbooks.firstColumn(result.getOutputFiles().get(0)),
+                timings >= 0 ? explanation.substring(0, timings) : explanation);
+    }
+
+    /**
+     * The first column of the rows written and the text of the explanation.
+     */
+    private static final class Outcome {
+
+        private final List<String> rows;
+        private final String explanation;
+
+        Outcome(List<String> rows, String explanation) {
+            this.rows = rows;
+            this.explanation = explanation;
+        }
+    }
+}
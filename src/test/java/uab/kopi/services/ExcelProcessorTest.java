@@ -0,0 +1,126 @@
+package uab.kopi.services;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExcelProcessorTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void aCountOfZeroWritesAnEmptySampleOfStreamedWorkbooks() throws Exception {
+        for (String name : new String[]{"tuscias.xlsx", "tuscias.xls"}) {
+            File source = TestWorkbooks.write(folder.resolve(name).toFile(), "eilute", 300);
+            File output = folder.resolve("zero-" + name).toFile();
+            assertTrue(output.mkdirs());
+            SamplingOptions options = SamplingOptions.builder().count(0).seed(1L).build();
+
+            SamplingResult result = new ExcelProcessor(new SamplingJob(source, output, options)).process();
+
+            assertEquals(300, result.getDataRowCount(), name);
+            assertEquals(0, result.getSampledRowCount(), name);
+            assertEquals(List.of("Pavadinimas"), TestWorkbooks.firstColumn(result.getOutputFiles().get(0)), name);
+        }
+    }
+
+    @Test
+    void namesEveryPartApartFromTheOtherSheets() {
+        Set<String> sheetNames = new HashSet<>(Set.of("a (2)"));
+        String longName = "Pardavimai pagal regionus ir mėn";
+
+        assertEquals("A (1)", ExcelProcessor.partSheetName("A", 1, sheetNames));
+        assertEquals("A (2-2)", ExcelProcessor.partSheetName("A", 2, sheetNames));
+        assertEquals("Pardavimai pagal regionus i (1)", ExcelProcessor.partSheetName(longName, 1, sheetNames));
+        assertEquals("Pardavimai pagal regionus (1-2)", ExcelProcessor.partSheetName(longName + "ai", 1, sheetNames));
+    }
+
+    @Test
+    void splitsASheetBesideOneNamedLikeItsPart() throws Exception {
+        File source = folder.resolve("lapai.xlsx").toFile();
+        try (Workbook workbook = new XSSFWorkbook()) {
+            fill(workbook.createSheet("A"), 30);
+            fill(workbook.createSheet("A (2)"), 5);
+            try (OutputStream out = new FileOutputStream(source)) {
+                workbook.write(out);
+            }
+        }
+        File output = folder.resolve("dalys").toFile();
+        assertTrue(output.mkdirs());
+        SamplingOptions options = SamplingOptions.builder().count(25).seed(1L).allSheets(true)
+                .shard(10, ShardMode.SHEETS).build();
+
+        SamplingResult result = new ExcelProcessor(new SamplingJob(source, output, options)).process();
+
+        List<String> sheetNames = new ArrayList<>();
+        try (Workbook workbook = WorkbookFactory.create(result.getOutputFiles().get(0), null, true)) {
+            workbook.forEach(sheet -> sheetNames.add(sheet.getSheetName()));
+        }
+        assertEquals(List.of("A (1)", "A (2-2)", "A (3)", "A (2)"), sheetNames);
+    }
+
+    @Test
+    void ignoresCellsThatOnlyCarryFormattingInBothFormats() throws Exception {
+        for (String name : new String[]{"formatas.xlsx", "formatas.xls"}) {
+            File source = folder.resolve(name).toFile();
+            try (Workbook workbook = name.endsWith(".xls") ? new HSSFWorkbook() : new XSSFWorkbook()) {
+                Sheet sheet = workbook.createSheet("Duomenys");
+                fill(sheet, 5);
+                CellStyle filled = workbook.createCellStyle();
+                filled.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+                sheet.getRow(3).createCell(4).setCellStyle(filled);
+                try (OutputStream out = new FileOutputStream(source)) {
+                    workbook.write(out);
+                }
+            }
+            File output = folder.resolve("formatas-" + name).toFile();
+            assertTrue(output.mkdirs());
+            SamplingOptions options = SamplingOptions.builder().count(1).seed(1L).build();
+
+            SamplingResult result = new ExcelProcessor(new SamplingJob(source, output, options)).process();
+
+            assertEquals(5, result.getDataRowCount(), name);
+        }
+    }
+
+    @Test
+    void refusesAFileThatIsNeitherAWorkbookNorDelimitedText() throws Exception {
+        File source = Files.writeString(folder.resolve("duomenys.txt"), "Pavadinimas\neilute-1\n").toFile();
+        SamplingOptions options = SamplingOptions.builder().count(1).seed(1L).build();
+
+        ProcessingException error = assertThrows(ProcessingException.class,
+                () -> new ExcelProcessor(new SamplingJob(source, folder.toFile(), options)).process());
+
+        assertTrue(error.getMessage().startsWith("Failas duomenys.txt nėra nei Excel'io darbaknygė"));
+    }
+
+    private static void fill(Sheet sheet, int rows) {
+        Row infoRow = sheet.createRow(0);
+        infoRow.createCell(0).setCellValue("Pavadinimas");
+        for (int i = 1; i <= rows; i++) {
+            sheet.createRow(i).createCell(0).setCellValue("eilute-" + i);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package uab.kopi.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProportionalSamplerTest {
+
+    @Test
+    void returnsTheExactShareOfDistinctRows() {
+        for (int rows : new int[]{1, 7, 100, 12_345}) {
+            ProportionalSampler<Integer> sampler = new ProportionalSampler<>(0.1, new Random(rows));
+            ReservoirSamplerTest.offer(sampler, rows);
+            int wanted = (int) (rows * 0.1);
+
+            List<SampledRow<Integer>> selected = sampler.finish(wanted);
+
+            assertEquals(wanted, selected.size(), "rows: " + rows);
+            Set<Integer> distinct = new HashSet<>(ReservoirSamplerTest.rowIdxs(selected));
+            assertEquals(wanted, distinct.size());
+            assertTrue(distinct.stream().allMatch(row -> row >= 0 && row < rows));
+        }
+    }
+
+    @Test
+    void keepsEveryRowForAHundredPercent() {
+        ProportionalSampler<Integer> sampler = new ProportionalSampler<>(1.0, new Random(2));
+        ReservoirSamplerTest.offer(sampler, 1000);
+
+        assertEquals(1000, new HashSet<>(ReservoirSamplerTest.rowIdxs(sampler.finish(1000))).size());
+    }
+
+    @Test
+    void keepsNoRowsForZeroPercent() {
+        ProportionalSampler<Integer> sampler = new ProportionalSampler<>(0.0, new Random(2));
+        ReservoirSamplerTest.offer(sampler, 1000);
+
+        assertEquals(1000, sampler.getRowCount());
+        assertTrue(sampler.finish(0).isEmpty());
+    }
+
+    @Test
+    void selectsEveryRowWithTheSameProbability() {
+        int rows = 20;
+        int[] hits = new int[rows];
+        Random random = new Random(5);
+        for (int run = 0; run < 20_000; run++) {
+            ProportionalSampler<Integer> sampler = new ProportionalSampler<>(0.25, random);
+            ReservoirSamplerTest.offer(sampler, rows);
+            for (SampledRow<Integer> row : sampler.finish(5)) {
+                hits[row.getRowIdx()]++;
+            }
+        }
+
+        for (int i = 0; i < rows; i++) {
+            assertTrue(Math.abs(hits[i] - 5000) < 350, "row " + i + " selected " + hits[i] + " times");
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package uab.kopi.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReservoirSamplerTest {
+
+    @Test
+    void keepsTheRequestedNumberOfDistinctRows() {
+        ReservoirSampler<Integer> sampler = new ReservoirSampler<>(50, new Random(1));
+        offer(sampler, 10_000);
+
+        List<SampledRow<Integer>> selected = sampler.finish(50);
+
+        assertEquals(10_000, sampler.getRowCount());
+        assertEquals(50, selected.size());
+        Set<Integer> rows = new HashSet<>();
+        for (SampledRow<Integer> row : selected) {
+            assertTrue(row.getRowIdx() >= 0 && row.getRowIdx() < 10_000);
+            assertEquals(row.getRowIdx(), row.getValues());
+            assertTrue(rows.add(row.getRowIdx()), "row selected twice: " + row.getRowIdx());
+        }
+    }
+
+    @Test
+    void keepsEveryRowOfAShortStream() {
+        ReservoirSampler<Integer> sampler = new ReservoirSampler<>(50, new Random(1));
+        offer(sampler, 20);
+
+        assertEquals(20, sampler.finish(20).size());
+    }
+
+    @Test
+    void keepsNoRowsForACountOfZero() {
+        ReservoirSampler<Integer> sampler = new ReservoirSampler<>(0, new Random(1));
+        offer(sampler, 100);
+
+        assertEquals(100, sampler.getRowCount());
+        assertTrue(sampler.finish(0).isEmpty());
+    }
+
+    @Test
+    void readsOnlyTheRowsItKeeps() {
+        ReservoirSampler<Integer> sampler = new ReservoirSampler<>(10, new Random(3));
+        AtomicInteger reads = new AtomicInteger();
+        for (int i = 0; i < 100_000; i++) {
+            sampler.offer(i, i, value -> {
+                reads.incrementAndGet();
+                return value;
+            });
+        }
+
+        // About k (1 + ln(n / k)) rows enter the reservoir
+        assertTrue(reads.get() < 500, "rows read: " + reads.get());
+    }
+
+    @Test
+    void selectsEveryRowWithTheSameProbability() {
+        int rows = 20;
+        int[] hits = new int[rows];
+        Random random = new Random(5);
+        for (int run = 0; run < 20_000; run++) {
+            ReservoirSampler<Integer> sampler = new ReservoirSampler<>(5, random);
+            offer(sampler, rows);
+            for (SampledRow<Integer> row : sampler.finish(5)) {
+                hits[row.getRowIdx()]++;
+            }
+        }
+
+        // Every row is expected 5000 times, with a standard deviation of about 61
+        for (int i = 0; i < rows; i++) {
+            assertTrue(Math.abs(hits[i] - 5000) < 350, "row " + i + " selected " + hits[i] + " times");
+        }
+    }
+
+    @Test
+    void theSameSeedSelectsTheSameRows() {
+        ReservoirSampler<Integer> first = new ReservoirSampler<>(30, new Random(9));
+        ReservoirSampler<Integer> second = new ReservoirSampler<>(30, new Random(9));
+        offer(first, 5000);
+        offer(second, 5000);
+
+        assertEquals(rowIdxs(first.finish(30)), rowIdxs(second.finish(30)));
+    }
+
+    static void offer(RowSampler<Integer> sampler, int rows) {
+        for (int i = 0; i < rows; i++) {
+            sampler.offer(i, i, Function.identity());
+        }
+    }
+
+    static List<Integer> rowIdxs(List<SampledRow<Integer>> rows) {
+        return rows.stream().map(SampledRow::getRowIdx).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,66 @@
+package uab.kopi.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowFilterTest {
+
+    @Test
+    void parsesTheColumnOperatorAndValue() {
+        assertEquals("Suma > 10000", RowFilter.parse("Suma>10000").toString());
+        assertEquals("Suma <= 10,5", RowFilter.parse("  Suma <= 10,5 ").toString());
+        assertEquals("Būsena != \"uždaryta\"", RowFilter.parse("Būsena <> uždaryta").toString());
+        assertEquals("Kliento vardas = \"Jonas\"", RowFilter.parse("\"Kliento vardas\" = \"Jonas\"").toString());
+        assertEquals("Data >= 2024-01-01", RowFilter.parse("Data >= 2024-01-01").toString());
+        assertEquals("Kliento vardas", RowFilter.parse("\"Kliento vardas\" ~ jon").getColumn());
+    }
+
+    @Test
+    void rejectsMalformedConditions() {
+        assertThrows(IllegalArgumentException.class, () -> RowFilter.parse("Suma"));
+        assertThrows(IllegalArgumentException.class, () -> RowFilter.parse("> 5"));
+        assertThrows(IllegalArgumentException.class, () -> RowFilter.parse("Suma >"));
+        assertThrows(IllegalArgumentException.class, () -> RowFilter.parse("\"Suma > 5"));
+    }
+
+    @Test
+    void comparesNumbers() {
+        RowFilter filter = RowFilter.parse("Suma > 10000");
+
+        assertTrue(filter.test("10000.5"));
+        assertTrue(filter.test("10000,5"));
+        assertFalse(filter.test("10000"));
+        assertFalse(filter.test(""));
+        assertFalse(filter.test("daug"));
+        assertTrue(filter.test(CellValue.number(20000, "General", false)));
+        // A date is not a number, whatever its serial value
+        assertFalse(filter.test(CellValue.number(45000, "yyyy-mm-dd", true)));
+    }
+
+    @Test
+    void comparesDatesByTheDayUnlessATimeIsGiven() {
+        RowFilter day = RowFilter.parse("Data = 2024-01-02");
+        RowFilter time = RowFilter.parse("Data < 2024-01-02 12:00");
+
+        assertTrue(day.test("2024-01-02 18:30"));
+        assertTrue(day.test(CellValue.number(45293.75, "yyyy-mm-dd hh:mm", true)));
+        assertFalse(day.test("2024-01-03"));
+        assertTrue(time.test("2024-01-02 11:59"));
+        assertFalse(time.test("2024-01-02 12:00:00"));
+        assertFalse(time.test("vakar"));
+    }
+
+    @Test
+    void comparesText() {
+        assertTrue(RowFilter.parse("Būsena = uždaryta").test(" uždaryta "));
+        assertFalse(RowFilter.parse("Būsena = uždaryta").test("Uždaryta"));
+        assertTrue(RowFilter.parse("Būsena ~ DARY").test("uždaryta"));
+        assertTrue(RowFilter.parse("Kodas = \"10\"").test("10"));
+        assertFalse(RowFilter.parse("Kodas = \"10\"").test("10.0"));
+        assertTrue(RowFilter.parse("Pastaba = \"\"").test(""));
+    }
+}
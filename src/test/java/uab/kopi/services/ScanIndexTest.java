@@ -0,0 +1,139 @@
+package uab.kopi.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScanIndexTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void readsBackWhatWasSaved() throws Exception {
+        File source = source("duomenys.csv", "a,b\n1,2\n");
+        ScanIndex index = ScanIndex.open(source, null, CsvFormat.DEFAULT);
+        index.put(0, entry(positions(1000)));
+        index.put(2, entry(null));
+        index.save();
+
+        assertTrue(new File(folder.toFile(), "duomenys.csv.idx").isFile());
+        ScanIndex loaded = ScanIndex.open(source, null, CsvFormat.DEFAULT);
+        ScanIndex.SheetEntry first = loaded.get(0);
+        assertNotNull(first);
+        assertEquals(0, first.getInfoRowIdx());
+        assertEquals(1, first.getFirstDataIdx());
+        assertEquals(1000, first.getLastDataIdx());
+        assertEquals(3, first.getColumnCount());
+        assertArrayEquals(new String[]{"Nr", "Ąžuolas", "Suma"}, first.getInfoRow());
+        RowPositions positions = first.getPositions();
+        int step = positions.stepOf(700);
+        assertTrue(positions.rowIdxAt(step) <= 700);
+        assertEquals(positions.rowIdxAt(step) * 10L, positions.offsetAt(step));
+        assertNull(loaded.get(2).getPositions());
+        assertNull(loaded.get(1));
+    }
+
+    @Test
+    void ignoresTheIndexOfAChangedFile() throws Exception {
+        File source = source("duomenys.csv", "a,b\n1,2\n");
+        ScanIndex index = ScanIndex.open(source, null, CsvFormat.DEFAULT);
+        index.put(0, entry(null));
+        index.save();
+
+        Files.write(source.toPath(), "a,b\n1,3\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(source.setLastModified(source.lastModified() + 2000));
+
+        assertNull(ScanIndex.open(source, null, CsvFormat.DEFAULT).get(0));
+    }
+
+    @Test
+    void ignoresTheIndexOfAFileReadAsOtherDelimitedText() throws Exception {
+        File source = source("duomenys.csv", "a;b;c,d\n1;2;3,4\n");
+        CsvFormat semicolons = new CsvFormat(StandardCharsets.UTF_8, ';');
+        ScanIndex index = ScanIndex.open(source, null, semicolons);
+        index.put(0, entry(null));
+        index.save();
+
+        assertNotNull(ScanIndex.open(source, null, semicolons).get(0));
+        // The detected delimiter is the same, so the index still holds
+        assertNotNull(ScanIndex.open(source, null, new CsvFormat(StandardCharsets.UTF_8, null)).get(0));
+        assertNull(ScanIndex.open(source, null, new CsvFormat(StandardCharsets.UTF_8, ',')).get(0));
+        assertNull(ScanIndex.open(source, null, new CsvFormat(StandardCharsets.ISO_8859_1, ';')).get(0));
+
+        ScanIndex inMemory = ScanIndex.inMemory(source, semicolons);
+        assertTrue(inMemory.isReadAs(source, CsvFormat.DEFAULT));
+        assertFalse(inMemory.isReadAs(source, new CsvFormat(StandardCharsets.UTF_8, ',')));
+    }
+
+    @Test
+    void ignoresADamagedIndex() throws Exception {
+        File source = source("duomenys.csv", "a,b\n1,2\n");
+        Files.write(folder.resolve("duomenys.csv.idx"), new byte[]{0x4B, 0x4F, 0x50, 0x49, 0, 0});
+
+        ScanIndex index = ScanIndex.open(source, null, CsvFormat.DEFAULT);
+
+        assertNull(index.get(0));
+    }
+
+    @Test
+    void keepsTheIndexesOfSameNamedFilesApartInASharedFolder() throws Exception {
+        File shared = Files.createDirectory(folder.resolve("indeksai")).toFile();
+        File first = source("duomenys.csv", "a,b\n1,2\n");
+        File other = Files.createDirectory(folder.resolve("kitas")).resolve("duomenys.csv").toFile();
+        Files.write(other.toPath(), "a,b\n1,2\n".getBytes(StandardCharsets.UTF_8));
+
+        ScanIndex index = ScanIndex.open(first, shared, CsvFormat.DEFAULT);
+        index.put(0, entry(null));
+        index.save();
+
+        assertNotNull(ScanIndex.open(first, shared, CsvFormat.DEFAULT).get(0));
+        assertNull(ScanIndex.open(other, shared, CsvFormat.DEFAULT).get(0));
+        assertEquals(1, shared.list().length);
+    }
+
+    @Test
+    void neverSavesAnIndexKeptInMemory() throws Exception {
+        File source = source("duomenys.csv", "a,b\n1,2\n");
+        ScanIndex index = ScanIndex.inMemory(source, CsvFormat.DEFAULT);
+        index.put(0, entry(null));
+        index.save();
+
+        assertTrue(index.isInMemory());
+        assertTrue(index.belongsTo(source));
+        assertEquals(1, folder.toFile().list().length);
+
+        ScanIndex onDisk = ScanIndex.open(source, null, CsvFormat.DEFAULT);
+        onDisk.addMissing(index);
+        onDisk.save();
+        assertFalse(onDisk.isInMemory());
+        assertNotNull(ScanIndex.open(source, null, CsvFormat.DEFAULT).get(0));
+    }
+
+    private File source(String name, String text) throws Exception {
+        return Files.write(folder.resolve(name), text.getBytes(StandardCharsets.UTF_8)).toFile();
+    }
+
+    private static ScanIndex.SheetEntry entry(RowPositions positions) {
+        return new ScanIndex.SheetEntry(0, 1, 1000, 3, new String[]{"Nr", "Ąžuolas", "Suma"}, positions);
+    }
+
+    private static RowPositions positions(int rows) {
+        RowPositions.Recorder recorder = new RowPositions.Recorder();
+        for (int rowIdx = 0; rowIdx <= rows; rowIdx++) {
+            recorder.onRecord(rowIdx, rowIdx * 10L);
+        }
+        return recorder.finish();
+    }
+}
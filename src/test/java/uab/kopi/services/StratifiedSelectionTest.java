@@ -0,0 +1,106 @@
+package uab.kopi.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StratifiedSelectionTest {
+
+    @Test
+    void floydSelectionTakesDistinctRowsOfTheRange() {
+        Random random = new Random(1);
+        for (int take : new int[]{0, 1, 50, 100}) {
+            int[] rows = ExcelProcessor.selectRandomRows(10, 109, take, random);
+
+            assertEquals(take, rows.length);
+            assertEquals(take, Arrays.stream(rows).distinct().count());
+            assertTrue(Arrays.stream(rows).allMatch(row -> row >= 10 && row <= 109));
+        }
+    }
+
+    @Test
+    void floydSelectionIsUniform() {
+        int[] hits = new int[10];
+        Random random = new Random(2);
+        for (int run = 0; run < 20_000; run++) {
+            for (int row : ExcelProcessor.selectRandomRows(0, 9, 3, random)) {
+                hits[row]++;
+            }
+        }
+
+        // Every row is expected 6000 times, with a standard deviation of about 65
+        for (int i = 0; i < hits.length; i++) {
+            assertTrue(Math.abs(hits[i] - 6000) < 400, "row " + i + " selected " + hits[i] + " times");
+        }
+    }
+
+    @Test
+    void sharesACountInProportionByTheLargestRemainder() {
+        // Strata of 50, 30 and 20 rows; 7 rows give shares of 3.5, 2.1 and 1.4
+        StratifiedSelection selection = strata(50, 30, 20);
+
+        assertEquals(7, selection.allocate(7, false, StratumAllocation.PROPORTIONAL));
+        assertArrayEquals(new int[]{4, 2, 1}, allocated(selection));
+    }
+
+    @Test
+    void takesTheSameCountFromEveryStratumUpToItsSize() {
+        StratifiedSelection selection = strata(50, 30, 5);
+
+        assertEquals(25, selection.allocate(10, false, StratumAllocation.FIXED));
+        assertArrayEquals(new int[]{10, 10, 5}, allocated(selection));
+    }
+
+    @Test
+    void takesAPercentageOfEveryStratum() {
+        StratifiedSelection selection = strata(50, 30, 5);
+
+        assertEquals(42, selection.allocate(50, true, StratumAllocation.PROPORTIONAL));
+        assertArrayEquals(new int[]{25, 15, 2}, allocated(selection));
+    }
+
+    @Test
+    void selectsTheAllocatedRowsOfEveryStratumTheSameWayForASeed() {
+        StratifiedSelection selection = strata(50, 30, 20);
+        selection.allocate(10, false, StratumAllocation.PROPORTIONAL);
+
+        int[] selected = selection.select(new Random(3));
+        StratifiedSelection again = strata(50, 30, 20);
+        again.allocate(10, false, StratumAllocation.PROPORTIONAL);
+
+        assertArrayEquals(selected, again.select(new Random(3)));
+        Map<Integer, Integer> perStratum = new HashMap<>();
+        for (int row : selected) {
+            perStratum.merge(row % 3, 1, Integer::sum);
+        }
+        assertEquals(Map.of(0, 5, 1, 3, 2, 2), perStratum);
+        assertEquals(10, Arrays.stream(selected).distinct().count());
+    }
+
+    /**
+     * Adds rows taking turns between the strata "0", "1" and "2" while they last, so that row % 3 is the stratum.
+     */
+    private static StratifiedSelection strata(int... sizes) {
+        StratifiedSelection selection = new StratifiedSelection();
+        int[] left = sizes.clone();
+        for (int rowIdx = 0; Arrays.stream(left).sum() > 0; rowIdx++) {
+            int stratum = rowIdx % sizes.length;
+            if (left[stratum] > 0) {
+                selection.add(rowIdx, String.valueOf(stratum));
+                left[stratum]--;
+            }
+        }
+        return selection;
+    }
+
+    private static int[] allocated(StratifiedSelection selection) {
+        return selection.getStrata().stream().mapToInt(StratifiedSelection.Stratum::getAllocated).toArray();
+    }
+}
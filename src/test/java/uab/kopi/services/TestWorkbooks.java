@@ -0,0 +1,72 @@
+package uab.kopi.services;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the small workbooks the tests sample and reads back the files the processor writes.
+ */
+final class TestWorkbooks {
+
+    private TestWorkbooks() {
+    }
+
+    /**
+     * Writes a workbook with the info row "Pavadinimas", "Suma" and the data rows "prefix-1", 1 up to
+     * "prefix-rows", rows.
+     *
+     * @param file   The file to write, an .xls file if its name ends with .xls and an .xlsx file otherwise.
+     * @param prefix The start of the text of every data row.
+     * @param rows   The number of data rows.
+     * @return The file.
+     * @throws IOException If the file could not be written.
+     */
+    static File write(File file, String prefix, int rows) throws IOException {
+        try (Workbook workbook = file.getName().endsWith(".xls") ? new HSSFWorkbook() : new XSSFWorkbook()) {
+            Sheet sheet = workbook.createSheet("Duomenys");
+            Row infoRow = sheet.createRow(0);
+            infoRow.createCell(0).setCellValue("Pavadinimas");
+            infoRow.createCell(1).setCellValue("Suma");
+            for (int i = 1; i <= rows; i++) {
+                Row row = sheet.createRow(i);
+                row.createCell(0).setCellValue(prefix + "-" + i);
+                row.createCell(1).setCellValue(i);
+            }
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                workbook.write(out);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Reads the first column of the first sheet of a workbook as it is shown.
+     *
+     * @param file The workbook.
+     * @return The text of the first cell of every row, the info row included.
+     * @throws IOException If the file could not be read.
+     */
+    static List<String> firstColumn(File file) throws IOException {
+        List<String> values = new ArrayList<>();
+        DataFormatter formatter = new DataFormatter();
+        try (Workbook workbook = WorkbookFactory.create(file, null, true)) {
+            for (Row row : workbook.getSheetAt(0)) {
+                values.add(formatter.formatCellValue(row.getCell(0)));
+            }
+        }
+        return values;
+    }
+}
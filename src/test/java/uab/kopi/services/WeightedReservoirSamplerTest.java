@@ -0,0 +1,90 @@
+package uab.kopi.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WeightedReservoirSamplerTest {
+
+    @Test
+    void countsTheRowsThatCannotBeSelected() {
+        WeightedReservoirSampler<Integer> sampler = new WeightedReservoirSampler<>(10, new Random(1));
+        double[] weights = {5, 0, -2, Double.NaN, 1.5, 0, Double.POSITIVE_INFINITY};
+        for (int i = 0; i < weights.length; i++) {
+            sampler.offer(i, weights[i], i, Function.identity());
+        }
+
+        assertEquals(7, sampler.getRowCount());
+        assertEquals(2, sampler.getSelectableCount());
+        assertEquals(2, sampler.getZeroCount());
+        assertEquals(1, sampler.getNegativeCount());
+        assertEquals(2, sampler.getBlankCount());
+        assertEquals(6.5, sampler.getTotalWeight());
+        assertEquals(List.of(0, 4), rowIdxs(sampler.finish(10)).stream().sorted()
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    void keepsTheRequestedNumberOfDistinctRowsLargestKeyFirst() {
+        WeightedReservoirSampler<Integer> sampler = new WeightedReservoirSampler<>(40, new Random(2));
+        for (int i = 0; i < 10_000; i++) {
+            sampler.offer(i, 1 + i % 17, i, Function.identity());
+        }
+
+        List<SampledRow<Integer>> selected = sampler.finish(40);
+
+        assertEquals(40, selected.size());
+        assertEquals(40, new HashSet<>(rowIdxs(selected)).size());
+        for (int i = 1; i < selected.size(); i++) {
+            double previous = ((WeightedReservoirSampler.WeightedRow<Integer>) selected.get(i - 1)).getLogKey();
+            double current = ((WeightedReservoirSampler.WeightedRow<Integer>) selected.get(i)).getLogKey();
+            assertTrue(previous >= current);
+        }
+    }
+
+    @Test
+    void selectsRowsInProportionToTheirWeights() {
+        // One row of weight 9 among nine rows of weight 1, one row taken: the heavy row wins half the time
+        int heavy = 0;
+        Random random = new Random(3);
+        int runs = 20_000;
+        for (int run = 0; run < runs; run++) {
+            WeightedReservoirSampler<Integer> sampler = new WeightedReservoirSampler<>(1, random);
+            for (int i = 0; i < 10; i++) {
+                sampler.offer(i, i == 4 ? 9 : 1, i, Function.identity());
+            }
+            if (sampler.finish(1).get(0).getRowIdx() == 4) {
+                heavy++;
+            }
+        }
+
+        assertTrue(Math.abs(heavy - runs / 2) < 500, "heavy row selected " + heavy + " times");
+    }
+
+    @Test
+    void readsWeightsFromCellsAndText() {
+        assertEquals(12.5, WeightedReservoirSampler.weightOf("12.5"));
+        assertEquals(12.5, WeightedReservoirSampler.weightOf(" 12,5 "));
+        assertEquals(1234.56, WeightedReservoirSampler.weightOf("1,234.56"));
+        assertEquals(1234.56, WeightedReservoirSampler.weightOf("1.234,56"));
+        assertEquals(1234.56, WeightedReservoirSampler.weightOf("1\u00A0234,56"));
+        assertEquals(1234567, WeightedReservoirSampler.weightOf("1,234,567"));
+        assertEquals(1234567, WeightedReservoirSampler.weightOf("1.234.567"));
+        assertTrue(Double.isNaN(WeightedReservoirSampler.weightOf("1,234.56.7")));
+        assertTrue(Double.isNaN(WeightedReservoirSampler.weightOf("")));
+        assertTrue(Double.isNaN(WeightedReservoirSampler.weightOf("suma")));
+        assertEquals(3.0, WeightedReservoirSampler.weightOf(CellValue.number(3.0, "General", false)));
+        assertTrue(Double.isNaN(WeightedReservoirSampler.weightOf(CellValue.number(45000, "yyyy-mm-dd", true))));
+    }
+
+    private static List<Integer> rowIdxs(List<SampledRow<Integer>> rows) {
+        return rows.stream().map(SampledRow::getRowIdx).collect(Collectors.toList());
+    }
+}